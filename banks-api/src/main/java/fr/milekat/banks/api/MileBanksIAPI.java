@@ -1,11 +1,29 @@
 package fr.milekat.banks.api;
 
+import fr.milekat.banks.api.backup.BackupResult;
+import fr.milekat.banks.api.backup.ImportMode;
+import fr.milekat.banks.api.batch.BatchResult;
+import fr.milekat.banks.api.batch.Operation;
+import fr.milekat.banks.api.events.MoneyPrepareBatch;
 import fr.milekat.banks.api.exceptions.StorageException;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.api.leaderboard.RankedBalance;
+import fr.milekat.banks.api.statistics.MoneyStatistics;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 /**
  * The MileBanksIAPI interface provides access to the Banks API functionalities.
@@ -207,6 +225,145 @@ public interface MileBanksIAPI {
         return setMoneyByTag(tagName, tagValue, amount, reason);
     }
 
+    /*
+        Batches
+     */
+
+    /**
+     * Moves an amount of money from some tags to other tags.
+     * Both operations are accepted together (all or nothing), with a single {@link MoneyPrepareBatch} event.
+     *
+     * @param fromTags The tags of the accounts to remove money from.
+     * @param toTags   The tags of the accounts to add money to.
+     * @param amount   The amount of money to move (positive).
+     * @param reason   Operation reason (Or an operation description).
+     * @return The batch result (the removal transaction id first).
+     * @throws StorageException if there is an error while updating the storage, nothing is updated.
+     */
+    default BatchResult transfer(@NotNull Map<String, Object> fromTags, @NotNull Map<String, Object> toTags,
+                                 int amount, @Nullable String reason) throws StorageException {
+        if (amount <= 0) throw new StorageException(new Throwable(), "Transfer amount must be positive.");
+        return applyBatch(List.of(Operation.remove(fromTags, amount, reason), Operation.add(toTags, amount, reason)));
+    }
+
+    /**
+     * Applies multiple operations together (all or nothing), with a single {@link MoneyPrepareBatch} event.
+     * All operations share the same correlation id.
+     *
+     * @param operations The operations.
+     * @return The batch result.
+     * @throws StorageException if there is an error while updating the storage, nothing is updated.
+     */
+    BatchResult applyBatch(@NotNull List<Operation> operations) throws StorageException;
+
+    /*
+        Leaderboards
+     */
+
+    /**
+     * Retrieves the richest accounts of a tag name, from the richest.
+     * Leaderboards are kept in memory, only for tag names enabled in the configuration.
+     *
+     * @param tagName The tag name.
+     * @param size    The max number of accounts.
+     * @param offset  The number of accounts to skip (0 to start from the richest account).
+     * @return The ranked accounts (empty while the leaderboard is loading).
+     * @throws IllegalArgumentException if there is no leaderboard for this tag name.
+     */
+    List<RankedBalance> getTopBalances(@NotNull String tagName, int size, int offset) throws IllegalArgumentException;
+
+    /**
+     * Retrieves the rank of an account in the leaderboard of its tag name.
+     *
+     * @param tagName  The tag name.
+     * @param tagValue The tag value.
+     * @return The ranked account, or null if the account is not in the leaderboard (or while it's loading).
+     * @throws IllegalArgumentException if there is no leaderboard for this tag name.
+     */
+    @Nullable
+    RankedBalance getRank(@NotNull String tagName, @NotNull Object tagValue) throws IllegalArgumentException;
+
+    /*
+        Statistics
+     */
+
+    /**
+     * Retrieves server-wide money statistics, kept in memory and updated with every operation.
+     * Flows are counted in time buckets, so the period starts at the beginning of its first bucket.
+     *
+     * @param period The period of flows and active accounts (money in circulation is always the current one).
+     * @return The money statistics.
+     * @throws IllegalStateException if statistics are disabled in the configuration.
+     */
+    MoneyStatistics getStatistics(@NotNull Duration period) throws IllegalStateException;
+
+    /*
+        History
+     */
+
+    /**
+     * Retrieves a page of saved operations, from the most recent to the oldest.
+     * Operations accepted but not yet saved are not included.
+     *
+     * @param query  The history filters.
+     * @param size   The max number of operations of the page (between 1 and 1000).
+     * @param cursor The cursor of the page to retrieve ({@link HistoryPage#cursor()} of the previous page),
+     *               or null for the first page.
+     * @return The page of operations.
+     * @throws StorageException if there is an error accessing the storage.
+     */
+    HistoryPage getHistory(@NotNull HistoryQuery query, int size, @Nullable String cursor) throws StorageException;
+
+    /**
+     * Reads all saved operations matching the query, from the oldest to the most recent (for exports).
+     * Operations are read by pages, so they are never all loaded in memory.
+     *
+     * @param query    The history filters.
+     * @param consumer Called for each operation.
+     * @throws StorageException if there is an error accessing the storage.
+     */
+    void streamHistory(@NotNull HistoryQuery query, @NotNull Consumer<Transaction> consumer) throws StorageException;
+
+    /*
+        Export / Import
+     */
+
+    /**
+     * Exports balances of all tags and all saved transactions in a gzip compressed NDJSON file.
+     * Records are written while they are read from the storage (by pages), the file is replaced once complete.
+     *
+     * @param file The export file.
+     * @return The number of exported records.
+     * @throws StorageException if there is an error accessing the storage or writing the file.
+     */
+    BackupResult exportData(@NotNull File file) throws StorageException;
+
+    /**
+     * Imports records of an export file, read and saved by chunks.
+     *
+     * @param file The export file.
+     * @param mode The records to import (balances or transactions).
+     * @return The number of imported records.
+     * @throws StorageException if there is an error reading the file or updating the storage,
+     *                          records of previous chunks are imported.
+     */
+    BackupResult importData(@NotNull File file, @NotNull ImportMode mode) throws StorageException;
+
+    /*
+        Commit
+     */
+
+    /**
+     * Waits for an operation to be saved in the storage.
+     * Operations are accepted immediately (and applied to balances), but saved later by batches.
+     *
+     * @param transactionId The transaction id returned when the operation was accepted.
+     * @return A future completed once the operation is saved (already completed if the operation was saved),
+     * completed exceptionally with a {@link StorageException} if the operation is rejected by the storage, or if the
+     * transaction is unknown (not accepted by this server, or completed too long ago).
+     */
+    CompletableFuture<Void> awaitCommit(@NotNull UUID transactionId);
+
     /*
         Tags (Player tags)
      */
@@ -228,4 +385,225 @@ public interface MileBanksIAPI {
      * @throws IllegalArgumentException if the tags maps not contains all required tags.
      */
     void setPlayerTags(@NotNull UUID uuid, @NotNull Map<String, Object> tags) throws IllegalArgumentException;
+
+    /*
+        Async (Non-blocking variants, storage operations are executed by {@link #getAsyncExecutor()})
+        Once the plugin is disabled, returned futures are failed with a StorageException.
+     */
+
+    /**
+     * Retrieves the executor used to run async storage operations.
+     *
+     * @return The async executor.
+     */
+    @NotNull
+    Executor getAsyncExecutor();
+
+    /**
+     * Retrieves an executor running tasks on the server main thread.
+     * Useful to handle an async result on the main thread, for example:
+     * {@code api.getMoneyByTagAsync(tagName, tagValue).thenAcceptAsync(balance -> ..., api.getMainThreadExecutor())}
+     *
+     * @return The main thread executor.
+     */
+    @NotNull
+    Executor getMainThreadExecutor();
+
+    /**
+     * Async variant of {@link #getMoney(UUID)}.
+     *
+     * @param player The {@link UUID} of the player.
+     * @return A future of the map of tags and their associated amount of money,
+     * completed exceptionally with a {@link StorageException} if there is an error accessing the storage.
+     */
+    default CompletableFuture<Map<String, Integer>> getMoneyAsync(@NotNull UUID player) {
+        return supplyAsync(() -> getMoney(player));
+    }
+
+    /**
+     * Async variant of {@link #getMoneyByTag(String, Object)}.
+     *
+     * @param tagName   Tag name.
+     * @param tagValue Tag value.
+     * @return A future of the amount of money associated with the tag,
+     * completed exceptionally with a {@link StorageException} if there is an error accessing the storage.
+     */
+    default CompletableFuture<Integer> getMoneyByTagAsync(@NotNull String tagName, @NotNull Object tagValue) {
+        return supplyAsync(() -> getMoneyByTag(tagName, tagValue));
+    }
+
+    /**
+     * Async variant of {@link #addMoneyByTags(Map, int, String)}.
+     *
+     * @param tags   A map of tags, where each tagName represents the tag name and the value of the tag.
+     * @param amount The amount of money to add.
+     * @param reason Operation reason (Or an operation description).
+     * @return A future of the transaction id,
+     * completed exceptionally with a {@link StorageException} if there is an error while updating the storage.
+     */
+    default CompletableFuture<UUID> addMoneyByTagsAsync(@NotNull Map<String, Object> tags,
+                                                        int amount, @Nullable String reason) {
+        return supplyAsync(() -> addMoneyByTags(tags, amount, reason));
+    }
+
+    /**
+     * Async variant of {@link #addMoneyByTag(String, Object, int, String)}.
+     *
+     * @param tagName    The name of the tag.
+     * @param tagValue  The value of the tag.
+     * @param amount The amount of money to add.
+     * @param reason Operation reason (Or an operation description).
+     * @return A future of the transaction id,
+     * completed exceptionally with a {@link StorageException} if there is an error while updating the storage.
+     */
+    default CompletableFuture<UUID> addMoneyByTagAsync(@NotNull String tagName, @NotNull Object tagValue,
+                                                       int amount, @Nullable String reason) {
+        return supplyAsync(() -> addMoneyByTag(tagName, tagValue, amount, reason));
+    }
+
+    /**
+     * Async variant of {@link #removeMoneyByTags(Map, int, String)}.
+     *
+     * @param tags   A map of tags, where each tagName represents the tag name and the tagValue of the tag.
+     * @param amount The amount of money to remove.
+     * @param reason Operation reason (Or an operation description).
+     * @return A future of the transaction id,
+     * completed exceptionally with a {@link StorageException} if there is an error while updating the storage.
+     */
+    default CompletableFuture<UUID> removeMoneyByTagsAsync(@NotNull Map<String, Object> tags,
+                                                           int amount, @Nullable String reason) {
+        return supplyAsync(() -> removeMoneyByTags(tags, amount, reason));
+    }
+
+    /**
+     * Async variant of {@link #removeMoneyByTag(String, Object, int, String)}.
+     *
+     * @param tagName    The name of the tag.
+     * @param tagValue  The value of the tag.
+     * @param amount The amount of money to remove.
+     * @param reason Operation reason (Or an operation description).
+     * @return A future of the transaction id,
+     * completed exceptionally with a {@link StorageException} if there is an error while updating the storage.
+     */
+    default CompletableFuture<UUID> removeMoneyByTagAsync(@NotNull String tagName, @NotNull Object tagValue,
+                                                          int amount, @Nullable String reason) {
+        return supplyAsync(() -> removeMoneyByTag(tagName, tagValue, amount, reason));
+    }
+
+    /**
+     * Async variant of {@link #setMoneyByTag(String, Object, int, String)}.
+     *
+     * @param tagName    The name of the tag.
+     * @param tagValue  The value of the tag.
+     * @param amount The new amount of money.
+     * @param reason Operation reason (Or an operation description).
+     * @return A future of the transaction id,
+     * completed exceptionally with a {@link StorageException} if there is an error while updating the storage.
+     */
+    default CompletableFuture<UUID> setMoneyByTagAsync(@NotNull String tagName, @NotNull Object tagValue,
+                                                       int amount, @Nullable String reason) {
+        return supplyAsync(() -> setMoneyByTag(tagName, tagValue, amount, reason));
+    }
+
+    /**
+     * Async variant of {@link #transfer(Map, Map, int, String)}.
+     *
+     * @param fromTags The tags of the accounts to remove money from.
+     * @param toTags   The tags of the accounts to add money to.
+     * @param amount   The amount of money to move (positive).
+     * @param reason   Operation reason (Or an operation description).
+     * @return A future of the batch result,
+     * completed exceptionally with a {@link StorageException} if there is an error while updating the storage.
+     */
+    default CompletableFuture<BatchResult> transferAsync(@NotNull Map<String, Object> fromTags,
+                                                         @NotNull Map<String, Object> toTags,
+                                                         int amount, @Nullable String reason) {
+        return supplyAsync(() -> transfer(fromTags, toTags, amount, reason));
+    }
+
+    /**
+     * Async variant of {@link #applyBatch(List)}.
+     *
+     * @param operations The operations.
+     * @return A future of the batch result,
+     * completed exceptionally with a {@link StorageException} if there is an error while updating the storage.
+     */
+    default CompletableFuture<BatchResult> applyBatchAsync(@NotNull List<Operation> operations) {
+        return supplyAsync(() -> applyBatch(operations));
+    }
+
+    /**
+     * Async variant of {@link #exportData(File)}.
+     *
+     * @param file The export file.
+     * @return A future of the number of exported records,
+     * completed exceptionally with a {@link StorageException} if there is an error accessing the storage.
+     */
+    default CompletableFuture<BackupResult> exportDataAsync(@NotNull File file) {
+        return supplyAsync(() -> exportData(file));
+    }
+
+    /**
+     * Async variant of {@link #importData(File, ImportMode)}.
+     *
+     * @param file The export file.
+     * @param mode The records to import.
+     * @return A future of the number of imported records,
+     * completed exceptionally with a {@link StorageException} if there is an error updating the storage.
+     */
+    default CompletableFuture<BackupResult> importDataAsync(@NotNull File file, @NotNull ImportMode mode) {
+        return supplyAsync(() -> importData(file, mode));
+    }
+
+    /**
+     * Async variant of {@link #getHistory(HistoryQuery, int, String)}.
+     *
+     * @param query  The history filters.
+     * @param size   The max number of operations of the page (between 1 and 1000).
+     * @param cursor The cursor of the page to retrieve, or null for the first page.
+     * @return A future of the page of operations,
+     * completed exceptionally with a {@link StorageException} if there is an error accessing the storage.
+     */
+    default CompletableFuture<HistoryPage> getHistoryAsync(@NotNull HistoryQuery query, int size,
+                                                           @Nullable String cursor) {
+        return supplyAsync(() -> getHistory(query, size, cursor));
+    }
+
+    /**
+     * Run a storage call with the {@link #getAsyncExecutor()}.
+     *
+     * @param call The storage call.
+     * @param <T>  The result type.
+     * @return A future of the call result.
+     */
+    private <T> CompletableFuture<T> supplyAsync(@NotNull StorageCall<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call();
+                } catch (StorageException exception) {
+                    throw new CompletionException(exception);
+                }
+            }, getAsyncExecutor());
+        } catch (RejectedExecutionException exception) {
+            //  Executor shut down (plugin disabled)
+            return CompletableFuture.failedFuture(new StorageException(exception, "Storage is unavailable."));
+        }
+    }
+
+    /**
+     * A storage call which can throw a {@link StorageException}.
+     *
+     * @param <T> The result type.
+     */
+    @FunctionalInterface
+    interface StorageCall<T> {
+        /**
+         * Execute the call.
+         *
+         * @return The call result.
+         * @throws StorageException if there is an error accessing the storage.
+         */
+        T call() throws StorageException;
+    }
 }
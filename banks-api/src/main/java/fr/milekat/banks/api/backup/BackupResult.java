@@ -0,0 +1,31 @@
+package fr.milekat.banks.api.backup;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * The result of an export or an import.
+ *
+ * @param balances     The number of exported or imported balances.
+ * @param transactions The number of exported or imported transactions.
+ * @param failed       The number of records rejected by the storage during an import (not imported).
+ * @param duration     The duration of the export or import.
+ */
+public record BackupResult(long balances, long transactions, long failed, @NotNull Duration duration) {
+    /**
+     * The result of an export or an import without failed records.
+     */
+    public BackupResult(long balances, long transactions, @NotNull Duration duration) {
+        this(balances, transactions, 0L, duration);
+    }
+
+    /**
+     * Gets the throughput of the export or import.
+     *
+     * @return The number of records (balances and transactions) per second.
+     */
+    public double getRecordsPerSecond() {
+        return (balances + transactions) * 1000d / Math.max(1L, duration.toMillis());
+    }
+}
@@ -0,0 +1,15 @@
+package fr.milekat.banks.api.backup;
+
+/**
+ * Records applied when importing an export file.
+ */
+public enum ImportMode {
+    /**
+     * Set each account to its exported balance (transactions of the file are ignored).
+     */
+    BALANCES,
+    /**
+     * Replay exported transactions, keeping their transaction id (balances of the file are ignored).
+     */
+    TRANSACTIONS
+}
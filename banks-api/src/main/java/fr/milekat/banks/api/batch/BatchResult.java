@@ -0,0 +1,14 @@
+package fr.milekat.banks.api.batch;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The result of an accepted batch of operations.
+ *
+ * @param correlationId  The id shared by all operations of the batch.
+ * @param transactionIds The transaction id of each operation, in the batch order.
+ */
+public record BatchResult(@NotNull UUID correlationId, @NotNull List<UUID> transactionIds) {}
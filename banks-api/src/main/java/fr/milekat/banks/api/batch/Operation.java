@@ -0,0 +1,39 @@
+package fr.milekat.banks.api.batch;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+/**
+ * A money operation of a batch.
+ *
+ * @param tags   The tags of the accounts to update.
+ * @param amount The amount to add to these accounts (negative to remove money, can't be 0).
+ * @param reason Operation reason (Or an operation description).
+ */
+public record Operation(@NotNull Map<String, Object> tags, int amount, @Nullable String reason) {
+    /**
+     * Creates an operation adding money to the tags.
+     *
+     * @param tags   The tags of the accounts.
+     * @param amount The amount of money to add.
+     * @param reason Operation reason.
+     * @return The operation.
+     */
+    public static @NotNull Operation add(@NotNull Map<String, Object> tags, int amount, @Nullable String reason) {
+        return new Operation(tags, Math.abs(amount), reason);
+    }
+
+    /**
+     * Creates an operation removing money from the tags.
+     *
+     * @param tags   The tags of the accounts.
+     * @param amount The amount of money to remove.
+     * @param reason Operation reason.
+     * @return The operation.
+     */
+    public static @NotNull Operation remove(@NotNull Map<String, Object> tags, int amount, @Nullable String reason) {
+        return new Operation(tags, -Math.abs(amount), reason);
+    }
+}
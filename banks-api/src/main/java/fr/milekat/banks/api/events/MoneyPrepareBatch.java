@@ -0,0 +1,100 @@
+package fr.milekat.banks.api.events;
+
+import fr.milekat.banks.api.history.Transaction;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Represents a Bukkit event when a batch of transactions (a transfer or a batch of operations) is prepared.
+ * This event is called once for the whole batch, instead of a {@link MoneyPrepareOperation} for each transaction.
+ * This event is called on the thread requesting the batch (asynchronous if it's not the main thread).
+ * This event is cancellable, cancelling it cancels all transactions of the batch.
+ */
+@SuppressWarnings("unused")
+public class MoneyPrepareBatch extends Event implements Cancellable {
+    private static final HandlerList HANDLERS_LIST = new HandlerList();
+    private boolean cancelled;
+    private final UUID correlationId;
+    private final List<Transaction> transactions;
+
+    /**
+     * Constructs a new MoneyPrepareBatch with the specified correlation ID and transactions.
+     * @param correlationId The correlation ID.
+     * @param transactions The transactions.
+     */
+    public MoneyPrepareBatch(UUID correlationId, List<Transaction> transactions) {
+        this(correlationId, transactions, false);
+    }
+
+    /**
+     * Constructs a new MoneyPrepareBatch with the specified correlation ID and transactions.
+     * @param correlationId The correlation ID.
+     * @param transactions The transactions.
+     * @param isAsync true if the event is called outside the main thread.
+     */
+    public MoneyPrepareBatch(UUID correlationId, List<Transaction> transactions, boolean isAsync) {
+        super(isAsync);
+        this.correlationId = correlationId;
+        this.transactions = transactions;
+    }
+
+    /**
+     * Gets the correlation ID shared by all transactions of the batch.
+     * @return correlation ID (A new UUID).
+     */
+    public UUID getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * Gets the transactions of the batch.
+     * @return transactions, in the batch order.
+     */
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Gets the list of event handlers for this event.
+     *
+     * @return The handler list.
+     */
+    @Override
+    public @NotNull HandlerList getHandlers() {
+        return HANDLERS_LIST;
+    }
+
+    /**
+     * Gets the list of handlers for this event.
+     *
+     * @return The handler list.
+     */
+    public static HandlerList getHandlerList() {
+        return HANDLERS_LIST;
+    }
+
+    /**
+     * Checks if the event is cancelled.
+     *
+     * @return true if the event is cancelled, false otherwise.
+     */
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Sets the cancelled state of the event.
+     *
+     * @param cancel true to cancel the event, false otherwise.
+     */
+    @Override
+    public void setCancelled(boolean cancel) {
+        this.cancelled = cancel;
+    }
+}
@@ -10,7 +10,10 @@ import java.util.UUID;
 
 /**
  * Represents a Bukkit event when a new transaction is prepared.
- * This event is called before the transaction is saved to the database.
+ * This event is called before the transaction is saved to the database, on the thread requesting the transaction
+ * (asynchronous if it's not the main thread).
+ * For a set ({@link #isSet()}), the amount is the balance to set: the difference with the current balance is only
+ * known once the storage applies it, without any other operation of the account in between.
  * This event is cancellable.
  */
 @SuppressWarnings("unused")
@@ -21,6 +24,7 @@ public class MoneyPrepareOperation extends Event implements Cancellable {
     private final Map<String, Object> tags;
     private final double amount;
     private final String reason;
+    private final boolean set;
 
     /**
      * Constructs a new MoneyPrepareOperation with the specified transaction ID, account ID, tags, amount, and reason.
@@ -31,11 +35,39 @@ public class MoneyPrepareOperation extends Event implements Cancellable {
      */
     public MoneyPrepareOperation(UUID transactionId, Map<String, Object> tags,
                                  double amount, String reason) {
-        super();
+        this(transactionId, tags, amount, reason, false);
+    }
+
+    /**
+     * Constructs a new MoneyPrepareOperation with the specified transaction ID, tags, amount, and reason.
+     * @param transactionId The transaction ID.
+     * @param tags The tags.
+     * @param amount The amount.
+     * @param reason The reason.
+     * @param isAsync true if the event is called outside the main thread.
+     */
+    public MoneyPrepareOperation(UUID transactionId, Map<String, Object> tags,
+                                 double amount, String reason, boolean isAsync) {
+        this(transactionId, tags, amount, reason, isAsync, false);
+    }
+
+    /**
+     * Constructs a new MoneyPrepareOperation with the specified transaction ID, tags, amount, and reason.
+     * @param transactionId The transaction ID.
+     * @param tags The tags.
+     * @param amount The amount (The balance to set if set is true).
+     * @param reason The reason.
+     * @param isAsync true if the event is called outside the main thread.
+     * @param set true if the operation sets the balance.
+     */
+    public MoneyPrepareOperation(UUID transactionId, Map<String, Object> tags,
+                                 double amount, String reason, boolean isAsync, boolean set) {
+        super(isAsync);
         this.transactionId = transactionId;
         this.tags = tags;
         this.amount = amount;
         this.reason = reason;
+        this.set = set;
     }
 
     /**
@@ -56,12 +88,20 @@ public class MoneyPrepareOperation extends Event implements Cancellable {
 
     /**
      * Gets the amount of money involved in the transaction.
-     * @return The amount.
+     * @return The amount, or the balance to set if the transaction {@link #isSet()}.
      */
     public double getAmount() {
         return amount;
     }
 
+    /**
+     * Checks if the transaction sets the balance of its tag, instead of adding an amount.
+     * @return true if the amount is the balance to set.
+     */
+    public boolean isSet() {
+        return set;
+    }
+
     /**
      * Gets the reason for the transaction.
      * @return The reason.
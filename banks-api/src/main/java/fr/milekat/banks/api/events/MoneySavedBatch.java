@@ -0,0 +1,80 @@
+package fr.milekat.banks.api.events;
+
+import fr.milekat.banks.api.history.Transaction;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Represents a Bukkit event when transactions have been saved to the database.
+ * This event is called on the main thread, at most once per tick, with all transactions acknowledged by the storage
+ * since the previous call (Called before the {@link MoneySavedSuccessfully} event of each transaction).
+ */
+@SuppressWarnings("unused")
+public class MoneySavedBatch extends Event {
+    private static final HandlerList HANDLERS_LIST = new HandlerList();
+    private final List<Transaction> transactions;
+
+    /**
+     * Constructs a new MoneySavedBatch with the specified transactions.
+     * @param transactions The saved transactions.
+     */
+    public MoneySavedBatch(List<Transaction> transactions) {
+        super();
+        this.transactions = transactions;
+    }
+
+    /**
+     * Gets the saved transactions.
+     * @return transactions, in the saved order.
+     */
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Gets the correlation IDs of the batches with saved transactions in this event.
+     * Transactions of a batch are saved together, but they can be dispatched over several events.
+     * @return correlation IDs, in the saved order (empty if no transaction was part of a batch).
+     */
+    public Set<UUID> getCorrelationIds() {
+        Set<UUID> correlationIds = new LinkedHashSet<>();
+        transactions.stream().map(Transaction::correlationId).filter(Objects::nonNull).forEach(correlationIds::add);
+        return correlationIds;
+    }
+
+    /**
+     * Gets the saved transactions of a batch.
+     * @param correlationId The correlation ID of the batch.
+     * @return transactions of this batch, in the saved order.
+     */
+    public List<Transaction> getTransactions(@NotNull UUID correlationId) {
+        return transactions.stream().filter(transaction -> correlationId.equals(transaction.correlationId()))
+                .toList();
+    }
+
+    /**
+     * Gets the list of event handlers for this event.
+     *
+     * @return The handler list.
+     */
+    @Override
+    public @NotNull HandlerList getHandlers() {
+        return HANDLERS_LIST;
+    }
+
+    /**
+     * Gets the list of handlers for this event.
+     *
+     * @return The handler list.
+     */
+    public static HandlerList getHandlerList() {
+        return HANDLERS_LIST;
+    }
+}
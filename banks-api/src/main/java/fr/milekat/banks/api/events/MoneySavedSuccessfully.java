@@ -9,6 +9,8 @@ import java.util.UUID;
 
 /**
  * Represents a Bukkit event when a new transaction has been saved to the database.
+ * This event is called on the main thread, once the storage acknowledged the transaction.
+ * To handle many transactions at once, listen to {@link MoneySavedBatch} instead.
  */
 @SuppressWarnings("unused")
 public class MoneySavedSuccessfully extends Event {
@@ -0,0 +1,14 @@
+package fr.milekat.banks.api.history;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * A page of a transactions history, from the most recent to the oldest operation.
+ *
+ * @param transactions The operations of this page.
+ * @param cursor       The cursor of the next page, or null if this is the last page.
+ */
+public record HistoryPage(@NotNull List<Transaction> transactions, @Nullable String cursor) {}
@@ -0,0 +1,56 @@
+package fr.milekat.banks.api.history;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * Filters of a transactions history search, null filters are ignored.
+ *
+ * @param tagName  Only operations of the account with this tag name (requires the tag value).
+ * @param tagValue Only operations of the account with this tag value (requires the tag name).
+ * @param from     Only operations accepted at or after this time.
+ * @param to       Only operations accepted before this time.
+ * @param reason   Only operations with a reason matching this text.
+ */
+public record HistoryQuery(@Nullable String tagName, @Nullable Object tagValue,
+                           @Nullable Instant from, @Nullable Instant to, @Nullable String reason) {
+    public HistoryQuery {
+        if ((tagName == null) != (tagValue == null)) {
+            throw new IllegalArgumentException("Tag name and tag value must be both set, or both null.");
+        }
+    }
+
+    /**
+     * Creates a query of all operations of an account.
+     *
+     * @param tagName  Tag name.
+     * @param tagValue Tag value.
+     * @return The query.
+     */
+    public static @NotNull HistoryQuery ofTag(@NotNull String tagName, @NotNull Object tagValue) {
+        return new HistoryQuery(tagName, tagValue, null, null, null);
+    }
+
+    /**
+     * Checks if a time is in the time range filters.
+     *
+     * @param time The accepted time of an operation.
+     * @return true if the time is at or after the from filter, and before the to filter (when they are set).
+     */
+    public boolean matchesTime(@NotNull Instant time) {
+        return (from == null || !time.isBefore(from)) && (to == null || time.isBefore(to));
+    }
+
+    /**
+     * Checks if a reason matches the reason filter (case-insensitive search of the filter text in the reason).
+     *
+     * @param operationReason The reason of an operation.
+     * @return true if there is no reason filter, or if the reason matches.
+     */
+    public boolean matchesReason(@NotNull String operationReason) {
+        return reason == null || operationReason.toLowerCase(Locale.ROOT).contains(reason.toLowerCase(Locale.ROOT));
+    }
+}
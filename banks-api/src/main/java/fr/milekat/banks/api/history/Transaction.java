@@ -0,0 +1,29 @@
+package fr.milekat.banks.api.history;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A saved money operation, read back from the storage.
+ *
+ * @param transactionId The transaction id.
+ * @param tags          The tags of the accounts updated by this operation.
+ * @param amount        The amount added to these accounts (negative if money was removed).
+ * @param reason        The operation reason.
+ * @param timestamp     The time the operation was accepted.
+ * @param correlationId The id shared by all operations of a batch, or null if the operation was not part of a batch.
+ */
+public record Transaction(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount,
+                          @NotNull String reason, @NotNull Instant timestamp, @Nullable UUID correlationId) {
+    /**
+     * Constructs a transaction which was not part of a batch.
+     */
+    public Transaction(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount,
+                       @NotNull String reason, @NotNull Instant timestamp) {
+        this(transactionId, tags, amount, reason, timestamp, null);
+    }
+}
@@ -0,0 +1,12 @@
+package fr.milekat.banks.api.leaderboard;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An account of a leaderboard.
+ *
+ * @param rank     The account rank (1 for the richest account).
+ * @param tagValue The tag value of the account.
+ * @param balance  The account balance.
+ */
+public record RankedBalance(int rank, @NotNull String tagValue, int balance) {}
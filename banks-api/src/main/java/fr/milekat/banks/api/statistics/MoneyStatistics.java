@@ -0,0 +1,29 @@
+package fr.milekat.banks.api.statistics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Server-wide money statistics.
+ *
+ * @param circulation    The total money of all accounts of each tag name (tag names not loaded yet are missing).
+ * @param from           The start of the statistics period (operations accepted since this time).
+ * @param operations     The number of operations accepted during the period.
+ * @param inflow         The total money added during the period.
+ * @param outflow        The total money removed during the period (positive value).
+ * @param activeAccounts The estimated number of accounts updated during the period (about 3% error).
+ * @param reasons        The flows of each operation reason during the period.
+ */
+public record MoneyStatistics(@NotNull Map<String, Long> circulation, @NotNull Instant from, long operations,
+                              long inflow, long outflow, int activeAccounts, @NotNull Map<String, Flow> reasons) {
+    /**
+     * Money flows of an operation reason.
+     *
+     * @param operations The number of operations.
+     * @param inflow     The total money added.
+     * @param outflow    The total money removed (positive value).
+     */
+    public record Flow(long operations, long inflow, long outflow) {}
+}
@@ -1,17 +1,39 @@
 package fr.milekat.banks;
 
 import fr.milekat.banks.api.MileBanksIAPI;
+import fr.milekat.banks.api.backup.BackupResult;
+import fr.milekat.banks.api.backup.ImportMode;
+import fr.milekat.banks.api.batch.BatchResult;
+import fr.milekat.banks.api.batch.Operation;
 import fr.milekat.banks.api.exceptions.StorageException;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.api.leaderboard.RankedBalance;
+import fr.milekat.banks.api.statistics.MoneyStatistics;
+import fr.milekat.banks.storage.Backups;
+import fr.milekat.banks.storage.CacheManager;
+import fr.milekat.banks.storage.Leaderboard;
+import fr.milekat.banks.utils.TransactionIds;
 import fr.milekat.utils.storage.exceptions.StorageExecuteException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 public class API implements MileBanksIAPI {
+    //  Max history page size (Elasticsearch rejects searches over its max result window)
+    private static final int MAX_HISTORY_SIZE = 1000;
 
     @Override
     public boolean isDebug() {
@@ -24,11 +46,7 @@ public class API implements MileBanksIAPI {
             if (!Main.PLAYER_TAGS.containsKey(player)) {
                 return new HashMap<>();
             }
-            Map<String, Integer> tagsBalances = new HashMap<>();
-            for (Map.Entry<String, Object> entry : Main.PLAYER_TAGS.get(player).entrySet()) {
-                tagsBalances.put(entry.getKey(), Main.getStorage().getCacheBalance(entry.getKey(), entry.getValue()));
-            }
-            return tagsBalances;
+            return Main.getStorage().getMoneyFromTags(Main.PLAYER_TAGS.get(player));
         } catch (StorageExecuteException exception) {
             throw new StorageException(exception, exception.getMessage());
         }
@@ -76,6 +94,109 @@ public class API implements MileBanksIAPI {
         }
     }
 
+    @Override
+    public BatchResult applyBatch(@NotNull List<Operation> operations) throws StorageException {
+        if (operations.isEmpty()) {
+            throw new StorageException(new Throwable(), "Batch can't be empty.");
+        }
+        List<Operation> batch = new ArrayList<>(operations.size());
+        for (Operation operation : operations) {
+            if (operation.amount() == 0) {
+                throw new StorageException(new Throwable(), "Amount can't be 0.");
+            }
+            if (operation.tags().isEmpty()) {
+                throw new StorageException(new Throwable(), "Operation tags can't be empty.");
+            }
+            batch.add(new Operation(operation.tags(), operation.amount(), Objects.requireNonNullElse(
+                    operation.reason(), "No reason provided, using API")));
+        }
+        UUID correlationId = TransactionIds.next();
+        try {
+            return new BatchResult(correlationId, Main.getStorage().applyBatch(correlationId, batch));
+        } catch (StorageExecuteException exception) {
+            throw new StorageException(exception, exception.getMessage());
+        }
+    }
+
+    @Override
+    public List<RankedBalance> getTopBalances(@NotNull String tagName, int size,
+                                              int offset) throws IllegalArgumentException {
+        return getLeaderboard(tagName).getTop(size, offset);
+    }
+
+    @Override
+    public @Nullable RankedBalance getRank(@NotNull String tagName,
+                                           @NotNull Object tagValue) throws IllegalArgumentException {
+        return getLeaderboard(tagName).getRank(String.valueOf(tagValue));
+    }
+
+    private @NotNull Leaderboard getLeaderboard(@NotNull String tagName) throws IllegalArgumentException {
+        Leaderboard leaderboard = Main.LEADERBOARDS.get(tagName);
+        if (leaderboard == null) {
+            throw new IllegalArgumentException("No leaderboard for tag '" + tagName + "'.");
+        }
+        return leaderboard;
+    }
+
+    @Override
+    public BackupResult exportData(@NotNull File file) throws StorageException {
+        try {
+            return Backups.export(file);
+        } catch (StorageExecuteException exception) {
+            throw new StorageException(exception, exception.getMessage());
+        }
+    }
+
+    @Override
+    public BackupResult importData(@NotNull File file, @NotNull ImportMode mode) throws StorageException {
+        try {
+            return Backups.load(file, mode, Math.max(1, Main.getConfigs().getInt("storage.backup.chunk_size", 1000)));
+        } catch (StorageExecuteException exception) {
+            throw new StorageException(exception, exception.getMessage());
+        }
+    }
+
+    @Override
+    public MoneyStatistics getStatistics(@NotNull Duration period) throws IllegalStateException {
+        if (!Main.STATISTICS.isEnabled()) {
+            throw new IllegalStateException("Statistics are disabled.");
+        }
+        return Main.STATISTICS.getStatistics(period.toMillis());
+    }
+
+    @Override
+    public HistoryPage getHistory(@NotNull HistoryQuery query, int size,
+                                  @Nullable String cursor) throws StorageException {
+        try {
+            return Main.getStorage().getHistory(query, Math.max(1, Math.min(MAX_HISTORY_SIZE, size)), cursor);
+        } catch (StorageExecuteException exception) {
+            throw new StorageException(exception, exception.getMessage());
+        }
+    }
+
+    @Override
+    public void streamHistory(@NotNull HistoryQuery query,
+                              @NotNull Consumer<Transaction> consumer) throws StorageException {
+        try {
+            Main.getStorage().streamHistory(query, consumer);
+        } catch (StorageExecuteException exception) {
+            throw new StorageException(exception, exception.getMessage());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> awaitCommit(@NotNull UUID transactionId) {
+        CompletableFuture<Void> commit = new CompletableFuture<>();
+        Main.getStorage().awaitCommit(transactionId).whenComplete((ignored, throwable) -> {
+            if (throwable == null) {
+                commit.complete(null);
+            } else {
+                commit.completeExceptionally(new StorageException(throwable, throwable.getMessage()));
+            }
+        });
+        return commit;
+    }
+
     @Override
     public @Nullable Map<String, Object> getPlayerTags(@NotNull UUID uuid) {
         return Main.PLAYER_TAGS.getOrDefault(uuid, null);
@@ -87,5 +208,16 @@ public class API implements MileBanksIAPI {
             throw new IllegalArgumentException("Missing required tags ! Required: " + Main.PLAYER_TAGS.get(uuid));
         }
         Main.PLAYER_TAGS.put(uuid, tags);
+        CacheManager.warmCacheAsync(tags);
+    }
+
+    @Override
+    public @NotNull Executor getAsyncExecutor() {
+        return Main.getExecutor();
+    }
+
+    @Override
+    public @NotNull Executor getMainThreadExecutor() {
+        return Main.getMainThreadExecutor();
     }
 }
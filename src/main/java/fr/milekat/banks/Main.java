@@ -3,15 +3,20 @@ package fr.milekat.banks;
 import fr.milekat.banks.api.MileBanksAPI;
 import fr.milekat.banks.commands.MoneyCmd;
 import fr.milekat.banks.listeners.DefaultTags;
+import fr.milekat.banks.storage.AccountsCache;
+import fr.milekat.banks.storage.CacheManager;
+import fr.milekat.banks.storage.Leaderboards;
+import fr.milekat.banks.storage.MoneyEvents;
+import fr.milekat.banks.storage.Statistics;
 import fr.milekat.banks.storage.StorageImplementation;
 import fr.milekat.banks.storage.adapter.elasticsearch.ESStorage;
-import fr.milekat.banks.utils.BankAccount;
+import fr.milekat.banks.storage.adapter.jdbc.JdbcStorage;
+import fr.milekat.banks.storage.adapter.local.LocalStorage;
+import fr.milekat.banks.storage.adapter.memory.MemoryStorage;
 import fr.milekat.utils.Configs;
 import fr.milekat.utils.MileLogger;
-import fr.milekat.utils.storage.StorageConnection;
-import fr.milekat.utils.storage.StorageLoader;
-import fr.milekat.utils.storage.StorageVendor;
 import fr.milekat.utils.storage.exceptions.StorageLoadException;
+import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.PluginCommand;
@@ -22,7 +27,12 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main extends JavaPlugin {
     private static JavaPlugin plugin;
@@ -31,11 +41,23 @@ public class Main extends JavaPlugin {
     public static Boolean DEBUG = false;
     public static String PREFIX;
     private static StorageImplementation STORAGE;
-    public static long BANK_ACCOUNT_DELAY = TimeUnit.MILLISECONDS.convert(5L, TimeUnit.SECONDS);
-    public static Map<BankAccount, Date> BANK_ACCOUNTS_CACHE = new HashMap<>();
-    public static int BANK_ACCOUNTS_CACHE_SIZE = 1000;
+    public static AccountsCache BANK_ACCOUNTS_CACHE = new AccountsCache();
+    public static Leaderboards LEADERBOARDS = new Leaderboards();
+    public static Statistics STATISTICS = new Statistics();
+    public static MoneyEvents EVENTS = new MoneyEvents();
     public static final Map<String, Class<?>> TAGS = new HashMap<>();
     public static final Map<UUID, Map<String, Object>> PLAYER_TAGS = new HashMap<>();
+    private static ExecutorService EXECUTOR;
+    private static final Executor MAIN_THREAD_EXECUTOR = runnable -> {
+        if (Bukkit.isPrimaryThread()) {
+            runnable.run();
+        } else if (plugin == null || !plugin.isEnabled()) {
+            //  Tasks can't be scheduled by a disabled plugin
+            throw new RejectedExecutionException("MileBanks is disabled.");
+        } else {
+            Bukkit.getScheduler().runTask(plugin, runnable);
+        }
+    };
 
     @Override
     public void onEnable() {
@@ -50,6 +72,13 @@ public class Main extends JavaPlugin {
             this.onDisable();
             return;
         }
+        //  Load async executor
+        AtomicInteger threadId = new AtomicInteger();
+        EXECUTOR = Executors.newFixedThreadPool(Math.max(1, config.getInt("storage.async_threads", 4)), runnable -> {
+            Thread thread = new Thread(runnable, "MileBanks-Async-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
         //  Load storage
         try {
             reloadStorage();
@@ -76,9 +105,14 @@ public class Main extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        LEADERBOARDS.stop();
+        STATISTICS.stop();
         try {
             getStorage().disconnect();
         } catch (Exception ignored) {}
+        //  After the storage, to dispatch events of operations saved while disconnecting
+        EVENTS.stop();
+        if (EXECUTOR != null) EXECUTOR.shutdown();
     }
 
     @Contract(" -> new")
@@ -113,6 +147,22 @@ public class Main extends JavaPlugin {
         return STORAGE;
     }
 
+    /**
+     * Get the executor used to run storage operations outside the main thread
+     * @return async executor
+     */
+    public static Executor getExecutor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Get an executor running tasks on the server main thread (Tasks are rejected once the plugin is disabled)
+     * @return main thread executor
+     */
+    public static Executor getMainThreadExecutor() {
+        return MAIN_THREAD_EXECUTOR;
+    }
+
     /**
      * Get config file
      * @return Config file
@@ -153,29 +203,69 @@ public class Main extends JavaPlugin {
      * Reload storage
      */
     public static void reloadStorage() throws StorageLoadException {
+        LEADERBOARDS.stop();
+        LEADERBOARDS = new Leaderboards();
+        STATISTICS.stop();
+        STATISTICS = new Statistics();
         try {
             getStorage().disconnect();
         } catch (Exception ignored) {}
-        StorageConnection connection = new StorageLoader(config, logger).getLoadedConnection();
-        if (Objects.requireNonNull(connection.getVendor()) == StorageVendor.ELASTICSEARCH) {
-            STORAGE = new ESStorage(config);
-        } else {
-            throw new StorageLoadException("Unsupported storage type");
+        EVENTS.stop();
+        EVENTS = new MoneyEvents(config.getInt("storage.events.batch_size", 5000));
+        EVENTS.start();
+        switch (config.getString("storage.type", "ElasticSearch").toLowerCase(Locale.ROOT)) {
+            case "local" -> STORAGE = new LocalStorage(config);
+            case "jdbc" -> STORAGE = new JdbcStorage(config);
+            case "memory" -> STORAGE = new MemoryStorage(config);
+            case "elasticsearch" -> STORAGE = new ESStorage(config);
+            default -> throw new StorageLoadException("Unsupported storage type");
         }
         if (!STORAGE.checkStorages()) {
             throw new StorageLoadException("Storages are not loaded properly");
         }
-        if (config.getBoolean("storage.cache.enable", true)) {
-            Main.BANK_ACCOUNT_DELAY = TimeUnit.MILLISECONDS.convert(
-                config.getLong("storage.cache.time", 5L), TimeUnit.SECONDS);
-            logger.debug("Account cache delay set to " + Main.BANK_ACCOUNT_DELAY + "ms");
-            Main.BANK_ACCOUNTS_CACHE_SIZE = config.getInt("storage.cache.size", 1000);
-            logger.debug("Account cache size set to " + Main.BANK_ACCOUNTS_CACHE_SIZE);
+        if (config.getBoolean("storage.cache.enabled", true)) {
+            long delay = TimeUnit.NANOSECONDS.convert(config.getLong("storage.cache.time", 5L), TimeUnit.SECONDS);
+            long missingDelay = TimeUnit.NANOSECONDS.convert(
+                    config.getLong("storage.cache.missing_time", 1L), TimeUnit.SECONDS);
+            int size = config.getInt("storage.cache.size", 1000);
+            AccountsCache.RefreshAhead refreshAhead = null;
+            if (config.getBoolean("storage.cache.refresh_ahead.enabled", true)) {
+                refreshAhead = new AccountsCache.RefreshAhead(
+                        TimeUnit.NANOSECONDS.convert(config.getLong("storage.cache.refresh_ahead.soft_time", 4L),
+                                TimeUnit.SECONDS),
+                        TimeUnit.NANOSECONDS.convert(config.getLong("storage.cache.refresh_ahead.hard_time", 5L),
+                                TimeUnit.SECONDS),
+                        config.getInt("storage.cache.refresh_ahead.min_hits", 3));
+                logger.debug("Account cache refresh-ahead enabled");
+            }
+            Main.BANK_ACCOUNTS_CACHE = new AccountsCache(delay, missingDelay, size, refreshAhead,
+                    CacheManager::refreshCacheAccount);
+            logger.debug("Account cache delay set to " + TimeUnit.NANOSECONDS.toMillis(delay) + "ms");
+            logger.debug("Account cache size set to " + size);
         } else {
-            Main.BANK_ACCOUNT_DELAY = 0L;
+            Main.BANK_ACCOUNTS_CACHE = new AccountsCache();
             logger.debug("Accounts cache disabled");
         }
-        Main.BANK_ACCOUNTS_CACHE.clear();
+        List<String> leaderboards = config.getStringList("storage.leaderboards.tags");
+        if (!leaderboards.isEmpty()) {
+            LEADERBOARDS = new Leaderboards(leaderboards, TimeUnit.MILLISECONDS.convert(
+                    config.getLong("storage.leaderboards.reconcile_interval", 300L), TimeUnit.SECONDS));
+            LEADERBOARDS.start();
+            logger.debug("Leaderboards enabled for tags: " + leaderboards);
+        }
+        if (config.getBoolean("storage.statistics.enabled", false)) {
+            STATISTICS = new Statistics(new File(plugin.getDataFolder(), "statistics.json"),
+                    TimeUnit.MILLISECONDS.convert(config.getLong("storage.statistics.bucket_size", 3600L),
+                            TimeUnit.SECONDS),
+                    config.getInt("storage.statistics.retention", 168),
+                    config.getInt("storage.statistics.max_reasons", 100),
+                    TimeUnit.MILLISECONDS.convert(config.getLong("storage.statistics.persist_interval", 60L),
+                            TimeUnit.SECONDS),
+                    TimeUnit.MILLISECONDS.convert(config.getLong("storage.statistics.reconcile_interval", 300L),
+                            TimeUnit.SECONDS));
+            STATISTICS.start();
+            logger.debug("Money statistics enabled");
+        }
         logger.debug("Storage enable, API is now available");
     }
 
@@ -1,6 +1,13 @@
 package fr.milekat.banks.commands;
 
 import fr.milekat.banks.Main;
+import fr.milekat.banks.api.backup.BackupResult;
+import fr.milekat.banks.api.backup.ImportMode;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.api.statistics.MoneyStatistics;
+import fr.milekat.banks.storage.Backups;
 import fr.milekat.utils.McTools;
 import fr.milekat.utils.storage.exceptions.StorageExecuteException;
 import fr.milekat.utils.storage.exceptions.StorageLoadException;
@@ -13,14 +20,101 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class MoneyCmd implements TabExecutor {
+    private static final int HISTORY_PAGE_SIZE = 10;
+    private static final int STATISTICS_REASONS = 5;
+    private static final DateTimeFormatter BACKUP_DATE = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter HISTORY_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    //  Last history query and cursor of each sender, for "history next"
+    private final Map<String, HistorySession> historySessions = new ConcurrentHashMap<>();
+
     @Override
     public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command,
                              @NotNull String label, @NotNull String @NotNull [] args) {
-        if (args.length>=2) {
+        if (args.length>=1 && args[0].equalsIgnoreCase("history")) {
+            if (args.length==2 && args[1].equalsIgnoreCase("next")) {
+                HistorySession session = historySessions.get(sender.getName());
+                if (session == null || session.cursor() == null) {
+                    Main.message(sender, "&cNo more operations.");
+                    return true;
+                }
+                sendHistory(sender, session);
+            } else if (args.length>=3) {
+                if (!Main.TAGS.containsKey(args[1])) {
+                    Main.message(sender, "&cTag '" + args[1] + "' doesn't exist.");
+                    return true;
+                }
+                String reason = args.length >= 4 ? String.join(" ", Arrays.copyOfRange(args, 3, args.length)) : null;
+                sendHistory(sender, new HistorySession(
+                        new HistoryQuery(args[1], args[2], null, null, reason), null));
+            } else return sendHelp(sender, label);
+        } else if (args.length>=1 && args[0].equalsIgnoreCase("stats")) {
+            if (!Main.STATISTICS.isEnabled()) {
+                Main.message(sender, "&cStatistics are disabled.");
+                return true;
+            }
+            long hours = 24L;
+            if (args.length>=2) {
+                try {
+                    hours = Math.max(1L, Long.parseLong(args[1]));
+                } catch (NumberFormatException exception) {
+                    return sendHelp(sender, label);
+                }
+            }
+            sendStatistics(sender, Main.STATISTICS.getStatistics(TimeUnit.HOURS.toMillis(hours)));
+        } else if (args.length>=1 && args[0].equalsIgnoreCase("export")) {
+            String name = args.length >= 2 ? args[1] : "export-" + BACKUP_DATE.format(Instant.now()) + ".ndjson.gz";
+            File file = getBackupFile(name);
+            if (file == null) {
+                Main.message(sender, "&cInvalid file name '" + name + "'.");
+                return true;
+            }
+            Main.message(sender, "Exporting balances and transactions to " + file.getName() + "..");
+            runBackup(sender, "Export", () -> Backups.export(file));
+        } else if (args.length>=1 && args[0].equalsIgnoreCase("import")) {
+            if (args.length < 3) return sendHelp(sender, label);
+            File file = getBackupFile(args[1]);
+            if (file == null || !file.isFile()) {
+                Main.message(sender, "&cFile '" + args[1] + "' not found in the backups folder.");
+                return true;
+            }
+            ImportMode mode;
+            try {
+                mode = ImportMode.valueOf(args[2].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException exception) {
+                return sendHelp(sender, label);
+            }
+            Main.message(sender, "Importing " + mode.name().toLowerCase(Locale.ROOT) + " from " +
+                    file.getName() + "..");
+            runBackup(sender, "Import", () -> Backups.load(file, mode,
+                    Math.max(1, Main.getConfigs().getInt("storage.backup.chunk_size", 1000))));
+        } else if (args.length>=1 && args[0].equalsIgnoreCase("deadletters")) {
+            boolean replay = args.length>=2 && args[1].equalsIgnoreCase("replay");
+            //  Dead letters file and write-ahead log I/O
+            Main.getExecutor().execute(() -> {
+                try {
+                    String message = replay ?
+                            "Replayed " + Main.getStorage().replayDeadLetters() + " operation(s)." :
+                            Main.getStorage().getDeadLettersCount() + " rejected operation(s).";
+                    Main.getMainThreadExecutor().execute(() -> Main.message(sender, message));
+                } catch (StorageExecuteException exception) {
+                    Main.getMainThreadExecutor().execute(() ->
+                            Main.message(sender, "&cError: " + exception.getLocalizedMessage()));
+                    Main.getMileLogger().stack(exception.getStackTrace());
+                }
+            });
+        } else if (args.length>=2) {
             try {
                 MoneyAction moneyAction = MoneyAction.valueOf(args[0].toUpperCase(Locale.ROOT));
                 Map<String, Object> tags = new HashMap<>();
@@ -59,18 +153,20 @@ public class MoneyCmd implements TabExecutor {
                 }
                 switch (moneyAction) {
                     case GET -> {
+                        Map<String, Integer> balances;
+                        try {
+                            balances = Main.getStorage().getMoneyFromTags(tags);
+                        } catch (StorageExecuteException e) {
+                            Main.message(sender, "&cMoney not found for this tag.");
+                            return true;
+                        }
                         Main.message(sender, "Account(s):");
                         tags.forEach((key, value) -> {
                             sender.sendMessage(
                                     ChatColor.translateAlternateColorCodes('&',
                                             "&r - &e" + key + "&f: &b" + value));
-                            try {
-                                sender.sendMessage(ChatColor.translateAlternateColorCodes('&',
-                                        "&r  >&eBalance: &a" +
-                                                Main.getStorage().getCacheBalance(key, value)));
-                            } catch (StorageExecuteException e) {
-                                Main.message(sender, "&cMoney not found for this tag.");
-                            }
+                            sender.sendMessage(ChatColor.translateAlternateColorCodes('&',
+                                    "&r  >&eBalance: &a" + balances.get(key)));
                         });
                     }
                     case ADD -> {
@@ -117,6 +213,86 @@ public class MoneyCmd implements TabExecutor {
         return true;
     }
 
+    /**
+     * Search the next history page of this session in background, then send it to the sender
+     */
+    private void sendHistory(@NotNull CommandSender sender, @NotNull HistorySession session) {
+        Main.getExecutor().execute(() -> {
+            try {
+                HistoryPage page = Main.getStorage().getHistory(session.query(), HISTORY_PAGE_SIZE,
+                        session.cursor());
+                historySessions.put(sender.getName(), new HistorySession(session.query(), page.cursor()));
+                Main.getMainThreadExecutor().execute(() -> {
+                    if (page.transactions().isEmpty()) {
+                        Main.message(sender, "No operation found.");
+                        return;
+                    }
+                    Main.message(sender, "Operations of " + session.query().tagName() + " " +
+                            session.query().tagValue() + ":");
+                    for (Transaction transaction : page.transactions()) {
+                        sender.sendMessage(ChatColor.translateAlternateColorCodes('&', "&r - &7" +
+                                HISTORY_DATE.format(transaction.timestamp()) + " " +
+                                (transaction.amount() < 0 ? "&c" : "&a+") + transaction.amount() +
+                                " &f" + transaction.reason()));
+                    }
+                    if (page.cursor() != null) Main.message(sender, "&eMore operations: /money history next");
+                });
+            } catch (StorageExecuteException exception) {
+                Main.getMainThreadExecutor().execute(() ->
+                        Main.message(sender, "&cError: " + exception.getLocalizedMessage()));
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        });
+    }
+
+    /**
+     * Get a file of the backups folder
+     * @return the file, or null if the name is not a simple file name
+     */
+    private @Nullable File getBackupFile(@NotNull String name) {
+        if (name.isBlank() || name.contains("/") || name.contains("\\") || name.contains("..")) return null;
+        return new File(new File(Main.getInstance().getDataFolder(), "backups"), name);
+    }
+
+    /**
+     * Run an export or an import in background, then send its result to the sender
+     */
+    private void runBackup(@NotNull CommandSender sender, @NotNull String name, @NotNull BackupTask task) {
+        Main.getExecutor().execute(() -> {
+            try {
+                BackupResult result = task.run();
+                Main.getMainThreadExecutor().execute(() -> Main.message(sender, name + " done: " +
+                        result.balances() + " balance(s), " + result.transactions() + " transaction(s) in " +
+                        result.duration().toSeconds() + "s (" + Math.round(result.getRecordsPerSecond()) +
+                        " records/s)." + (result.failed() > 0 ? " &c" + result.failed() +
+                        " record(s) rejected by the storage, see logs." : "")));
+            } catch (StorageExecuteException exception) {
+                Main.getMainThreadExecutor().execute(() ->
+                        Main.message(sender, "&cError: " + exception.getLocalizedMessage()));
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        });
+    }
+
+    /**
+     * Send money statistics to the sender
+     */
+    private void sendStatistics(@NotNull CommandSender sender, @NotNull MoneyStatistics statistics) {
+        Main.message(sender, "Money statistics since " + HISTORY_DATE.format(statistics.from()) + ":");
+        statistics.circulation().forEach((tagName, total) ->
+                Main.message(sender, "&r - &7In circulation (" + tagName + "): &f" + total));
+        Main.message(sender, "&r - &7Operations: &f" + statistics.operations() + " &7(" +
+                statistics.activeAccounts() + " active account(s))");
+        Main.message(sender, "&r - &7Inflow: &a+" + statistics.inflow() + " &7Outflow: &c-" + statistics.outflow());
+        statistics.reasons().entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, MoneyStatistics.Flow> reason) ->
+                        reason.getValue().inflow() + reason.getValue().outflow()).reversed())
+                .limit(STATISTICS_REASONS)
+                .forEach(reason -> Main.message(sender, "&r - &f" + reason.getKey() + "&7: " +
+                        reason.getValue().operations() + " operation(s), &a+" + reason.getValue().inflow() +
+                        " &c-" + reason.getValue().outflow()));
+    }
+
     private boolean sendHelp(@NotNull CommandSender sender, String lbl){
         Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
                 "messages.command.money.help.add",
@@ -146,6 +322,30 @@ public class MoneyCmd implements TabExecutor {
                 "messages.command.money.help.tags.get",
                 "tags get <tag-name> <tag-value>&r: &eGet a tag balance"
         ));
+        Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
+                "messages.command.money.help.history",
+                "history <tag-name> <tag-value> [reason]&r: &eShow the last operations of a tag balance"
+        ));
+        Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
+                "messages.command.money.help.history_next",
+                "history next&r: &eShow the next page of operations"
+        ));
+        Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
+                "messages.command.money.help.stats",
+                "stats [hours]&r: &eShow money statistics of the last hours (24 by default)"
+        ));
+        Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
+                "messages.command.money.help.export",
+                "export [file]&r: &eExport balances and transactions in the backups folder"
+        ));
+        Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
+                "messages.command.money.help.import",
+                "import <file> <balances|transactions>&r: &eImport balances or transactions of an export file"
+        ));
+        Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
+                "messages.command.money.help.deadletters",
+                "deadletters [replay]&r: &eCount or replay operations rejected by the storage"
+        ));
         Main.message(sender, "&6/" + lbl + " " + Main.getConfigs().getMessage(
                 "messages.command.money.help.reload",
                 "reload&r: &eReload the plugin"
@@ -162,7 +362,8 @@ public class MoneyCmd implements TabExecutor {
     public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command,
                                       @NotNull String label, @NotNull String @NotNull [] args) {
         if (args.length <= 1) {
-            return McTools.getTabArgs(args[0], Arrays.asList("add", "remove", "get", "set", "tags", "reload", "help"));
+            return McTools.getTabArgs(args[0], Arrays.asList("add", "remove", "get", "set", "tags", "history",
+                    "stats", "export", "import", "deadletters", "reload", "help"));
         } else if (args.length == 2) {
             if (args[0].equalsIgnoreCase("add") || args[0].equalsIgnoreCase("remove") ||
                     args[0].equalsIgnoreCase("set") || args[0].equalsIgnoreCase("get")) {
@@ -170,15 +371,43 @@ public class MoneyCmd implements TabExecutor {
                         .collect(Collectors.toList()));
             } else if (args[0].equalsIgnoreCase("tags")) {
                 return McTools.getTabArgs(args[1], Arrays.asList("add", "remove", "set", "get"));
+            } else if (args[0].equalsIgnoreCase("history")) {
+                List<String> options = new ArrayList<>(Main.TAGS.keySet());
+                options.add("next");
+                return McTools.getTabArgs(args[1], options);
+            } else if (args[0].equalsIgnoreCase("import")) {
+                String[] files = new File(Main.getInstance().getDataFolder(), "backups").list(
+                        (dir, name) -> name.endsWith(".ndjson.gz"));
+                return McTools.getTabArgs(args[1], files == null ? List.of() : Arrays.asList(files));
+            } else if (args[0].equalsIgnoreCase("stats")) {
+                return McTools.getTabArgs(args[1], List.of("1", "24", "168"));
+            } else if (args[0].equalsIgnoreCase("deadletters")) {
+                return McTools.getTabArgs(args[1], List.of("replay"));
             }
         } else if (args.length == 3) {
             if (args[0].equalsIgnoreCase("tags")) {
                 return McTools.getTabArgs(args[2], new ArrayList<>(Main.TAGS.keySet()));
+            } else if (args[0].equalsIgnoreCase("import")) {
+                return McTools.getTabArgs(args[2], List.of("balances", "transactions"));
             }
         }
         return null;
     }
 
+    /**
+     * History query of a sender
+     * @param cursor cursor of the next page (null if there is no next page, or for the first page)
+     */
+    private record HistorySession(@NotNull HistoryQuery query, @Nullable String cursor) {}
+
+    /**
+     * An export or an import
+     */
+    @FunctionalInterface
+    private interface BackupTask {
+        @NotNull BackupResult run() throws StorageExecuteException;
+    }
+
     enum MoneyAction {
         ADD,
         REMOVE,
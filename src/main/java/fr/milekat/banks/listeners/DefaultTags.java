@@ -1,6 +1,7 @@
 package fr.milekat.banks.listeners;
 
 import fr.milekat.banks.Main;
+import fr.milekat.banks.storage.CacheManager;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
@@ -13,10 +14,11 @@ public class DefaultTags implements Listener {
 
     @EventHandler
     public void setPlayerTags(@NotNull PlayerJoinEvent event) {
-        Main.PLAYER_TAGS.put(event.getPlayer().getUniqueId(), Map.of(
+        Map<String, Object> tags = Map.of(
                 "player-name", event.getPlayer().getName(),
-                "player-uuid", event.getPlayer().getUniqueId().toString())
-        );
+                "player-uuid", event.getPlayer().getUniqueId().toString());
+        Main.PLAYER_TAGS.put(event.getPlayer().getUniqueId(), tags);
+        CacheManager.warmCacheAsync(tags);
     }
 
     @EventHandler
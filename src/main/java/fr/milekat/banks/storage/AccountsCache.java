@@ -0,0 +1,194 @@
+package fr.milekat.banks.storage;
+
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.banks.utils.BankAccount;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe accounts balances cache, keyed by {@link AccountKey}.
+ * Entries expire after a fixed delay (using {@link System#nanoTime()}) and the least recently used entry is
+ * evicted when the cache is full.
+ * If refresh-ahead is enabled, hot accounts (read at least minHits times) are refreshed in background once older
+ * than the soft delay, and are still served from the cache until the hard delay.
+ */
+public class AccountsCache {
+    private final long expireNanos;
+    private final long missingExpireNanos;
+    private final int maxSize;
+    private final @Nullable RefreshAhead refreshAhead;
+    private final @NotNull Consumer<AccountKey> refresher;
+    private final LinkedHashMap<AccountKey, CachedBalance> accounts;
+
+    /**
+     * @param expireNanos entry lifetime in nanoseconds (0 = cache disabled)
+     * @param missingExpireNanos lifetime in nanoseconds of not found accounts (0 = not cached)
+     * @param maxSize max number of cached accounts (0 = unlimited)
+     * @param refreshAhead refresh-ahead settings of hot accounts (null = disabled)
+     * @param refresher task used to reload an account in background
+     */
+    public AccountsCache(long expireNanos, long missingExpireNanos, int maxSize,
+                         @Nullable RefreshAhead refreshAhead, @NotNull Consumer<AccountKey> refresher) {
+        this.expireNanos = expireNanos;
+        this.missingExpireNanos = Math.min(missingExpireNanos, expireNanos);
+        this.maxSize = maxSize;
+        this.refreshAhead = refreshAhead;
+        this.refresher = refresher;
+        this.accounts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<AccountKey, CachedBalance> eldest) {
+                return (AccountsCache.this.maxSize > 0 && size() > AccountsCache.this.maxSize) ||
+                        isExpired(eldest.getValue(), System.nanoTime());
+            }
+        };
+    }
+
+    /**
+     * Disabled cache
+     */
+    public AccountsCache() {
+        this(0L, 0L, 0, null, key -> {});
+    }
+
+    /**
+     * Check if the cache is enabled
+     * @return true if accounts are cached
+     */
+    public boolean isEnabled() {
+        return expireNanos > 0;
+    }
+
+    /**
+     * Get a cached balance, and schedule a background refresh if the account is hot and near expiry
+     * @return the balance, or null if the account is not cached (or expired)
+     */
+    public @Nullable Integer getBalance(@NotNull String tagName, @NotNull Object tagValue) {
+        if (!isEnabled()) return null;
+        AccountKey key = new AccountKey(tagName, tagValue);
+        long now = System.nanoTime();
+        boolean refresh = false;
+        int balance;
+        synchronized (accounts) {
+            CachedBalance cached = accounts.get(key);
+            if (cached == null) return null;
+            if (isExpired(cached, now)) {
+                accounts.remove(key);
+                return null;
+            }
+            cached.hits++;
+            if (refreshAhead != null && !cached.refreshing && isHot(cached) &&
+                    now - cached.loadedAt >= refreshAhead.softNanos()) {
+                cached.refreshing = true;
+                refresh = true;
+            }
+            balance = cached.balance;
+        }
+        if (refresh) refresher.accept(key);
+        return balance;
+    }
+
+    /**
+     * Check if an account is cached and not expired (without counting it as a read)
+     */
+    public boolean contains(@NotNull AccountKey key) {
+        if (!isEnabled()) return false;
+        synchronized (accounts) {
+            CachedBalance cached = accounts.get(key);
+            return cached != null && !isExpired(cached, System.nanoTime());
+        }
+    }
+
+    /**
+     * Add (or replace) an account in the cache
+     */
+    public void put(@NotNull BankAccount account) {
+        if (!isEnabled()) return;
+        put(new AccountKey(account.tagName(), account.tagValue()), account.balance(), false);
+    }
+
+    /**
+     * Cache an account which doesn't exist yet in storage (with a balance of 0), for a shorter time
+     */
+    public void putMissing(@NotNull AccountKey key) {
+        if (!isEnabled() || missingExpireNanos <= 0) return;
+        put(key, 0, true);
+    }
+
+    private void put(@NotNull AccountKey key, int balance, boolean missing) {
+        CachedBalance cached = new CachedBalance(balance, System.nanoTime(), missing);
+        synchronized (accounts) {
+            CachedBalance previous = accounts.put(key, cached);
+            //  Keep the popularity of refreshed accounts
+            if (previous != null && !missing) cached.hits = previous.hits;
+        }
+    }
+
+    /**
+     * Remove an account from the cache
+     */
+    public void invalidate(@NotNull AccountKey key) {
+        synchronized (accounts) {
+            accounts.remove(key);
+        }
+    }
+
+    /**
+     * Remove all cached accounts
+     */
+    public void clear() {
+        synchronized (accounts) {
+            accounts.clear();
+        }
+    }
+
+    /**
+     * Get the number of cached accounts (including expired accounts not yet evicted)
+     */
+    public int size() {
+        synchronized (accounts) {
+            return accounts.size();
+        }
+    }
+
+    private boolean isHot(@NotNull CachedBalance cached) {
+        return refreshAhead != null && !cached.missing && cached.hits >= refreshAhead.minHits();
+    }
+
+    private boolean isExpired(@NotNull CachedBalance cached, long now) {
+        long lifetime;
+        if (cached.missing) {
+            lifetime = missingExpireNanos;
+        } else if (isHot(cached)) {
+            lifetime = Math.max(expireNanos, refreshAhead.hardNanos());
+        } else {
+            lifetime = expireNanos;
+        }
+        return now - cached.loadedAt >= lifetime;
+    }
+
+    /**
+     * Refresh-ahead settings
+     * @param softNanos age in nanoseconds after which a hot account is refreshed in background
+     * @param hardNanos age in nanoseconds after which a hot account can't be served anymore
+     * @param minHits number of reads needed to consider an account as hot
+     */
+    public record RefreshAhead(long softNanos, long hardNanos, int minHits) {}
+
+    private static final class CachedBalance {
+        private final int balance;
+        private final long loadedAt;
+        private final boolean missing;
+        private int hits = 0;
+        private boolean refreshing = false;
+
+        private CachedBalance(int balance, long loadedAt, boolean missing) {
+            this.balance = balance;
+            this.loadedAt = loadedAt;
+            this.missing = missing;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package fr.milekat.banks.storage;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.milekat.banks.Main;
+import fr.milekat.banks.api.backup.BackupResult;
+import fr.milekat.banks.api.backup.ImportMode;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Export and import of balances and transactions, in gzip compressed NDJSON files (one JSON record per line).
+ * Files are written and read incrementally: transactions are read from the storage by pages, and imported by chunks
+ * (each chunk is saved before reading the next one), so records are never all loaded in memory.
+ */
+public class Backups {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> TAGS_TYPE = new TypeReference<>() {};
+    private static final int BUFFER_SIZE = 65536;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5L);
+
+    /**
+     * Export balances of all tags, then all saved transactions (from the oldest to the most recent)
+     * @param file export file, replaced once the export is complete
+     */
+    public static @NotNull BackupResult export(@NotNull File file) throws StorageExecuteException {
+        Progress progress = new Progress("Export");
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new StorageExecuteException(new Throwable(), "Can't create folder " + folder.getPath());
+        }
+        File temporary = new File(folder, file.getName() + ".tmp");
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(new GZIPOutputStream(
+                new FileOutputStream(temporary), BUFFER_SIZE))) {
+            for (String tagName : new ArrayList<>(Main.TAGS.keySet())) {
+                for (Map.Entry<String, Integer> balance : Main.getStorage().getTagBalances(tagName).entrySet()) {
+                    generator.writeStartObject();
+                    generator.writeStringField("type", "balance");
+                    generator.writeStringField("tagName", tagName);
+                    generator.writeStringField("tagValue", balance.getKey());
+                    generator.writeNumberField("amount", balance.getValue());
+                    generator.writeEndObject();
+                    generator.writeRaw('\n');
+                    progress.balance();
+                }
+            }
+            try {
+                Main.getStorage().streamHistory(new HistoryQuery(null, null, null, null, null), transaction -> {
+                    try {
+                        generator.writeStartObject();
+                        generator.writeStringField("type", "transaction");
+                        generator.writeStringField("transactionId", transaction.transactionId().toString());
+                        generator.writeObjectField("tags", transaction.tags());
+                        generator.writeNumberField("amount", transaction.amount());
+                        generator.writeStringField("reason", transaction.reason());
+                        generator.writeStringField("timestamp", transaction.timestamp().toString());
+                        if (transaction.correlationId() != null) {
+                            generator.writeStringField("correlationId", transaction.correlationId().toString());
+                        }
+                        generator.writeEndObject();
+                        generator.writeRaw('\n');
+                    } catch (IOException exception) {
+                        throw new UncheckedIOException(exception);
+                    }
+                    progress.transaction();
+                });
+            } catch (UncheckedIOException exception) {
+                throw exception.getCause();
+            }
+        } catch (IOException exception) {
+            if (!temporary.delete()) Main.getMileLogger().debug("Can't delete " + temporary.getName());
+            throw new StorageExecuteException(exception, "Error while trying to write export file.");
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to write export file.");
+        }
+        return progress.done();
+    }
+
+    /**
+     * Import records of an export file, by chunks (each chunk is saved before reading the next one).
+     * Records rejected by the storage, and transactions already saved (same transaction id), are not imported:
+     * they are counted as failed in the result, so importing the same file again doesn't apply it twice.
+     * @param mode records to import
+     * @param chunkSize number of records of a chunk
+     */
+    public static @NotNull BackupResult load(@NotNull File file, @NotNull ImportMode mode, int chunkSize)
+            throws StorageExecuteException {
+        if (!file.isFile()) throw new StorageExecuteException(new Throwable(), "Import file not found.");
+        Progress progress = new Progress("Import");
+        List<MoneyOperation> operations = new ArrayList<>(chunkSize);
+        List<UUID> pending = new ArrayList<>(chunkSize);
+        try (MappingIterator<JsonNode> records = MAPPER.readerFor(JsonNode.class).readValues(
+                new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            while (records.hasNextValue()) {
+                JsonNode record = records.nextValue();
+                String type = record.path("type").asText();
+                if (mode == ImportMode.BALANCES && type.equals("balance")) {
+                    String tagName = record.path("tagName").asText();
+                    pending.add(Main.getStorage().setMoneyToTag(tagName, getTagValue(tagName, record.path("tagValue")),
+                            record.path("amount").asInt(), "Import"));
+                    if (pending.size() >= chunkSize) awaitBalances(pending, progress);
+                } else if (mode == ImportMode.TRANSACTIONS && type.equals("transaction")) {
+                    JsonNode correlationId = record.get("correlationId");
+                    operations.add(new MoneyOperation(UUID.fromString(record.path("transactionId").asText()),
+                            MAPPER.convertValue(record.path("tags"), TAGS_TYPE), record.path("amount").asInt(),
+                            record.path("reason").asText(),
+                            Instant.parse(record.path("timestamp").asText()).toEpochMilli(),
+                            correlationId == null ? null : UUID.fromString(correlationId.asText())));
+                    if (operations.size() >= chunkSize) importChunk(operations, progress);
+                }
+            }
+            importChunk(operations, progress);
+            awaitBalances(pending, progress);
+        } catch (IOException | RuntimeException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to read import file (" +
+                    progress.count() + " record(s) imported).");
+        }
+        return progress.done();
+    }
+
+    /**
+     * Tag value of a balance record (exported as text), converted to the type of its tag
+     */
+    private static @NotNull Object getTagValue(@NotNull String tagName, @NotNull JsonNode tagValue) {
+        return MAPPER.convertValue(tagValue, Main.TAGS.getOrDefault(tagName, String.class));
+    }
+
+    private static void importChunk(@NotNull List<MoneyOperation> operations, @NotNull Progress progress)
+            throws StorageExecuteException {
+        if (operations.isEmpty()) return;
+        List<UUID> transactionIds = new ArrayList<>(Main.getStorage().importOperations(operations));
+        //  Operations not accepted by the storage (already imported, or rejected) are counted as failed
+        int skipped = operations.size() - transactionIds.size();
+        if (skipped > 0) {
+            Main.getMileLogger().warning(skipped + " operation(s) already saved or rejected by the storage, " +
+                    "not imported.");
+        }
+        int failed = skipped + await(transactionIds);
+        progress.transactions(operations.size() - failed, failed);
+        operations.clear();
+    }
+
+    private static void awaitBalances(@NotNull List<UUID> transactionIds, @NotNull Progress progress)
+            throws StorageExecuteException {
+        int count = transactionIds.size();
+        int failed = await(transactionIds);
+        progress.balances(count - failed, failed);
+    }
+
+    /**
+     * Wait until operations are saved in storage, then clear the list.
+     * Rejected operations are not imported (with Elasticsearch, they are moved to dead letters after their retries,
+     * and can be replayed from there).
+     * @return number of rejected operations
+     */
+    private static int await(@NotNull List<UUID> transactionIds) throws StorageExecuteException {
+        int failed = 0;
+        Throwable error = null;
+        for (UUID transactionId : transactionIds) {
+            try {
+                Main.getStorage().awaitCommit(transactionId).get();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new StorageExecuteException(exception, "Interrupted while waiting imported operations save");
+            } catch (ExecutionException exception) {
+                failed++;
+                if (error == null) error = exception.getCause();
+            }
+        }
+        if (error != null) {
+            Main.getMileLogger().warning(failed + " imported operation(s) rejected by the storage, not imported: " +
+                    error.getMessage());
+        }
+        transactionIds.clear();
+        return failed;
+    }
+
+    /**
+     * Count records, and log the throughput periodically
+     */
+    private static final class Progress {
+        private final String name;
+        private final long start = System.nanoTime();
+        private long lastLog = start;
+        private long balances = 0L;
+        private long transactions = 0L;
+        private long failed = 0L;
+
+        private Progress(@NotNull String name) {
+            this.name = name;
+        }
+
+        private void balance() {
+            balances++;
+            log();
+        }
+
+        private void transaction() {
+            transactions++;
+            log();
+        }
+
+        private void balances(int imported, int failed) {
+            balances += imported;
+            this.failed += failed;
+            log();
+        }
+
+        private void transactions(int imported, int failed) {
+            transactions += imported;
+            this.failed += failed;
+            log();
+        }
+
+        private long count() {
+            return balances + transactions;
+        }
+
+        private void log() {
+            long now = System.nanoTime();
+            if (now - lastLog < PROGRESS_INTERVAL_NANOS) return;
+            lastLog = now;
+            Main.getMileLogger().info(name + ": " + balances + " balance(s), " + transactions +
+                    " transaction(s) (" + Math.round(count() * 1e9d / (now - start)) + " records/s)");
+        }
+
+        private @NotNull BackupResult done() {
+            BackupResult result = new BackupResult(balances, transactions, failed,
+                    Duration.ofNanos(System.nanoTime() - start));
+            Main.getMileLogger().info(name + " done: " + balances + " balance(s), " + transactions +
+                    " transaction(s) in " + result.duration().toSeconds() + "s (" +
+                    Math.round(result.getRecordsPerSecond()) + " records/s)" +
+                    (failed > 0 ? ", " + failed + " record(s) rejected" : ""));
+            return result;
+        }
+    }
+}
@@ -1,56 +1,80 @@
 package fr.milekat.banks.storage;
 
 import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.AccountKey;
 import fr.milekat.banks.utils.BankAccount;
 import fr.milekat.utils.storage.exceptions.StorageExecuteException;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.*;
+import java.util.Map;
 
 public interface CacheManager {
 
     default int getCacheBalance(@NotNull String tagName, @NotNull Object tagValue) throws StorageExecuteException {
-        if (Main.BANK_ACCOUNT_DELAY == 0) return Main.getStorage().getMoneyFromTag(tagName, tagValue);
-        Main.getMileLogger().debug("Get cache account for tag: " + tagName + ".");
-        Optional<Map.Entry<BankAccount, Date>> optionalAccount = Main.BANK_ACCOUNTS_CACHE.entrySet()
-                .stream()
-                .filter(entry -> entry.getKey().tagName().equals(tagName))
-                .filter(entry -> entry.getKey().tagValue().equals(tagValue))
-                .filter(entry -> entry.getValue().getTime() + Main.BANK_ACCOUNT_DELAY > new Date().getTime())
-                .findFirst();
-        if (optionalAccount.isPresent()) {
-            Main.getMileLogger().debug("Account with tags: " + tagName + " found.");
-            return optionalAccount.get().getKey().balance();
-        } else  {
-            Main.getMileLogger().debug("Account with tags: " + tagName + " not found in cache, try to search it.");
-            return Main.getStorage().getMoneyFromTag(tagName, tagValue);
+        Integer balance = Main.BANK_ACCOUNTS_CACHE.getBalance(tagName, tagValue);
+        if (balance != null) {
+            if (Main.DEBUG) Main.getMileLogger().debug("Account with tags: " + tagName + " found.");
+        } else {
+            if (Main.DEBUG) Main.getMileLogger().debug("Account with tags: " + tagName +
+                    " not found in cache, try to search it.");
+            balance = Main.getStorage().getMoneyFromTag(tagName, tagValue);
         }
+        return balance + getPendingBalance(tagName, tagValue);
     }
 
-    static void addCacheAccount(@NotNull Map<BankAccount, Date> cache, @NotNull BankAccount account) {
-        if (Main.BANK_ACCOUNT_DELAY == 0) return;
-        if (cache.size() >= Main.BANK_ACCOUNTS_CACHE_SIZE) cleanCache(cache);
-        List<BankAccount> accounts = new ArrayList<>(cache.keySet());
-        if (accounts.stream().anyMatch(loop -> loop.tagName().equals(account.tagName()) &&
-                loop.tagValue().equals(account.tagValue()))) {
-            Map<BankAccount, Date> tempCache = new HashMap<>(cache);
-            cache.keySet().stream()
-                    .filter(loop -> loop.tagName().equals(account.tagName()))
-                    .filter(loop -> loop.tagValue().equals(account.tagValue()))
-                    .forEach(tempCache::remove);
-            tempCache.put(account, new Date());
-            cache = new HashMap<>(tempCache);
-        } else {
-            cache.put(account, new Date());
+    /**
+     * Get the sum of accepted operations not yet included in the stored balance of this account
+     * @return pending amount to apply over the stored balance
+     */
+    default int getPendingBalance(@NotNull String tagName, @NotNull Object tagValue) {
+        return 0;
+    }
+
+    /**
+     * Load all accounts of these tags in the cache, if not already cached
+     * @param tags tags of accounts to load
+     */
+    default void warmCache(@NotNull Map<String, Object> tags) throws StorageExecuteException {
+        if (!Main.BANK_ACCOUNTS_CACHE.isEnabled()) return;
+        for (Map.Entry<String, Object> tag : tags.entrySet()) {
+            if (!Main.BANK_ACCOUNTS_CACHE.contains(new AccountKey(tag.getKey(), tag.getValue()))) {
+                Main.getStorage().getMoneyFromTag(tag.getKey(), tag.getValue());
+            }
         }
-        Main.BANK_ACCOUNTS_CACHE = cache;
     }
 
-    private static void cleanCache(@NotNull Map<BankAccount, Date> cache) {
-        if (Main.BANK_ACCOUNTS_CACHE_SIZE == 0 || Main.BANK_ACCOUNT_DELAY == 0) return;
-        new HashMap<>(cache).entrySet().stream()
-                .filter(date -> date.getValue().getTime() + Main.BANK_ACCOUNT_DELAY < new Date().getTime())
-                .map(Map.Entry::getKey)
-                .forEach(cache::remove);
+    /**
+     * Load in background all accounts of these tags in the cache (Used when player tags are set)
+     */
+    static void warmCacheAsync(@NotNull Map<String, Object> tags) {
+        if (!Main.BANK_ACCOUNTS_CACHE.isEnabled() || !Main.getInstance().isEnabled()) return;
+        Main.getExecutor().execute(() -> {
+            try {
+                Main.getStorage().warmCache(tags);
+            } catch (StorageExecuteException exception) {
+                Main.getMileLogger().warning("Error while trying to load accounts in cache.");
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        });
+    }
+
+    static void addCacheAccount(@NotNull BankAccount account) {
+        Main.BANK_ACCOUNTS_CACHE.put(account);
+    }
+
+    /**
+     * Reload an account balance in background (Used by the cache refresh-ahead)
+     */
+    static void refreshCacheAccount(@NotNull AccountKey key) {
+        if (!Main.getInstance().isEnabled()) return;
+        Main.getExecutor().execute(() -> {
+            try {
+                Main.getStorage().getMoneyFromTag(key.tagName(), key.tagValue());
+                if (Main.DEBUG) Main.getMileLogger().debug("Account with tags: " + key.tagName() + " refreshed.");
+            } catch (StorageExecuteException exception) {
+                Main.getMileLogger().warning("Error while trying to refresh account: " + key.tagName() + ".");
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        });
     }
 }
@@ -0,0 +1,208 @@
+package fr.milekat.banks.storage;
+
+import fr.milekat.banks.api.leaderboard.RankedBalance;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Accounts of a tag name ordered by balance (richest first, then by tag value).
+ * Accounts are kept in a treap (randomized binary search tree) where each node knows the size of its subtree,
+ * so updates, rank lookups and reading a page of the leaderboard are O(log n).
+ */
+public class Leaderboard {
+    private final Map<String, Integer> balances = new HashMap<>();
+    private Node root;
+    private boolean seeded = false;
+    //  Amounts applied to accounts while stored balances are read (null if no read is running)
+    private @Nullable Map<String, Integer> reading;
+
+    /**
+     * Apply an operation amount to an account (Ignored until the leaderboard is seeded, unless stored balances are
+     * being read)
+     */
+    public synchronized void add(@NotNull String tagValue, int amount) {
+        if (reading != null) reading.merge(tagValue, amount, Integer::sum);
+        if (!seeded) return;
+        set(tagValue, balances.getOrDefault(tagValue, 0) + amount);
+    }
+
+    /**
+     * Start reading balances from the storage, accounts changed until the update are tracked
+     */
+    public synchronized void beginUpdate() {
+        reading = new HashMap<>();
+    }
+
+    /**
+     * Stop tracking changed accounts, stored balances can't be read
+     */
+    public synchronized void cancelUpdate() {
+        reading = null;
+    }
+
+    /**
+     * Update balances of accounts with balances read from the storage since {@link #beginUpdate()}, the leaderboard
+     * is now seeded. Accounts changed during the read keep their balance, the stored one may not include the last
+     * operations (They are reconciled by the next update). Before the first seed, amounts applied during the read
+     * are added to the stored balances.
+     */
+    public synchronized void update(@NotNull Map<String, Integer> stored) {
+        Map<String, Integer> changed = reading != null ? reading : Map.of();
+        reading = null;
+        stored.forEach((tagValue, balance) -> {
+            Integer amount = changed.get(tagValue);
+            if (amount == null) {
+                set(tagValue, balance);
+            } else if (!seeded) {
+                set(tagValue, balance + amount);
+            }
+        });
+        if (!seeded) {
+            //  Accounts created during the read
+            changed.forEach((tagValue, amount) -> {
+                if (!stored.containsKey(tagValue)) set(tagValue, amount);
+            });
+        }
+        seeded = true;
+    }
+
+    public synchronized boolean isSeeded() {
+        return seeded;
+    }
+
+    public synchronized int size() {
+        return balances.size();
+    }
+
+    private void set(@NotNull String tagValue, int balance) {
+        Integer previous = balances.put(tagValue, balance);
+        if (previous != null) {
+            if (previous == balance) return;
+            Node[] before = split(root, previous, tagValue, false);
+            Node[] after = split(before[1], previous, tagValue, true);
+            root = merge(before[0], after[1]);
+        }
+        Node[] parts = split(root, balance, tagValue, false);
+        root = merge(merge(parts[0], new Node(tagValue, balance)), parts[1]);
+    }
+
+    /**
+     * Get a page of the leaderboard
+     * @param limit max number of accounts
+     * @param offset number of accounts to skip
+     */
+    public synchronized @NotNull List<RankedBalance> getTop(int limit, int offset) {
+        List<Node> nodes = new ArrayList<>(Math.max(0, Math.min(limit, balances.size() - offset)));
+        collect(root, Math.max(0, offset), limit, nodes);
+        List<RankedBalance> top = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            top.add(new RankedBalance(Math.max(0, offset) + i + 1, nodes.get(i).tagValue, nodes.get(i).balance));
+        }
+        return top;
+    }
+
+    /**
+     * Get the rank of an account
+     * @return ranked account, or null if the account is not in the leaderboard
+     */
+    public synchronized @Nullable RankedBalance getRank(@NotNull String tagValue) {
+        Integer balance = balances.get(tagValue);
+        if (balance == null) return null;
+        int rank = 1;
+        Node node = root;
+        while (node != null) {
+            if (compare(node, balance, tagValue) < 0) {
+                rank += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return new RankedBalance(rank, tagValue, balance);
+    }
+
+    /**
+     * In-order traversal of the tree, skipping the first nodes
+     */
+    private static void collect(@Nullable Node node, int skip, int limit, @NotNull List<Node> nodes) {
+        if (node == null || nodes.size() >= limit) return;
+        int leftSize = size(node.left);
+        if (skip < leftSize) collect(node.left, skip, limit, nodes);
+        if (nodes.size() < limit && skip <= leftSize) nodes.add(node);
+        collect(node.right, Math.max(0, skip - leftSize - 1), limit, nodes);
+    }
+
+    /**
+     * Split the tree in nodes ordered before the key, and the other nodes
+     * @param inclusive the node equal to the key is in the first tree
+     */
+    private static @NotNull Node[] split(@Nullable Node node, int balance, @NotNull String tagValue,
+                                         boolean inclusive) {
+        if (node == null) return new Node[2];
+        int comparison = compare(node, balance, tagValue);
+        if (comparison < 0 || inclusive && comparison == 0) {
+            Node[] parts = split(node.right, balance, tagValue, inclusive);
+            node.right = parts[0];
+            node.update();
+            parts[0] = node;
+            return parts;
+        }
+        Node[] parts = split(node.left, balance, tagValue, inclusive);
+        node.left = parts[1];
+        node.update();
+        parts[1] = node;
+        return parts;
+    }
+
+    /**
+     * Merge two trees, all nodes of the first tree are ordered before the nodes of the second one
+     */
+    private static @Nullable Node merge(@Nullable Node first, @Nullable Node second) {
+        if (first == null) return second;
+        if (second == null) return first;
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            first.update();
+            return first;
+        }
+        second.left = merge(first, second.left);
+        second.update();
+        return second;
+    }
+
+    /**
+     * Compare a node to an account: richest first, then by tag value
+     */
+    private static int compare(@NotNull Node node, int balance, @NotNull String tagValue) {
+        int comparison = Integer.compare(balance, node.balance);
+        return comparison != 0 ? comparison : node.tagValue.compareTo(tagValue);
+    }
+
+    private static int size(@Nullable Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static final class Node {
+        private final String tagValue;
+        private final int balance;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private int size = 1;
+        private Node left;
+        private Node right;
+
+        private Node(String tagValue, int balance) {
+            this.tagValue = tagValue;
+            this.balance = balance;
+        }
+
+        private void update() {
+            size = 1 + size(left) + size(right);
+        }
+    }
+}
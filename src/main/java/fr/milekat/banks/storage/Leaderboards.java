@@ -0,0 +1,108 @@
+package fr.milekat.banks.storage;
+
+import fr.milekat.banks.Main;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Leaderboards of tracked tag names, updated with every accepted operation.
+ * Leaderboards are seeded from the storage in background, then periodically reconciled with the storage balances.
+ */
+public class Leaderboards {
+    private final Map<String, Leaderboard> leaderboards = new HashMap<>();
+    private final long reconcileIntervalMillis;
+    private final Object reconcileLock = new Object();
+    private volatile boolean running = false;
+    private Thread reconciler;
+
+    /**
+     * Disabled leaderboards (No tracked tag)
+     */
+    public Leaderboards() {
+        this.reconcileIntervalMillis = 0L;
+    }
+
+    /**
+     * @param tagNames tracked tag names
+     * @param reconcileIntervalMillis time between two reconciliations with the storage
+     */
+    public Leaderboards(@NotNull Collection<String> tagNames, long reconcileIntervalMillis) {
+        tagNames.forEach(tagName -> leaderboards.put(tagName, new Leaderboard()));
+        this.reconcileIntervalMillis = Math.max(1000L, reconcileIntervalMillis);
+    }
+
+    /**
+     * Get the leaderboard of a tag name
+     * @return leaderboard, or null if the tag name is not tracked
+     */
+    public @Nullable Leaderboard get(@NotNull String tagName) {
+        return leaderboards.get(tagName);
+    }
+
+    /**
+     * Apply an accepted (or reverted) operation to the leaderboards of its tags
+     */
+    public void apply(@NotNull Map<String, Object> tags, int amount) {
+        if (leaderboards.isEmpty()) return;
+        for (Map.Entry<String, Object> tag : tags.entrySet()) {
+            Leaderboard leaderboard = leaderboards.get(tag.getKey());
+            if (leaderboard != null) leaderboard.add(String.valueOf(tag.getValue()), amount);
+        }
+    }
+
+    /**
+     * Start the thread seeding and reconciling leaderboards
+     */
+    public void start() {
+        if (leaderboards.isEmpty()) return;
+        running = true;
+        reconciler = new Thread(() -> {
+            while (running) {
+                reconcile();
+                synchronized (reconcileLock) {
+                    try {
+                        reconcileLock.wait(reconcileIntervalMillis);
+                    } catch (InterruptedException exception) {
+                        return;
+                    }
+                }
+            }
+        }, "MileBanks-Leaderboards");
+        reconciler.setDaemon(true);
+        reconciler.start();
+    }
+
+    public void stop() {
+        running = false;
+        synchronized (reconcileLock) {
+            reconcileLock.notifyAll();
+        }
+    }
+
+    /**
+     * Update leaderboards with the balances of all accounts read from the storage
+     */
+    private void reconcile() {
+        for (Map.Entry<String, Leaderboard> leaderboard : leaderboards.entrySet()) {
+            if (!running) return;
+            try {
+                long start = System.nanoTime();
+                leaderboard.getValue().beginUpdate();
+                leaderboard.getValue().update(Main.getStorage().getTagBalances(leaderboard.getKey()));
+                Main.getMileLogger().debug("Leaderboard '" + leaderboard.getKey() + "' reconciled: " +
+                        leaderboard.getValue().size() + " account(s) in " +
+                        (System.nanoTime() - start) / 1000000L + "ms.");
+            } catch (StorageExecuteException exception) {
+                leaderboard.getValue().cancelUpdate();
+                Main.getMileLogger().warning("Error while trying to load leaderboard '" + leaderboard.getKey() +
+                        "', retrying later.");
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        }
+    }
+}
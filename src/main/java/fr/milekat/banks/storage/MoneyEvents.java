@@ -0,0 +1,151 @@
+package fr.milekat.banks.storage;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.api.events.MoneyPrepareBatch;
+import fr.milekat.banks.api.events.MoneyPrepareOperation;
+import fr.milekat.banks.api.events.MoneySavedBatch;
+import fr.milekat.banks.api.events.MoneySavedSuccessfully;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.bukkit.Bukkit;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Events of money operations.
+ * Prepare events are called on the requesting thread before an operation is saved, so they can cancel it.
+ * Saved operations are queued by the storage once acknowledged, then their events are called on the main thread,
+ * by batches of at most batch size operations per tick.
+ * Events without listeners are not built.
+ */
+public class MoneyEvents {
+    private final ConcurrentLinkedQueue<MoneyOperation> saved = new ConcurrentLinkedQueue<>();
+    private final int batchSize;
+    private BukkitTask dispatcher;
+
+    /**
+     * Saved events not dispatched (Used until the storage is loaded)
+     */
+    public MoneyEvents() {
+        this.batchSize = 1;
+    }
+
+    /**
+     * @param batchSize max operations dispatched per tick
+     */
+    public MoneyEvents(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Call the prepare event of an operation
+     * @throws StorageExecuteException if the operation is cancelled
+     */
+    public void prepare(@NotNull MoneyOperation operation) throws StorageExecuteException {
+        prepare(operation, false);
+    }
+
+    /**
+     * Call the prepare event of a set, the amount of the operation is the balance to set
+     * (the difference is resolved by the storage after the event)
+     * @throws StorageExecuteException if the operation is cancelled
+     */
+    public void prepareSet(@NotNull MoneyOperation operation) throws StorageExecuteException {
+        prepare(operation, true);
+    }
+
+    private void prepare(@NotNull MoneyOperation operation, boolean set) throws StorageExecuteException {
+        if (!hasListeners(MoneyPrepareOperation.getHandlerList())) return;
+        MoneyPrepareOperation event = new MoneyPrepareOperation(operation.transactionId(), operation.tags(),
+                operation.amount(), operation.reason(), !Bukkit.isPrimaryThread(), set);
+        callEvent(event);
+        if (event.isCancelled()) {
+            throw new StorageExecuteException(new Throwable(), "Money operation cancelled by plugin.");
+        }
+    }
+
+    /**
+     * Call the batch prepare event, once for all operations of a batch
+     * @throws StorageExecuteException if the batch is cancelled
+     */
+    public void prepareBatch(@NotNull UUID correlationId, @NotNull List<MoneyOperation> operations)
+            throws StorageExecuteException {
+        if (!hasListeners(MoneyPrepareBatch.getHandlerList())) return;
+        List<Transaction> transactions = new ArrayList<>(operations.size());
+        for (MoneyOperation operation : operations) {
+            transactions.add(operation.toTransaction());
+        }
+        MoneyPrepareBatch event = new MoneyPrepareBatch(correlationId, transactions, !Bukkit.isPrimaryThread());
+        callEvent(event);
+        if (event.isCancelled()) {
+            throw new StorageExecuteException(new Throwable(), "Money operations cancelled by plugin.");
+        }
+    }
+
+    /**
+     * Queue saved operations, their events are called on the main thread during the next tick
+     */
+    public void saved(@NotNull List<MoneyOperation> operations) {
+        if (operations.isEmpty() || (!hasListeners(MoneySavedBatch.getHandlerList()) &&
+                !hasListeners(MoneySavedSuccessfully.getHandlerList()))) return;
+        saved.addAll(operations);
+    }
+
+    /**
+     * Start the main thread task dispatching saved events every tick
+     */
+    public void start() {
+        dispatcher = Bukkit.getScheduler().runTaskTimer(Main.getInstance(), this::dispatch, 1L, 1L);
+    }
+
+    /**
+     * Stop the dispatching task, remaining saved events are dispatched if called from the main thread
+     */
+    public void stop() {
+        if (dispatcher != null) dispatcher.cancel();
+        dispatcher = null;
+        if (!Bukkit.isPrimaryThread()) return;
+        while (!saved.isEmpty()) dispatch();
+    }
+
+    /**
+     * Call saved events of queued operations (at most batch size operations)
+     */
+    private void dispatch() {
+        if (saved.isEmpty()) return;
+        List<MoneyOperation> operations = new ArrayList<>();
+        MoneyOperation operation;
+        while (operations.size() < batchSize && (operation = saved.poll()) != null) {
+            operations.add(operation);
+        }
+        if (hasListeners(MoneySavedBatch.getHandlerList())) {
+            List<Transaction> transactions = new ArrayList<>(operations.size());
+            for (MoneyOperation savedOperation : operations) {
+                transactions.add(savedOperation.toTransaction());
+            }
+            callEvent(new MoneySavedBatch(transactions));
+        }
+        if (hasListeners(MoneySavedSuccessfully.getHandlerList())) {
+            for (MoneyOperation savedOperation : operations) {
+                callEvent(new MoneySavedSuccessfully(savedOperation.transactionId(), savedOperation.tags(),
+                        savedOperation.amount(), savedOperation.reason()));
+            }
+        }
+    }
+
+    private static boolean hasListeners(@NotNull HandlerList handlers) {
+        return handlers.getRegisteredListeners().length > 0;
+    }
+
+    private static void callEvent(@NotNull Event event) {
+        Main.getInstance().getServer().getPluginManager().callEvent(event);
+    }
+}
@@ -0,0 +1,298 @@
+package fr.milekat.banks.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.milekat.banks.Main;
+import fr.milekat.banks.api.statistics.MoneyStatistics;
+import fr.milekat.banks.utils.DistinctCounter;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Server-wide money statistics, updated with every accepted operation (no storage request to read them).
+ * Flows (inflow / outflow per reason) and active accounts (estimated, fixed-size counter) are counted in time buckets,
+ * kept during the retention and saved periodically in a file. Money in circulation of each tag name is loaded from
+ * the storage, updated with every operation, and periodically reconciled with the storage balances.
+ */
+public class Statistics {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String OTHER_REASONS = "Other reasons";
+
+    private final @Nullable File file;
+    private final long bucketMillis;
+    private final int retention;
+    private final int maxReasons;
+    private final long persistIntervalMillis;
+    private final long reconcileIntervalMillis;
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+    private final Map<String, Long> circulation = new HashMap<>();
+    //  Amounts applied to each tag name while its money in circulation is read from the storage
+    private final Map<String, Long> reading = new HashMap<>();
+    private final Object persistLock = new Object();
+    private volatile boolean running = false;
+    private Thread persister;
+
+    /**
+     * Disabled statistics
+     */
+    public Statistics() {
+        this.file = null;
+        this.bucketMillis = 1L;
+        this.retention = 0;
+        this.maxReasons = 0;
+        this.persistIntervalMillis = 0L;
+        this.reconcileIntervalMillis = 0L;
+    }
+
+    /**
+     * @param file statistics file
+     * @param bucketMillis duration of a time bucket
+     * @param retention number of buckets kept
+     * @param maxReasons max number of reasons in a bucket, others reasons are counted together
+     * @param persistIntervalMillis time between two saves of the statistics file
+     * @param reconcileIntervalMillis time between two reconciliations of money in circulation with the storage
+     */
+    public Statistics(@NotNull File file, long bucketMillis, int retention, int maxReasons,
+                      long persistIntervalMillis, long reconcileIntervalMillis) {
+        this.file = file;
+        this.bucketMillis = Math.max(1000L, bucketMillis);
+        this.retention = Math.max(1, retention);
+        this.maxReasons = Math.max(1, maxReasons);
+        this.persistIntervalMillis = Math.max(1000L, persistIntervalMillis);
+        this.reconcileIntervalMillis = Math.max(1000L, reconcileIntervalMillis);
+    }
+
+    /**
+     * Check if statistics are enabled
+     */
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Count an accepted operation
+     */
+    public void apply(@NotNull MoneyOperation operation) {
+        if (file != null) apply(operation, 1);
+    }
+
+    /**
+     * Remove an operation which will not be saved (rejected)
+     */
+    public void revert(@NotNull MoneyOperation operation) {
+        if (file != null) apply(operation, -1);
+    }
+
+    private synchronized void apply(@NotNull MoneyOperation operation, int sign) {
+        for (String tagName : operation.tags().keySet()) {
+            circulation.computeIfPresent(tagName, (key, total) -> total + (long) sign * operation.amount());
+            reading.computeIfPresent(tagName, (key, total) -> total + (long) sign * operation.amount());
+        }
+        long time = Objects.requireNonNullElse(TransactionIds.getTimestamp(operation.transactionId()),
+                System.currentTimeMillis());
+        long start = time - Math.floorMod(time, bucketMillis);
+        Bucket bucket = buckets.get(start);
+        if (bucket == null) {
+            //  Operation older than the retention
+            if (sign < 0 || buckets.size() >= retention && start < buckets.firstKey()) return;
+            bucket = new Bucket();
+            buckets.put(start, bucket);
+            while (buckets.size() > retention) buckets.pollFirstEntry();
+        }
+        long inflow = operation.amount() > 0 ? operation.amount() : 0L;
+        long outflow = operation.amount() < 0 ? -(long) operation.amount() : 0L;
+        bucket.operations += sign;
+        bucket.inflow += sign * inflow;
+        bucket.outflow += sign * outflow;
+        String reason = bucket.reasons.containsKey(operation.reason()) || bucket.reasons.size() < maxReasons ?
+                operation.reason() : OTHER_REASONS;
+        long[] flow = bucket.reasons.computeIfAbsent(reason, key -> new long[3]);
+        flow[0] += sign;
+        flow[1] += sign * inflow;
+        flow[2] += sign * outflow;
+        if (sign > 0) {
+            for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+                bucket.accounts.add(tag.getKey() + ":" + tag.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get statistics of the last period (rounded to the start of the bucket)
+     * @param periodMillis duration of the period
+     */
+    public synchronized @NotNull MoneyStatistics getStatistics(long periodMillis) {
+        long from = System.currentTimeMillis() - Math.max(0L, periodMillis);
+        from -= Math.floorMod(from, bucketMillis);
+        long operations = 0L;
+        long inflow = 0L;
+        long outflow = 0L;
+        DistinctCounter accounts = new DistinctCounter();
+        Map<String, long[]> reasons = new HashMap<>();
+        for (Bucket bucket : buckets.tailMap(from, true).values()) {
+            operations += bucket.operations;
+            inflow += bucket.inflow;
+            outflow += bucket.outflow;
+            accounts.merge(bucket.accounts);
+            bucket.reasons.forEach((reason, flow) -> {
+                long[] total = reasons.computeIfAbsent(reason, key -> new long[3]);
+                for (int i = 0; i < 3; i++) total[i] += flow[i];
+            });
+        }
+        Map<String, MoneyStatistics.Flow> flows = new HashMap<>();
+        reasons.forEach((reason, flow) -> flows.put(reason, new MoneyStatistics.Flow(flow[0], flow[1], flow[2])));
+        return new MoneyStatistics(new HashMap<>(circulation), Instant.ofEpochMilli(from), operations, inflow,
+                outflow, (int) Math.min(Integer.MAX_VALUE, accounts.estimate()), flows);
+    }
+
+    /**
+     * Load saved statistics, and start the thread reconciling money in circulation and saving statistics
+     */
+    public void start() {
+        if (file == null) return;
+        load();
+        running = true;
+        persister = new Thread(() -> {
+            long nextSave = System.currentTimeMillis() + persistIntervalMillis;
+            long nextReconcile = System.currentTimeMillis();
+            while (running) {
+                if (System.currentTimeMillis() >= nextReconcile) {
+                    reconcile();
+                    nextReconcile = System.currentTimeMillis() + reconcileIntervalMillis;
+                }
+                if (System.currentTimeMillis() >= nextSave) {
+                    save();
+                    nextSave = System.currentTimeMillis() + persistIntervalMillis;
+                }
+                synchronized (persistLock) {
+                    try {
+                        long wait = Math.min(nextSave, nextReconcile) - System.currentTimeMillis();
+                        if (running && wait > 0) persistLock.wait(wait);
+                    } catch (InterruptedException exception) {
+                        return;
+                    }
+                }
+            }
+        }, "MileBanks-Statistics");
+        persister.setDaemon(true);
+        persister.start();
+    }
+
+    /**
+     * Stop the statistics thread, and save statistics
+     */
+    public void stop() {
+        if (file == null) return;
+        running = false;
+        synchronized (persistLock) {
+            persistLock.notifyAll();
+        }
+        save();
+    }
+
+    /**
+     * Read money in circulation of each tag name from the storage balances, amounts applied during the read are
+     * added to the read total
+     */
+    private void reconcile() {
+        for (String tagName : new ArrayList<>(Main.TAGS.keySet())) {
+            if (!running) return;
+            synchronized (this) {
+                reading.put(tagName, 0L);
+            }
+            try {
+                long total = 0L;
+                for (int balance : Main.getStorage().getTagBalances(tagName).values()) total += balance;
+                synchronized (this) {
+                    circulation.put(tagName, total + reading.remove(tagName));
+                }
+            } catch (StorageExecuteException exception) {
+                synchronized (this) {
+                    reading.remove(tagName);
+                }
+                Main.getMileLogger().warning("Can't load money in circulation of tag '" + tagName + "': " +
+                        exception.getMessage());
+            }
+        }
+    }
+
+    private void load() {
+        if (file == null || !file.exists()) return;
+        try {
+            JsonNode root = MAPPER.readTree(file);
+            synchronized (this) {
+                for (JsonNode stored : root.path("buckets")) {
+                    Bucket bucket = new Bucket();
+                    bucket.operations = stored.path("operations").asLong();
+                    bucket.inflow = stored.path("inflow").asLong();
+                    bucket.outflow = stored.path("outflow").asLong();
+                    if (stored.hasNonNull("accountsCounter")) {
+                        bucket.accounts = DistinctCounter.fromBytes(stored.path("accountsCounter").binaryValue());
+                    } else {
+                        //  Accounts saved by previous versions
+                        stored.path("accounts").forEach(account -> bucket.accounts.add(account.asText()));
+                    }
+                    stored.path("reasons").fields().forEachRemaining(reason -> bucket.reasons.put(reason.getKey(),
+                            new long[]{reason.getValue().path(0).asLong(), reason.getValue().path(1).asLong(),
+                                    reason.getValue().path(2).asLong()}));
+                    buckets.put(stored.path("start").asLong(), bucket);
+                }
+                while (buckets.size() > retention) buckets.pollFirstEntry();
+            }
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to load statistics, starting from scratch.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+    }
+
+    private void save() {
+        if (file == null) return;
+        List<Map<String, Object>> stored = new ArrayList<>();
+        synchronized (this) {
+            buckets.forEach((start, bucket) -> {
+                Map<String, Object> node = new LinkedHashMap<>();
+                node.put("start", start);
+                node.put("operations", bucket.operations);
+                node.put("inflow", bucket.inflow);
+                node.put("outflow", bucket.outflow);
+                node.put("accountsCounter", bucket.accounts.toBytes());
+                Map<String, long[]> reasons = new LinkedHashMap<>();
+                bucket.reasons.forEach((reason, flow) -> reasons.put(reason, flow.clone()));
+                node.put("reasons", reasons);
+                stored.add(node);
+            });
+        }
+        File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            MAPPER.writeValue(temporary, Map.of("buckets", stored));
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to save statistics.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+    }
+
+    /**
+     * Counters of a time bucket
+     */
+    private static final class Bucket {
+        private long operations = 0L;
+        private long inflow = 0L;
+        private long outflow = 0L;
+        //  Operations count, inflow and outflow of each reason
+        private final Map<String, long[]> reasons = new HashMap<>();
+        //  Distinct accounts (tag name and value) of operations
+        private DistinctCounter accounts = new DistinctCounter();
+    }
+}
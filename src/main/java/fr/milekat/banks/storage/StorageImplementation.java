@@ -1,10 +1,20 @@
 package fr.milekat.banks.storage;
 
+import fr.milekat.banks.api.batch.Operation;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.utils.MoneyOperation;
 import fr.milekat.utils.storage.exceptions.StorageExecuteException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @SuppressWarnings("unused")
 public interface StorageImplementation extends CacheManager {
@@ -25,6 +35,20 @@ public interface StorageImplementation extends CacheManager {
 
     int getMoneyFromTag(@NotNull String tagName, @NotNull Object tagValue) throws StorageExecuteException;
 
+    /**
+     * Get balances of multiple tags (Using cache and pending operations, like {@link #getCacheBalance})
+     * @param tags map of tag names and tag values
+     * @return map of tag names and their balance
+     */
+    default Map<String, Integer> getMoneyFromTags(@NotNull Map<String, Object> tags)
+            throws StorageExecuteException {
+        Map<String, Integer> balances = new HashMap<>();
+        for (Map.Entry<String, Object> tag : tags.entrySet()) {
+            balances.put(tag.getKey(), getCacheBalance(tag.getKey(), tag.getValue()));
+        }
+        return balances;
+    }
+
     UUID addMoneyToTags(@NotNull Map<String, Object> tags, int amount, String reason) throws StorageExecuteException;
 
     default UUID removeMoneyToTags(@NotNull Map<String, Object> tags, int amount, String reason)
@@ -35,4 +59,95 @@ public interface StorageImplementation extends CacheManager {
 
     UUID setMoneyToTag(@NotNull String tagName, @NotNull Object tagValue, int amount, String reason)
             throws StorageExecuteException;
+
+    /**
+     * Accept operations together (all or nothing): they are saved together, or none of them is applied
+     * @param correlationId id shared by all operations
+     * @param operations operations to apply (amounts can't be 0)
+     * @return transaction ids, in the operations order
+     */
+    List<UUID> applyBatch(@NotNull UUID correlationId, @NotNull List<Operation> operations)
+            throws StorageExecuteException;
+
+    /**
+     * Import saved operations (exported from a storage) keeping their transaction id when possible, without events.
+     * Operations whose transaction id is already saved are not imported again (they are not returned).
+     * @return accepted transaction ids, to wait for their commit
+     */
+    List<UUID> importOperations(@NotNull List<MoneyOperation> operations) throws StorageExecuteException;
+
+    /**
+     * Get a future completed once the operation is saved in storage
+     * @param transactionId operation transaction id
+     * @return future completed when the operation is saved (already completed if the operation was saved),
+     * or completed exceptionally if the operation is rejected by the storage, or unknown
+     */
+    default CompletableFuture<Void> awaitCommit(@NotNull UUID transactionId) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Get balances of all accounts of a tag name (Including pending operations), to seed leaderboards
+     * @return map of tag values (as string) and their balance
+     */
+    default Map<String, Integer> getTagBalances(@NotNull String tagName) throws StorageExecuteException {
+        throw new StorageExecuteException(new Throwable(), "Leaderboards are not available with this storage.");
+    }
+
+    /*
+            History
+     */
+
+    /**
+     * Get a page of saved operations, from the most recent to the oldest
+     * @param size max number of operations
+     * @param cursor cursor returned with the previous page (null for the first page)
+     * @return page of operations, with the cursor of the next page
+     */
+    default HistoryPage getHistory(@NotNull HistoryQuery query, int size, @Nullable String cursor)
+            throws StorageExecuteException {
+        throw new StorageExecuteException(new Throwable(), "History is not available with this storage.");
+    }
+
+    /**
+     * Read all saved operations matching the query, from the oldest to the most recent, by pages
+     * @param consumer called for each operation
+     */
+    default void streamHistory(@NotNull HistoryQuery query, @NotNull Consumer<Transaction> consumer)
+            throws StorageExecuteException {
+        throw new StorageExecuteException(new Throwable(), "History is not available with this storage.");
+    }
+
+    /**
+     * Read a history cursor made of the last transaction id of the previous page
+     * @return transaction id, or null for the first page
+     */
+    static @Nullable UUID parseCursor(@Nullable String cursor) throws StorageExecuteException {
+        if (cursor == null) return null;
+        try {
+            return UUID.fromString(cursor);
+        } catch (IllegalArgumentException exception) {
+            throw new StorageExecuteException(exception, "Invalid history cursor.");
+        }
+    }
+
+    /*
+            Dead letters (Operations rejected by the storage)
+     */
+
+    /**
+     * Count operations permanently rejected by the storage
+     * @return number of rejected operations
+     */
+    default int getDeadLettersCount() throws StorageExecuteException {
+        return 0;
+    }
+
+    /**
+     * Submit again all operations permanently rejected by the storage
+     * @return number of submitted operations
+     */
+    default int replayDeadLetters() throws StorageExecuteException {
+        return 0;
+    }
 }
@@ -0,0 +1,382 @@
+package fr.milekat.banks.storage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.MoneyOperation;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented log of accepted money operations, used to replay operations not saved before a crash.
+ * Record format: [int length][int crc32][byte type][payload], payload is the JSON operation, a JSON list of
+ * operations (batch, recovered all together) or a list of acknowledged transaction ids.
+ * Writes are synced with a group commit: the first waiting writer syncs the file for all pending writers.
+ * Segments are deleted (oldest first) once all their operations are acknowledged.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<List<MoneyOperation>> OPERATIONS_TYPE = new TypeReference<>() {};
+    private static final byte OPERATION = 1;
+    private static final byte ACKNOWLEDGE = 2;
+    private static final byte BATCH = 3;
+    private static final int HEADER_SIZE = 9;
+
+    private final File folder;
+    private final long segmentSize;
+    private final boolean sync;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<UUID, Segment> pending = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private Segment current;
+    private long writtenSequence = 0L;
+    private long syncedSequence = 0L;
+    private boolean syncing = false;
+
+    /**
+     * @param folder log folder
+     * @param segmentSize max size in bytes of a segment file
+     * @param sync if true, appends wait for the data to be synced on disk
+     */
+    public WriteAheadLog(@NotNull File folder, long segmentSize, boolean sync) throws IOException {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        if (!folder.exists() && !folder.mkdirs()) throw new IOException("Can't create folder " + folder.getPath());
+    }
+
+    /**
+     * Read existing segments and open a new segment for appends
+     * @return operations not acknowledged, in append order
+     */
+    public @NotNull List<MoneyOperation> recover() throws IOException {
+        Map<UUID, MoneyOperation> operations = new LinkedHashMap<>();
+        Map<UUID, Segment> owners = new HashMap<>();
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        long lastId = 0L;
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparing(File::getName));
+            for (File file : files) {
+                long id = Long.parseLong(file.getName().substring(8, file.getName().length() - 4));
+                Segment segment = new Segment(id, file, null);
+                segment.sealed = true;
+                segments.add(segment);
+                readSegment(segment, operations, owners);
+                lastId = Math.max(lastId, id);
+            }
+        }
+        for (UUID transactionId : operations.keySet()) {
+            Segment segment = owners.get(transactionId);
+            segment.pending.incrementAndGet();
+            pending.put(transactionId, segment);
+        }
+        synchronized (writeLock) {
+            openSegment(lastId + 1);
+        }
+        deleteAcknowledgedSegments();
+        if (!operations.isEmpty()) {
+            Main.getMileLogger().warning("Recovered '" + operations.size() + "' money operation(s) not saved.");
+        }
+        return new ArrayList<>(operations.values());
+    }
+
+    private void readSegment(@NotNull Segment segment, @NotNull Map<UUID, MoneyOperation> operations,
+                             @NotNull Map<UUID, Segment> owners) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = 0L;
+            while (true) {
+                header.clear();
+                if (channel.read(header, position) < HEADER_SIZE) break;
+                header.flip();
+                int length = header.getInt();
+                int crc = header.getInt();
+                byte type = header.get();
+                if (length < 0 || position + HEADER_SIZE + length > channel.size()) break;
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                channel.read(payload, position + HEADER_SIZE);
+                if (checksum(type, payload.array()) != crc) break;
+                if (type == OPERATION) {
+                    MoneyOperation operation = MAPPER.readValue(payload.array(), MoneyOperation.class);
+                    operations.put(operation.transactionId(), operation);
+                    owners.put(operation.transactionId(), segment);
+                } else if (type == BATCH) {
+                    for (MoneyOperation operation : MAPPER.readValue(payload.array(), OPERATIONS_TYPE)) {
+                        operations.put(operation.transactionId(), operation);
+                        owners.put(operation.transactionId(), segment);
+                    }
+                } else if (type == ACKNOWLEDGE) {
+                    payload.flip();
+                    int count = payload.getInt();
+                    for (int i = 0; i < count; i++) {
+                        operations.remove(new UUID(payload.getLong(), payload.getLong()));
+                    }
+                }
+                position += HEADER_SIZE + length;
+            }
+            if (position < channel.size()) {
+                Main.getMileLogger().warning("Truncated write-ahead log record in " + segment.file.getName() +
+                        ", ignoring the end of the segment.");
+            }
+        }
+    }
+
+    /**
+     * Append an operation, and wait for it to be synced on disk (if sync is enabled).
+     * If it fails, the operation is cancelled: it's not recovered at next start.
+     */
+    public void append(@NotNull MoneyOperation operation) throws IOException {
+        byte[] payload = MAPPER.writeValueAsBytes(operation);
+        long sequence;
+        synchronized (writeLock) {
+            sequence = write(OPERATION, payload);
+            current.pending.incrementAndGet();
+            pending.put(operation.transactionId(), current);
+        }
+        if (sync) awaitAppend(sequence, List.of(operation.transactionId()));
+    }
+
+    /**
+     * Append operations in a single record, so all or none of them are recovered, and wait for it to be synced on
+     * disk (if sync is enabled). If it fails, the operations are cancelled: they are not recovered at next start.
+     */
+    public void append(@NotNull List<MoneyOperation> operations) throws IOException {
+        if (operations.size() == 1) {
+            append(operations.get(0));
+            return;
+        }
+        byte[] payload = MAPPER.writeValueAsBytes(operations);
+        long sequence;
+        synchronized (writeLock) {
+            sequence = write(BATCH, payload);
+            for (MoneyOperation operation : operations) {
+                current.pending.incrementAndGet();
+                pending.put(operation.transactionId(), current);
+            }
+        }
+        if (sync) awaitAppend(sequence, operations.stream().map(MoneyOperation::transactionId).toList());
+    }
+
+    /**
+     * Wait for an appended record to be synced on disk, or cancel its operations (acknowledged without being saved)
+     * if the sync fails or the caller is interrupted, so they are not recovered once the caller reverted them.
+     */
+    private void awaitAppend(long sequence, @NotNull List<UUID> transactionIds) throws IOException {
+        try {
+            awaitSync(sequence);
+        } catch (IOException exception) {
+            //  Channel writes are interrupted (and the channel closed) if the interrupt flag is set
+            boolean interrupted = Thread.interrupted();
+            try {
+                acknowledge(transactionIds, true);
+            } catch (IOException cancelException) {
+                exception.addSuppressed(cancelException);
+                Main.getMileLogger().warning("Error while trying to cancel '" + transactionIds.size() +
+                        "' money operation(s) in the write-ahead log, they may be recovered at next start.");
+                Main.getMileLogger().stack(cancelException.getStackTrace());
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Mark operations as saved, their segments are deleted once all operations are acknowledged
+     * @param durable if true, wait for the acknowledgement to be synced on disk (if sync is enabled)
+     */
+    public void acknowledge(@NotNull Collection<UUID> transactionIds, boolean durable) throws IOException {
+        if (transactionIds.isEmpty()) return;
+        ByteBuffer payload = ByteBuffer.allocate(4 + transactionIds.size() * 16);
+        payload.putInt(transactionIds.size());
+        for (UUID transactionId : transactionIds) {
+            payload.putLong(transactionId.getMostSignificantBits());
+            payload.putLong(transactionId.getLeastSignificantBits());
+        }
+        long sequence;
+        synchronized (writeLock) {
+            sequence = write(ACKNOWLEDGE, payload.array());
+        }
+        if (durable && sync) awaitSync(sequence);
+        for (UUID transactionId : transactionIds) {
+            Segment segment = pending.remove(transactionId);
+            if (segment != null) segment.pending.decrementAndGet();
+        }
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Get the number of operations not yet acknowledged
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Write a record in the current segment (Must hold the write lock)
+     * @return record sequence, to wait for sync
+     */
+    private long write(byte type, byte @NotNull [] payload) throws IOException {
+        int size = HEADER_SIZE + payload.length;
+        if (!current.channel.isOpen()) reopen();
+        if (current.size > 0 && current.size + size > segmentSize) roll();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(type, payload));
+        buffer.put(type);
+        buffer.put(payload);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) current.channel.write(buffer);
+        } catch (IOException exception) {
+            //  Remove the partial record, recovery stops at the first invalid record of a segment
+            try {
+                current.channel.truncate(current.size);
+            } catch (IOException truncateException) {
+                exception.addSuppressed(truncateException);
+            }
+            throw exception;
+        }
+        current.size += size;
+        return ++writtenSequence;
+    }
+
+    /**
+     * Wait until the record is synced on disk, the first waiting thread syncs for all others (group commit)
+     */
+    private void awaitSync(long sequence) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && syncedSequence < sequence) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting write-ahead log sync", exception);
+                    }
+                }
+                if (syncedSequence >= sequence) return;
+                syncing = true;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (writeLock) {
+                target = writtenSequence;
+                channel = current.channel;
+            }
+            boolean synced = false;
+            try {
+                force(channel);
+                synced = true;
+            } finally {
+                synchronized (syncLock) {
+                    if (synced) syncedSequence = Math.max(syncedSequence, target);
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void force(@NotNull FileChannel channel) throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedByInterruptException exception) {
+            //  Closed by this interrupted thread, the segment is not synced
+            throw exception;
+        } catch (ClosedChannelException ignored) {
+            //  Segment rolled, it has been synced before being closed
+        }
+    }
+
+    /**
+     * Seal the current segment and open a new one (Must hold the write lock)
+     */
+    private void roll() throws IOException {
+        current.channel.force(false);
+        current.channel.close();
+        current.sealed = true;
+        openSegment(current.id + 1);
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Seal the current segment closed by an interrupted writer and open a new one (Must hold the write lock)
+     */
+    private void reopen() throws IOException {
+        try (FileChannel channel = FileChannel.open(current.file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+        current.sealed = true;
+        openSegment(current.id + 1);
+        deleteAcknowledgedSegments();
+    }
+
+    private void openSegment(long id) throws IOException {
+        File file = new File(folder, String.format("segment-%020d.log", id));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        current = new Segment(id, file, channel);
+        synchronized (segments) {
+            segments.addLast(current);
+        }
+    }
+
+    private void deleteAcknowledgedSegments() {
+        synchronized (segments) {
+            while (!segments.isEmpty()) {
+                Segment oldest = segments.peekFirst();
+                if (!oldest.sealed || oldest.pending.get() > 0) return;
+                segments.pollFirst();
+                if (!oldest.file.delete()) {
+                    Main.getMileLogger().warning("Can't delete write-ahead log segment " + oldest.file.getName());
+                }
+            }
+        }
+    }
+
+    private static int checksum(byte type, byte @NotNull [] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            current.channel.force(false);
+            current.channel.close();
+            current.sealed = true;
+        }
+        deleteAcknowledgedSegments();
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean sealed = false;
+        private long size = 0L;
+
+        private Segment(long id, @NotNull File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.banks.utils.MoneyOperation;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Keep track of money operations not yet included in the accounts index, to apply them over the stored balances.
+ * An operation is pending until the bulk request is acknowledged, then it's kept until a transform checkpoint
+ * includes it in the accounts index (or until the transform delay, for tags without followed transform).
+ * <p>
+ * Dropping included operations and invalidating cached balances of their accounts (exclusive lock) is exclusive with
+ * reading cached balances and pending operations (shared lock), and increments the overlay version: a stored balance
+ * searched while the version didn't change is consistent with the pending operations.
+ * </p>
+ */
+public class BalancesOverlay {
+    private final long includeDelayNanos;
+    private final long refreshMillis;
+    private final Map<UUID, PendingTransaction> transactions = new ConcurrentHashMap<>();
+    private final Map<AccountKey, Set<PendingTransaction>> accounts = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long version = 0L;
+
+    /**
+     * @param includeDelayNanos delay after the bulk acknowledgement before the transaction is expected to be
+     *                          included in the accounts index (Tags without followed transform)
+     * @param refreshMillis     delay after the bulk acknowledgement before the transaction is searchable
+     */
+    public BalancesOverlay(long includeDelayNanos, long refreshMillis) {
+        this.includeDelayNanos = includeDelayNanos;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Register a new accepted operation
+     */
+    public void add(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount) {
+        PendingTransaction transaction = new PendingTransaction(transactionId, tags, amount);
+        transactions.put(transactionId, transaction);
+        for (Map.Entry<String, Object> tag : tags.entrySet()) {
+            accounts.compute(new AccountKey(tag.getKey(), tag.getValue()), (key, pending) -> {
+                if (pending == null) pending = ConcurrentHashMap.newKeySet();
+                pending.add(transaction);
+                return pending;
+            });
+        }
+    }
+
+    /**
+     * Remove an operation (not accepted anymore)
+     */
+    public void remove(@NotNull UUID transactionId) {
+        PendingTransaction transaction = transactions.remove(transactionId);
+        if (transaction == null) return;
+        for (Map.Entry<String, Object> tag : transaction.tags.entrySet()) {
+            accounts.computeIfPresent(new AccountKey(tag.getKey(), tag.getValue()), (key, pending) -> {
+                pending.remove(transaction);
+                return pending.isEmpty() ? null : pending;
+            });
+        }
+    }
+
+    /**
+     * Check if there is no operation tracked
+     */
+    public boolean isEmpty() {
+        return transactions.isEmpty();
+    }
+
+    /**
+     * Mark an operation as saved in the transactions index
+     * @param existing the operation was already saved (by a previous attempt), it's searchable since an unknown time
+     */
+    public void acknowledged(@NotNull MoneyOperation operation, boolean existing) {
+        PendingTransaction transaction = transactions.get(operation.transactionId());
+        if (transaction == null) return;
+        transaction.timestamp = operation.timestamp();
+        transaction.searchableAt = existing ? Long.MIN_VALUE : System.currentTimeMillis() + refreshMillis;
+        transaction.ackedAt = System.nanoTime();
+    }
+
+    /**
+     * Check if some acknowledged operations of these accounts are not included yet (they can be included at any time)
+     */
+    public boolean hasAcknowledged(@NotNull Collection<AccountKey> keys) {
+        for (AccountKey key : keys) {
+            Set<PendingTransaction> pending = accounts.get(key);
+            if (pending == null) continue;
+            for (PendingTransaction transaction : pending) {
+                if (transaction.ackedAt != 0L) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sum of all operations not yet included in the stored balance of this account
+     */
+    public int getDelta(@NotNull String tagName, @NotNull Object tagValue) {
+        return getDelta(tagName, tagValue, null);
+    }
+
+    /**
+     * Sum of operations of this account with a transaction id greater than the watermark
+     * @param watermark transaction id of the last included operation (null to include all operations)
+     */
+    public int getDelta(@NotNull String tagName, @NotNull Object tagValue, @Nullable UUID watermark) {
+        Set<PendingTransaction> pending = accounts.get(new AccountKey(tagName, tagValue));
+        if (pending == null) return 0;
+        int delta = 0;
+        for (PendingTransaction transaction : pending) {
+            if (watermark == null || transaction.transactionId.compareTo(watermark) > 0) delta += transaction.amount;
+        }
+        return delta;
+    }
+
+    /**
+     * Version of included operations, incremented each time operations are dropped
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Read cached balances and pending operations, while no operation is dropped
+     */
+    public void read(@NotNull Runnable reader) {
+        lock.readLock().lock();
+        try {
+            reader.run();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Run an action (cache stored balances, apply pending operations) if no operation was dropped since this version
+     * @return false if some operations were dropped, the action is not run
+     */
+    public boolean runIfUnchanged(long version, @NotNull Runnable action) {
+        lock.readLock().lock();
+        try {
+            if (this.version != version) return false;
+            action.run();
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drop operations of accounts of this tag included by a transform checkpoint, and invalidate the cached balances
+     * of these accounts. An account is computed again if one of its operations was searchable when the checkpoint
+     * started and is in its time range, then all its operations searchable at this time and under its upper bound
+     * are included. Operations saved by a previous attempt are included once they are under an upper bound.
+     */
+    public void include(@NotNull TransformCheckpoints.Checkpoint checkpoint) {
+        lock.writeLock().lock();
+        try {
+            boolean dropped = false;
+            for (Map.Entry<AccountKey, Set<PendingTransaction>> account : accounts.entrySet()) {
+                if (!account.getKey().tagName().equals(checkpoint.tagName())) continue;
+                boolean computed = false;
+                for (PendingTransaction transaction : account.getValue()) {
+                    if (transaction.searchableAt <= checkpoint.startedAt() &&
+                            transaction.timestamp >= checkpoint.from() && transaction.timestamp < checkpoint.to()) {
+                        computed = true;
+                        break;
+                    }
+                }
+                List<PendingTransaction> included = new ArrayList<>();
+                for (PendingTransaction transaction : account.getValue()) {
+                    if (transaction.ackedAt != 0L && transaction.timestamp < checkpoint.to() &&
+                            (transaction.searchableAt == Long.MIN_VALUE ||
+                                    (computed && transaction.searchableAt <= checkpoint.startedAt()))) {
+                        included.add(transaction);
+                    }
+                }
+                if (included.isEmpty()) continue;
+                drop(account.getKey(), included);
+                dropped = true;
+            }
+            if (dropped) version++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop operations acknowledged since the transform delay, for accounts of tags without followed transform
+     * @param tracked check if the transform of a tag is followed
+     */
+    public void prune(@NotNull Predicate<String> tracked) {
+        long now = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            boolean dropped = false;
+            for (Map.Entry<AccountKey, Set<PendingTransaction>> account : accounts.entrySet()) {
+                if (tracked.test(account.getKey().tagName())) continue;
+                List<PendingTransaction> included = new ArrayList<>();
+                for (PendingTransaction transaction : account.getValue()) {
+                    if (transaction.ackedAt != 0L && now - transaction.ackedAt >= includeDelayNanos) {
+                        included.add(transaction);
+                    }
+                }
+                if (included.isEmpty()) continue;
+                drop(account.getKey(), included);
+                dropped = true;
+            }
+            if (dropped) version++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop operations included in the stored balance of this account, operations included in all their accounts
+     * are not tracked anymore
+     */
+    private void drop(@NotNull AccountKey key, @NotNull List<PendingTransaction> included) {
+        accounts.computeIfPresent(key, (k, pending) -> {
+            included.forEach(pending::remove);
+            return pending.isEmpty() ? null : pending;
+        });
+        Main.BANK_ACCOUNTS_CACHE.invalidate(key);
+        for (PendingTransaction transaction : included) {
+            if (--transaction.accounts == 0) transactions.remove(transaction.transactionId, transaction);
+        }
+    }
+
+    private static final class PendingTransaction {
+        private final UUID transactionId;
+        private final Map<String, Object> tags;
+        private final int amount;
+        //  Accounts not including this operation yet (Updated while dropping operations)
+        private int accounts;
+        private volatile long ackedAt = 0L;
+        private volatile long searchableAt = Long.MAX_VALUE;
+        private volatile long timestamp = 0L;
+
+        private PendingTransaction(UUID transactionId, Map<String, Object> tags, int amount) {
+            this.transactionId = transactionId;
+            this.tags = tags;
+            this.amount = amount;
+            this.accounts = tags.size();
+        }
+    }
+}
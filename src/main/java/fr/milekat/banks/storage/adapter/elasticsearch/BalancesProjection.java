@@ -0,0 +1,279 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.banks.utils.TransactionIds;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * In memory balances of accounts, updated with every accepted operation.
+ * An account is seeded once from the storage (stored balance + operations not yet included in it), then all
+ * operations are folded in memory, so reads don't need any request.
+ * <p>
+ * Accepting operations (shared lock) and seeding or snapshotting accounts (exclusive lock) are mutually exclusive,
+ * so an operation is never counted twice (in the seeded balance and folded) or missed.
+ * </p>
+ * When checkpoints are enabled, all accounts with accepted operations are tracked (even not yet seeded)
+ * to be written in the accounts index.
+ * <p>
+ * A transaction id can be reserved before accepting its operation (to call its prepare event first): snapshots
+ * don't include operations from the oldest reserved transaction id not yet accepted.
+ * </p>
+ */
+public class BalancesProjection {
+    private final boolean checkpoints;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<AccountKey, Balance> balances = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<UUID> reserved = new ConcurrentSkipListSet<>();
+
+    /**
+     * @param checkpoints track all updated accounts, to write them in the accounts index
+     */
+    public BalancesProjection(boolean checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Accept a new operation: generate its transaction id, register it, and fold its amount
+     * @param register register the operation (Called with the new transaction id, before the fold)
+     * @return the new transaction id
+     */
+    public @NotNull UUID accept(@NotNull Map<String, Object> tags, int amount, @NotNull Consumer<UUID> register) {
+        lock.readLock().lock();
+        try {
+            UUID transactionId = TransactionIds.next();
+            register.accept(transactionId);
+            apply(tags, amount);
+            return transactionId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reserve the transaction id of a new operation, it must then be accepted or cancelled
+     */
+    public @NotNull UUID reserve() {
+        lock.readLock().lock();
+        try {
+            UUID transactionId = TransactionIds.next();
+            reserved.add(transactionId);
+            return transactionId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Release a reserved transaction id, its operation will not be accepted
+     */
+    public void cancel(@NotNull UUID transactionId) {
+        reserved.remove(transactionId);
+    }
+
+    /**
+     * Accept a new operation with a reserved transaction id: register it, and fold its amount
+     * @param register register the operation (Called before the fold)
+     */
+    public void accept(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount,
+                       @NotNull Runnable register) {
+        lock.readLock().lock();
+        try {
+            register.run();
+            apply(tags, amount);
+            reserved.remove(transactionId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Accept a new operation setting the balance of a seeded account: its amount is the difference with the current
+     * balance, computed while no other operation can be accepted
+     * @param transactionId reserved transaction id
+     * @param register register the operation (Called with the amount, before the fold)
+     * @return the amount of the operation
+     */
+    public int acceptSet(@NotNull UUID transactionId, @NotNull AccountKey key, int target,
+                         @NotNull IntConsumer register) {
+        lock.writeLock().lock();
+        try {
+            Balance balance = balances.get(key);
+            if (balance == null || !balance.seeded) throw new IllegalStateException("Account is not seeded");
+            int amount = target - balance.value;
+            register.accept(amount);
+            balance.add(amount);
+            reserved.remove(transactionId);
+            return amount;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fold an operation already registered (Operation recovered, cancelled or rejected)
+     * @param register register or remove the operation, before the fold
+     */
+    public void fold(@NotNull Map<String, Object> tags, int amount, @NotNull Runnable register) {
+        lock.readLock().lock();
+        try {
+            register.run();
+            apply(tags, amount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void apply(@NotNull Map<String, Object> tags, int amount) {
+        for (Map.Entry<String, Object> tag : tags.entrySet()) {
+            AccountKey key = new AccountKey(tag.getKey(), tag.getValue());
+            if (checkpoints) {
+                balances.computeIfAbsent(key, k -> new Balance()).add(amount);
+            } else {
+                Balance balance = balances.get(key);
+                if (balance != null) balance.add(amount);
+            }
+        }
+    }
+
+    /**
+     * Get the balance of a seeded account
+     * @return account balance, or null if the account is not seeded
+     */
+    public @Nullable Integer get(@NotNull AccountKey key) {
+        Balance balance = balances.get(key);
+        if (balance == null || !balance.seeded) return null;
+        return balance.value;
+    }
+
+    /**
+     * Seed an account, if not already seeded
+     * @param seed balance of the account, including all operations accepted until now
+     *             (Called while no operation can be accepted)
+     * @return the account balance
+     */
+    public int seed(@NotNull AccountKey key, @NotNull IntSupplier seed) {
+        lock.writeLock().lock();
+        try {
+            Balance balance = balances.get(key);
+            if (balance != null && balance.seeded) return balance.value;
+            int value = seed.getAsInt();
+            if (balance == null) {
+                balance = new Balance();
+                balances.put(key, balance);
+                balance.checkpointed = balance.version;
+            }
+            //  Operations folded before seeding are dropped, they are included in the seed
+            balance.value = value;
+            balance.seeded = true;
+            return value;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get accounts updated by operations, but not seeded yet
+     */
+    public @NotNull List<AccountKey> getUnseeded() {
+        List<AccountKey> unseeded = new ArrayList<>();
+        balances.forEach((key, balance) -> {
+            if (!balance.seeded) unseeded.add(key);
+        });
+        return unseeded;
+    }
+
+    /**
+     * Check if some accounts were updated since their last checkpoint
+     */
+    public boolean isDirty() {
+        for (Balance balance : balances.values()) {
+            if (balance.isDirty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take a consistent copy of all accounts updated since their last checkpoint.
+     * If a reserved transaction id is not accepted yet, the watermark is this id, and operations folded with a greater
+     * transaction id are removed from balances (these accounts stay updated, until a later checkpoint includes them).
+     * @param after sum of folded operations of an account with a transaction id greater than the watermark
+     */
+    public @NotNull Snapshot snapshot(@NotNull ToIntBiFunction<AccountKey, UUID> after) {
+        lock.writeLock().lock();
+        try {
+            //  Greater than all transaction ids of operations folded until now, unless an operation is reserved
+            UUID watermark = TransactionIds.next();
+            UUID oldestReserved = reserved.isEmpty() ? null : reserved.first();
+            boolean pending = oldestReserved != null && oldestReserved.compareTo(watermark) < 0;
+            if (pending) watermark = oldestReserved;
+            List<AccountBalance> accounts = new ArrayList<>();
+            boolean complete = true;
+            for (Map.Entry<AccountKey, Balance> entry : balances.entrySet()) {
+                Balance balance = entry.getValue();
+                if (!balance.seeded) {
+                    complete = false;
+                } else if (balance.isDirty()) {
+                    int excluded = pending ? after.applyAsInt(entry.getKey(), watermark) : 0;
+                    accounts.add(new AccountBalance(entry.getKey(), balance.value - excluded,
+                            excluded == 0 ? balance.version : balance.checkpointed));
+                }
+            }
+            return new Snapshot(watermark, accounts, complete);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Mark an account as written in the accounts index
+     * @param version version of the account balance written
+     */
+    public void checkpointed(@NotNull AccountKey key, long version) {
+        Balance balance = balances.get(key);
+        if (balance != null) {
+            synchronized (balance) {
+                balance.checkpointed = Math.max(balance.checkpointed, version);
+            }
+        }
+    }
+
+    /**
+     * Accounts balances to write in the accounts index
+     * @param watermark all operations folded in these balances have a lower transaction id (and no operation with a
+     *                  lower transaction id will be folded later)
+     * @param complete  false if some updated accounts are not seeded (so not included)
+     */
+    public record Snapshot(@NotNull UUID watermark, @NotNull List<AccountBalance> accounts, boolean complete) {}
+
+    public record AccountBalance(@NotNull AccountKey key, int balance, long version) {}
+
+    private static final class Balance {
+        private volatile int value = 0;
+        private volatile boolean seeded = false;
+        private volatile long version = 0L;
+        private long checkpointed = 0L;
+
+        private synchronized void add(int amount) {
+            value += amount;
+            version++;
+        }
+
+        private synchronized boolean isDirty() {
+            return seeded && version != checkpointed;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.milekat.banks.utils.MoneyOperation;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write money operations straight to a bulk request body (NDJSON), sent with the low level rest client.
+ * Field names are pre-encoded and the body buffer is reused between requests, so no intermediate document is built
+ * for each operation. The response is read with a streaming parser, only keeping the status and error of each item.
+ * Not thread-safe, used by the bulk thread only.
+ */
+class BulkWriter {
+    private static final JsonFactory FACTORY = new ObjectMapper().getFactory().setRootValueSeparator(null);
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+    private static final int INITIAL_BUFFER_SIZE = 65536;
+    private static final SerializedString CREATE = new SerializedString("create");
+    private static final SerializedString INDEX = new SerializedString("_index");
+    private static final SerializedString ID = new SerializedString("_id");
+    private static final SerializedString TRANSACTION_ID = new SerializedString("transactionId");
+    private static final SerializedString TAGS = new SerializedString("tags");
+    private static final SerializedString OPERATION = new SerializedString("operation");
+    private static final SerializedString REASON = new SerializedString("reason");
+    private static final SerializedString TIMESTAMP = new SerializedString("@timestamp");
+    private static final SerializedString CORRELATION_ID = new SerializedString("correlationId");
+
+    private final RestClient client;
+    private final SerializedString index;
+    private Body body = new Body(INITIAL_BUFFER_SIZE);
+
+    BulkWriter(@NotNull RestClient client, @NotNull String index) {
+        this.client = client;
+        this.index = new SerializedString(index);
+    }
+
+    /**
+     * Save operations with a single bulk request ("create" actions, existing documents are not replaced)
+     * @return status and error of each operation, in the same order
+     */
+    @NotNull Result write(@NotNull List<MoneyOperation> operations) throws IOException {
+        long start = System.nanoTime();
+        writeBody(operations);
+        long serialization = System.nanoTime() - start;
+        Request request = new Request("POST", "/_bulk");
+        request.setEntity(new ByteArrayEntity(body.array(), 0, body.size(), NDJSON));
+        Response response;
+        try {
+            response = client.performRequest(request);
+        } catch (IOException exception) {
+            //  The request may still be read by the client, don't reuse its buffer
+            body = new Body(INITIAL_BUFFER_SIZE);
+            throw exception;
+        }
+        try (InputStream content = response.getEntity().getContent();
+             JsonParser parser = FACTORY.createParser(content)) {
+            return readResponse(parser, operations.size(), body.size(), serialization);
+        }
+    }
+
+    /**
+     * Write the bulk request body of operations in the reused buffer
+     * @return size of the body in bytes
+     */
+    int writeBody(@NotNull List<MoneyOperation> operations) throws IOException {
+        body.reset();
+        try (JsonGenerator generator = FACTORY.createGenerator(body)) {
+            for (MoneyOperation operation : operations) {
+                writeOperation(generator, operation);
+            }
+        }
+        return body.size();
+    }
+
+    private void writeOperation(@NotNull JsonGenerator generator, @NotNull MoneyOperation operation)
+            throws IOException {
+        String transactionId = operation.transactionId().toString();
+        generator.writeStartObject();
+        generator.writeFieldName(CREATE);
+        generator.writeStartObject();
+        generator.writeFieldName(INDEX);
+        generator.writeString(index);
+        generator.writeFieldName(ID);
+        generator.writeString(transactionId);
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        generator.writeStartObject();
+        generator.writeFieldName(TRANSACTION_ID);
+        generator.writeString(transactionId);
+        generator.writeFieldName(TAGS);
+        generator.writeStartObject();
+        for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+            generator.writeFieldName(tag.getKey());
+            //  Written by the mapper, so any tag value (UUID, enum...) is written like the Elasticsearch client does
+            generator.writeObject(tag.getValue());
+        }
+        generator.writeEndObject();
+        generator.writeFieldName(OPERATION);
+        generator.writeNumber(operation.amount());
+        generator.writeFieldName(REASON);
+        generator.writeString(operation.reason());
+        generator.writeFieldName(TIMESTAMP);
+        generator.writeNumber(operation.timestamp());
+        if (operation.correlationId() != null) {
+            generator.writeFieldName(CORRELATION_ID);
+            generator.writeString(operation.correlationId().toString());
+        }
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    private static @NotNull Result readResponse(@NotNull JsonParser parser, int count, int bytes,
+                                                long serialization) throws IOException {
+        long took = 0L;
+        int[] statuses = null;
+        String[] errors = new String[count];
+        if (parser.nextToken() != JsonToken.START_OBJECT) throw new IOException("Invalid bulk response");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "took" -> took = parser.getLongValue();
+                case "items" -> statuses = readItems(parser, errors);
+                default -> parser.skipChildren();
+            }
+        }
+        if (statuses == null || statuses.length != count) {
+            throw new IOException("Invalid bulk response, items don't match operations");
+        }
+        return new Result(took, statuses, errors, bytes, serialization);
+    }
+
+    /**
+     * Read items of the response: [{"create": {"status": 201, "error": {"type": "", "reason": ""}, ...}}, ...]
+     */
+    private static int @NotNull [] readItems(@NotNull JsonParser parser, @Nullable String @NotNull [] errors)
+            throws IOException {
+        int[] statuses = new int[errors.length];
+        int i = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            if (i >= statuses.length) throw new IOException("Invalid bulk response, too many items");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("status")) {
+                        statuses[i] = parser.getIntValue();
+                    } else if (field.equals("error")) {
+                        errors[i] = readError(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            i++;
+        }
+        if (i != statuses.length) throw new IOException("Invalid bulk response, missing items");
+        return statuses;
+    }
+
+    private static @NotNull String readError(@NotNull JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) return parser.getValueAsString("unknown");
+        String type = null;
+        String reason = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("type")) {
+                type = parser.getValueAsString();
+            } else if (field.equals("reason")) {
+                reason = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return type + ": " + reason;
+    }
+
+    /**
+     * Result of a bulk request
+     * @param took execution time in Elasticsearch (ms)
+     * @param statuses status of each operation
+     * @param errors error of each operation (null if saved)
+     * @param bytes size of the request body
+     * @param serialization time spent to write the request body (ns)
+     */
+    record Result(long took, int @NotNull [] statuses, @Nullable String @NotNull [] errors, int bytes,
+                  long serialization) {}
+
+    /**
+     * Byte array output stream exposing its buffer, to send it without copy
+     */
+    private static final class Body extends ByteArrayOutputStream {
+        private Body(int size) {
+            super(size);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+}
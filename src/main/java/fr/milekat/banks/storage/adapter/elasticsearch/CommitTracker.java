@@ -0,0 +1,88 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Track accepted operations until they are saved (acknowledged by the storage), to notify waiting plugins.
+ * Outcomes of the latest completed operations (saved or failed) are kept, so they can still be awaited.
+ */
+public class CommitTracker {
+    private static final CompletableFuture<Void> COMMITTED = CompletableFuture.completedFuture(null);
+    private static final int MAX_COMPLETED = 65536;
+    private final Map<UUID, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    //  Latest completed operations, the oldest are dropped once max completed is reached
+    private final Map<UUID, CompletableFuture<Void>> completed = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, CompletableFuture<Void>> eldest) {
+            return size() > MAX_COMPLETED;
+        }
+    };
+
+    /**
+     * Register a new accepted operation
+     */
+    public void accepted(@NotNull UUID transactionId) {
+        pending.put(transactionId, new CompletableFuture<>());
+    }
+
+    /**
+     * Operation saved in storage
+     */
+    public void committed(@NotNull UUID transactionId) {
+        CompletableFuture<Void> commit = pending.get(transactionId);
+        if (commit == null) return;
+        complete(transactionId, COMMITTED);
+        commit.complete(null);
+    }
+
+    /**
+     * Operation not saved (rejected by the storage, or cancelled)
+     */
+    public void failed(@NotNull UUID transactionId, @NotNull Throwable cause) {
+        CompletableFuture<Void> commit = pending.get(transactionId);
+        if (commit == null) return;
+        complete(transactionId, CompletableFuture.failedFuture(cause));
+        commit.completeExceptionally(cause);
+    }
+
+    /**
+     * Keep the outcome of an operation, then stop tracking it (Completed operations are found before they are
+     * removed from pending operations)
+     */
+    private void complete(@NotNull UUID transactionId, @NotNull CompletableFuture<Void> outcome) {
+        synchronized (completed) {
+            completed.put(transactionId, outcome);
+        }
+        pending.remove(transactionId);
+    }
+
+    /**
+     * Fail all operations still waiting
+     */
+    public void failAll(@NotNull Throwable cause) {
+        pending.keySet().forEach(transactionId -> failed(transactionId, cause));
+    }
+
+    /**
+     * Get a future completed when the operation is saved
+     * @return the commit future: already completed if the operation was recently saved or failed, and completed
+     * exceptionally if the operation is unknown (not accepted by this storage, or completed too long ago)
+     */
+    public @NotNull CompletableFuture<Void> await(@NotNull UUID transactionId) {
+        CompletableFuture<Void> commit = pending.get(transactionId);
+        if (commit != null) return commit;
+        synchronized (completed) {
+            commit = completed.get(transactionId);
+        }
+        if (commit != null) return commit;
+        return CompletableFuture.failedFuture(new StorageExecuteException(new Throwable(), "Transaction '" +
+                transactionId + "' is unknown: not accepted by this server, or completed too long ago."));
+    }
+}
@@ -0,0 +1,122 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.milekat.banks.utils.MoneyOperation;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Local file of money operations permanently rejected by the storage, one JSON line per operation.
+ * Admins can inspect the file, and replay operations with /money deadletters replay.
+ */
+public class DeadLetters {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private final File file;
+
+    public DeadLetters(@NotNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Append a rejected operation
+     * @param status storage response status (0 if unknown)
+     * @param error rejection reason
+     */
+    public void append(@NotNull MoneyOperation operation, int status, @Nullable String error) throws IOException {
+        append(List.of(operation), status, error);
+    }
+
+    /**
+     * Append rejected operations, in a single write
+     * @param status storage response status (0 if unknown)
+     * @param error rejection reason
+     */
+    public synchronized void append(@NotNull List<MoneyOperation> operations, int status, @Nullable String error)
+            throws IOException {
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Can't create folder " + folder.getPath());
+        }
+        long failedAt = System.currentTimeMillis();
+        StringBuilder lines = new StringBuilder();
+        for (MoneyOperation operation : operations) {
+            lines.append(MAPPER.writeValueAsString(new DeadLetter(operation, status, error, failedAt))).append('\n');
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(lines.toString());
+        }
+    }
+
+    /**
+     * Read all rejected operations, they are kept until they are removed
+     * @return rejected operations, in rejection order (An operation rejected again after a restart is only
+     * returned once)
+     */
+    public synchronized @NotNull List<MoneyOperation> readAll() throws IOException {
+        Map<UUID, MoneyOperation> operations = new LinkedHashMap<>();
+        if (!file.exists()) return new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                MoneyOperation operation = MAPPER.readValue(line, DeadLetter.class).operation();
+                operations.putIfAbsent(operation.transactionId(), operation);
+            }
+        }
+        return new ArrayList<>(operations.values());
+    }
+
+    /**
+     * Remove rejected operations (replayed), operations rejected since they were read are kept.
+     * The file is rewritten in a temporary file, then atomically replaced.
+     */
+    public synchronized void remove(@NotNull Collection<UUID> transactionIds) throws IOException {
+        if (!file.exists()) return;
+        Set<UUID> removed = new HashSet<>(transactionIds);
+        File rewritten = new File(file.getPath() + ".tmp");
+        int kept = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+             Writer writer = new OutputStreamWriter(new FileOutputStream(rewritten), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                if (removed.contains(MAPPER.readValue(line, DeadLetter.class).operation().transactionId())) continue;
+                writer.write(line);
+                writer.write('\n');
+                kept++;
+            }
+        }
+        if (kept == 0) {
+            Files.delete(rewritten.toPath());
+            Files.delete(file.toPath());
+        } else {
+            Files.move(rewritten.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Count rejected operations
+     */
+    public synchronized int size() throws IOException {
+        if (!file.exists()) return 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return (int) reader.lines().filter(line -> !line.isBlank()).count();
+        }
+    }
+
+    private record DeadLetter(MoneyOperation operation, int status, String error, long failedAt) {}
+}
@@ -0,0 +1,81 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.transport.rest_client.RestClientTransport;
+import fr.milekat.banks.Main;
+import fr.milekat.utils.Configs;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.elasticsearch.client.RestClient;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Long-lived and thread-safe Elasticsearch client, shared by all storage operations.
+ * Connections are pooled and kept alive between requests.
+ */
+public class ESClient implements Closeable {
+    private final RestClient restClient;
+    private final RestClientTransport transport;
+    private final ElasticsearchClient client;
+
+    public ESClient(@NotNull Configs config) {
+        String hostname = config.getString("storage.elasticsearch.hostname", "localhost");
+        int port = Integer.parseInt(config.getString("storage.elasticsearch.port", "9200"));
+        String scheme = config.getString("storage.elasticsearch.scheme", "http");
+        String username = config.getString("storage.elasticsearch.username", "");
+        String password = config.getString("storage.elasticsearch.password", "");
+        int maxConnections = config.getInt("storage.elasticsearch.pool.max_connections", 30);
+        int maxConnectionsPerRoute = config.getInt("storage.elasticsearch.pool.max_connections_per_route", 10);
+        int connectTimeout = config.getInt("storage.elasticsearch.pool.connect_timeout", 5000);
+        int socketTimeout = config.getInt("storage.elasticsearch.pool.socket_timeout", 30000);
+        long keepAlive = config.getLong("storage.elasticsearch.pool.keep_alive", 60000L);
+
+        BasicCredentialsProvider credentials = new BasicCredentialsProvider();
+        if (!username.isBlank()) {
+            credentials.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+        }
+        this.restClient = RestClient.builder(new HttpHost(hostname, port, scheme))
+                .setRequestConfigCallback(request -> request
+                        .setConnectTimeout(connectTimeout)
+                        .setSocketTimeout(socketTimeout))
+                .setHttpClientConfigCallback(httpClient -> httpClient
+                        .setDefaultCredentialsProvider(credentials)
+                        .setMaxConnTotal(maxConnections)
+                        .setMaxConnPerRoute(maxConnectionsPerRoute)
+                        .setKeepAliveStrategy((response, context) -> keepAlive)
+                        .setDefaultIOReactorConfig(IOReactorConfig.custom().setSoKeepAlive(true).build()))
+                .build();
+        this.transport = new RestClientTransport(restClient, new JacksonJsonpMapper());
+        this.client = new ElasticsearchClient(transport);
+        Main.getMileLogger().debug("ElasticSearch client created (" + scheme + "://" + hostname + ":" + port +
+                ", max connections: " + maxConnections + ").");
+    }
+
+    /**
+     * Get the Elasticsearch client
+     * @return shared Elasticsearch client
+     */
+    public @NotNull ElasticsearchClient getEsClient() {
+        return client;
+    }
+
+    /**
+     * Get the low level rest client
+     * @return shared rest client
+     */
+    public @NotNull RestClient getRestClient() {
+        return restClient;
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+}
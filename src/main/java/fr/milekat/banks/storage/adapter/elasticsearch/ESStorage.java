@@ -1,52 +1,127 @@
 package fr.milekat.banks.storage.adapter.elasticsearch;
 
 import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.MgetResponse;
+import co.elastic.clients.elasticsearch.core.MsearchRequest;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
-import co.elastic.clients.elasticsearch.core.bulk.CreateOperation;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.elasticsearch.core.bulk.IndexOperation;
+import co.elastic.clients.elasticsearch.core.get.GetResult;
+import co.elastic.clients.elasticsearch.core.mget.MultiGetResponseItem;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchResponseItem;
 import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.SourceConfig;
+import co.elastic.clients.json.JsonData;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import fr.milekat.banks.Main;
-import fr.milekat.banks.api.events.MoneyPrepareOperation;
-import fr.milekat.banks.api.events.MoneySavedSuccessfully;
+import fr.milekat.banks.api.batch.Operation;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
 import fr.milekat.banks.storage.CacheManager;
 import fr.milekat.banks.storage.StorageImplementation;
+import fr.milekat.banks.storage.WriteAheadLog;
+import fr.milekat.banks.utils.AccountKey;
 import fr.milekat.banks.utils.BankAccount;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
 import fr.milekat.utils.Configs;
-import fr.milekat.utils.DateMileKat;
-import fr.milekat.utils.storage.StorageConnection;
-import fr.milekat.utils.storage.adapter.elasticsearch.connetion.ESConnection;
 import fr.milekat.utils.storage.adapter.elasticsearch.features.Index;
 import fr.milekat.utils.storage.adapter.elasticsearch.features.Transforms;
 import fr.milekat.utils.storage.adapter.elasticsearch.utils.Builders;
 import fr.milekat.utils.storage.exceptions.StorageExecuteException;
 import fr.milekat.utils.storage.exceptions.StorageLoadException;
 import org.bukkit.Bukkit;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 public class ESStorage implements StorageImplementation {
-    private final Configs config;
+    private static final long IDLE_WAIT = TimeUnit.HOURS.toNanos(1L);
+    private static final long PRUNE_INTERVAL = TimeUnit.SECONDS.toNanos(1L);
+    private static final int SEARCH_ATTEMPTS = 5;
+    private static final long RUNNING_CHECKPOINT_WAIT = 100L;
+    private static final long FLUSHER_INTERRUPT_WAIT = 1000L;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> TAGS_TYPE = new TypeReference<>() {};
+    private static final SourceConfig HISTORY_SOURCE = SourceConfig.of(source -> source.filter(filter -> filter
+            .includes("transactionId", "tags", "operation", "reason")));
+    private static final int HISTORY_PAGE_SIZE = 1000;
+    private static final String HISTORY_KEEP_ALIVE = "1m";
+    private final ESClient client;
     private final String BANK_INDEX_TRANSACTIONS;
     private final Map<String, Class<?>> transactions_fields = new HashMap<>();
 
     private final String BANK_INDEX_ACCOUNTS;
     private final Map<String, Class<?>> accounts_fields = new HashMap<>();
     private final String numberOfReplicas;
-    private final Map<UUID, BulkOperation> moneyOperations = new HashMap<>();
+    private final OperationsQueue moneyOperations;
+    private final BulkWriter bulkWriter;
+    private final int bulkSize;
+    private final long bulkBytes;
+    private final long bulkLatencyNanos;
+    private volatile boolean flushing = false;
+    //  Shutdown drain: operations failing to be sent are left in the write-ahead log
+    private volatile boolean draining = false;
+    private Thread flusher;
+    private final DelayQueue<RetryOperation> retries = new DelayQueue<>();
+    private final Map<UUID, Integer> attempts = new HashMap<>();
+    private final int maxRetries;
+    private final long baseBackoffNanos;
+    private final long maxBackoffNanos;
+    private final DeadLetters deadLetters;
+    private final BalancesOverlay overlay;
+    private final @Nullable TransformCheckpoints transformCheckpoints;
+    private final Object checkpointsLock = new Object();
+    private final Object replayLock = new Object();
+    private long checkpointsPolledAt = System.nanoTime() - IDLE_WAIT;
+    private boolean checkpointsPolled = false;
+    private final CommitTracker commits = new CommitTracker();
+    //  Queued operations with saved events (Not imported or recovered operations)
+    private final Set<UUID> notifications = ConcurrentHashMap.newKeySet();
+    private final long shutdownTimeoutNanos;
+    private final @Nullable WriteAheadLog wal;
+    private final Map<AccountKey, CompletableFuture<StoredSearch>> searches = new ConcurrentHashMap<>();
+    //  Accepting operations (shared) and set operations (exclusive), when balances are not projected
+    private final ReadWriteLock acceptLock = new ReentrantReadWriteLock();
+    private final @Nullable BalancesProjection projection;
+    private final boolean transforms;
+    private final boolean checkpoints;
+    private final long checkpointIntervalNanos;
+    private long nextCheckpoint = 0L;
+    private final Queue<UUID> uncheckpointed = new ConcurrentLinkedQueue<>();
 
     /*
         Main DB
     */
     public ESStorage(@NotNull Configs config) throws StorageLoadException {
-        this.config = config;
         String prefix = config.getString("storage.elasticsearch.prefix", "bank-");
         if (!prefix.matches("[a-z0-9][a-z0-9-]{0,19}")) {
             throw new StorageLoadException("Elasticsearch prefix wrong, please only lower cases (a-z), " +
@@ -55,40 +130,121 @@ public class ESStorage implements StorageImplementation {
         this.BANK_INDEX_TRANSACTIONS = prefix + "transactions";
         this.BANK_INDEX_ACCOUNTS = prefix + "accounts";
         this.numberOfReplicas = config.getString("storage.elasticsearch.replicas", "0");
+        this.transforms = config.getBoolean("storage.elasticsearch.projection.transforms", true);
+        if (config.getBoolean("storage.elasticsearch.projection.enabled", false)) {
+            this.checkpoints = !transforms;
+            this.projection = new BalancesProjection(checkpoints);
+        } else if (!transforms) {
+            throw new StorageLoadException("Accounts transforms can't be disabled without the balances projection.");
+        } else {
+            this.checkpoints = false;
+            this.projection = null;
+        }
+        this.checkpointIntervalNanos = TimeUnit.NANOSECONDS.convert(
+                config.getLong("storage.elasticsearch.projection.checkpoint_interval", 5L), TimeUnit.SECONDS);
+        //  With checkpoints, operations are kept until a checkpoint includes them
+        this.overlay = new BalancesOverlay(checkpoints ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.convert(
+                config.getLong("storage.elasticsearch.transform_delay", 10L), TimeUnit.SECONDS),
+                config.getLong("storage.elasticsearch.refresh_interval", 1000L));
         transactions_fields.put("uuid", UUID.class);
         transactions_fields.put("operation", Double.class);
         transactions_fields.put("reason", String.class);
         transactions_fields.put("transactionId", UUID.class);
+        transactions_fields.put("correlationId", UUID.class);
         transactions_fields.put("@timestamp", Date.class);
         accounts_fields.put("amount", Integer.class);
         accounts_fields.putAll(Main.TAGS);
-        try (StorageConnection connection = getConnection()) {
-            Main.getMileLogger().debug(connection.getEsClient().cluster().health().toString());
+        if (checkpoints) accounts_fields.put("watermark", UUID.class);
+        this.bulkSize = Math.max(1, config.getInt("storage.elasticsearch.bulk.batch_size", 1000));
+        this.bulkBytes = Math.max(1L, config.getLong("storage.elasticsearch.bulk.batch_bytes", 5242880L));
+        this.bulkLatencyNanos = TimeUnit.NANOSECONDS.convert(
+                config.getLong("storage.elasticsearch.bulk.max_latency", 1000L), TimeUnit.MILLISECONDS);
+        this.maxRetries = config.getInt("storage.elasticsearch.bulk.max_retries", 10);
+        this.baseBackoffNanos = TimeUnit.NANOSECONDS.convert(
+                config.getLong("storage.elasticsearch.bulk.retry_backoff", 500L), TimeUnit.MILLISECONDS);
+        this.maxBackoffNanos = TimeUnit.NANOSECONDS.convert(
+                config.getLong("storage.elasticsearch.bulk.max_retry_backoff", 60000L), TimeUnit.MILLISECONDS);
+        this.shutdownTimeoutNanos = TimeUnit.NANOSECONDS.convert(
+                config.getLong("storage.shutdown_timeout", 10L), TimeUnit.SECONDS);
+        this.deadLetters = new DeadLetters(new File(Main.getInstance().getDataFolder(), "dead-letters.ndjson"));
+        OperationsQueue.Backpressure backpressure;
+        try {
+            backpressure = OperationsQueue.Backpressure.valueOf(config.getString(
+                    "storage.elasticsearch.bulk.backpressure", "BLOCK").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            throw new StorageLoadException("Unknown bulk backpressure, please use BLOCK, REJECT or SPILL.");
+        }
+        SpillFile spill = null;
+        if (backpressure == OperationsQueue.Backpressure.SPILL) {
+            try {
+                spill = new SpillFile(new File(Main.getInstance().getDataFolder(), "spill/operations.ndjson"));
+                //  Spilled operations are logged before being queued, they are recovered from the write-ahead log
+                if (config.getBoolean("storage.wal.enabled", true)) spill.clear();
+            } catch (IOException exception) {
+                throw new StorageLoadException("Error while trying to load the money operations spill file");
+            }
+        }
+        this.moneyOperations = new OperationsQueue(
+                Math.max(bulkSize, config.getInt("storage.elasticsearch.bulk.queue_capacity", 100000)),
+                bulkSize, bulkBytes, backpressure,
+                TimeUnit.NANOSECONDS.convert(config.getLong("storage.elasticsearch.bulk.block_timeout", 5000L),
+                        TimeUnit.MILLISECONDS),
+                spill);
+        if (config.getBoolean("storage.wal.enabled", true)) {
+            try {
+                this.wal = new WriteAheadLog(new File(Main.getInstance().getDataFolder(), "wal"),
+                        config.getLong("storage.wal.segment_size", 67108864L),
+                        config.getBoolean("storage.wal.sync", true));
+                List<MoneyOperation> recovered = wal.recover();
+                recovered.forEach(operation -> {
+                    if (projection != null) {
+                        projection.fold(operation.tags(), operation.amount(), () -> register(operation));
+                    } else {
+                        register(operation);
+                    }
+                });
+                moneyOperations.requeue(recovered);
+            } catch (IOException exception) {
+                throw new StorageLoadException("Error while trying to load the write-ahead log");
+            }
+        } else {
+            this.wal = null;
+        }
+        this.client = new ESClient(config);
+        this.bulkWriter = new BulkWriter(client.getRestClient(), BANK_INDEX_TRANSACTIONS);
+        this.transformCheckpoints = transforms ? new TransformCheckpoints(client.getEsClient(),
+                BANK_INDEX_TRANSACTIONS, BANK_INDEX_ACCOUNTS) : null;
+        try {
+            Main.getMileLogger().debug(client.getEsClient().cluster().health().toString());
+            //  Accounts of recovered operations must be seeded before any of these operations is rejected
+            if (checkpoints) seedAccounts(projection.getUnseeded());
             saveOperation();
-        } catch (IOException exception) {
+        } catch (ElasticsearchException | IOException | StorageExecuteException exception) {
+            try {
+                client.close();
+                if (wal != null) wal.close();
+            } catch (IOException ignored) {}
             throw new StorageLoadException("Error while trying to load ElasticSearch cluster");
         }
     }
 
-    @Contract(" -> new")
-    private @NotNull ESConnection getConnection() {
-        return new ESConnection(config, Main.getMileLogger());
-    }
-
     @Override
     public boolean checkStorages() {
         Main.getMileLogger().debug("Check if storage is ready...");
         String TAGS_FIELD = "tags";
-        try (StorageConnection connection = getConnection()){
+        try {
             Main.getMileLogger().debug("Check indices...");
-            new Index(connection.getEsClient(), BANK_INDEX_TRANSACTIONS, numberOfReplicas,
+            new Index(client.getEsClient(), BANK_INDEX_TRANSACTIONS, numberOfReplicas,
                     transactions_fields, Main.TAGS, TAGS_FIELD);
-            new Index(connection.getEsClient(), BANK_INDEX_ACCOUNTS, numberOfReplicas,
+            new Index(client.getEsClient(), BANK_INDEX_ACCOUNTS, numberOfReplicas,
                     accounts_fields, new HashMap<>(), "");
-            Main.getMileLogger().debug("Check transforms...");
-            for (Map.Entry<String, Class<?>> tag : Main.TAGS.entrySet()) {
-                new Transforms(connection.getEsClient(), BANK_INDEX_TRANSACTIONS, BANK_INDEX_ACCOUNTS,
-                        Map.of(tag.getKey(), tag.getValue()));
+            if (transforms) {
+                Main.getMileLogger().debug("Check transforms...");
+                for (Map.Entry<String, Class<?>> tag : Main.TAGS.entrySet()) {
+                    new Transforms(client.getEsClient(), BANK_INDEX_TRANSACTIONS, BANK_INDEX_ACCOUNTS,
+                            Map.of(tag.getKey(), tag.getValue()));
+                }
+                findTransforms();
             }
             Main.getMileLogger().debug("Storage is ready.");
             return true;
@@ -99,10 +255,104 @@ public class ESStorage implements StorageImplementation {
         return false;
     }
 
+    /**
+     * Find the accounts transforms to follow their checkpoints
+     */
+    private void findTransforms() {
+        Objects.requireNonNull(transformCheckpoints);
+        try {
+            Set<String> missing = transformCheckpoints.discover(Main.TAGS.keySet());
+            if (!missing.isEmpty()) {
+                Main.getMileLogger().warning("Accounts transforms of tags " + missing + " not found, their " +
+                        "saved operations are applied over balances during the transform delay.");
+            }
+        } catch (ElasticsearchException | IOException exception) {
+            Main.getMileLogger().warning("Error while trying to find accounts transforms, saved operations are " +
+                    "applied over balances during the transform delay.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+    }
+
     @Override
     public void disconnect() {
-        Main.getMileLogger().debug("ElasticSearch automatically close connections after execution, " +
-                "using try-with-resources.");
+        if (!drain()) {
+            //  The flusher may still use them, waiting operations are recovered from the write-ahead log at next start
+            Main.getMileLogger().warning("Money operations flusher can't be stopped, ElasticSearch client and " +
+                    "write-ahead log are not closed.");
+            commits.failAll(new StorageExecuteException(new Throwable(),
+                    "Storage disconnected before the operation was saved."));
+            return;
+        }
+        try {
+            client.close();
+            Main.getMileLogger().debug("ElasticSearch client closed.");
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to close ElasticSearch client.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+        if (wal != null) {
+            try {
+                wal.close();
+            } catch (IOException exception) {
+                Main.getMileLogger().warning("Error while trying to close the write-ahead log.");
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        }
+        commits.failAll(new StorageExecuteException(new Throwable(),
+                "Storage disconnected before the operation was saved."));
+    }
+
+    /**
+     * Stop the flusher thread, and save all waiting operations (until the shutdown timeout).
+     * The flusher is interrupted if it's still running after the shutdown timeout.
+     * @return false if the flusher is still running
+     */
+    private boolean drain() {
+        long deadline = System.nanoTime() + shutdownTimeoutNanos;
+        flushing = false;
+        moneyOperations.wakeConsumer();
+        if (flusher != null) {
+            try {
+                flusher.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(shutdownTimeoutNanos)));
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            if (flusher.isAlive()) {
+                flusher.interrupt();
+                try {
+                    flusher.join(FLUSHER_INTERRUPT_WAIT);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (flusher.isAlive()) {
+                Main.getMileLogger().warning("Money operations flusher is still running, waiting operations " +
+                        "will be saved at next start.");
+                return false;
+            }
+        }
+        draining = true;
+        int waiting = moneyOperations.size() + retries.size();
+        if (waiting > 0) Main.getMileLogger().info("Saving '" + waiting + "' waiting money operation(s)...");
+        while ((!moneyOperations.isEmpty() || !retries.isEmpty()) && System.nanoTime() - deadline < 0) {
+            List<MoneyOperation> processing = new ArrayList<>();
+            RetryOperation retry;
+            //  Retries are not delayed anymore during shutdown
+            while (processing.size() < bulkSize && (retry = retries.peek()) != null && retries.remove(retry)) {
+                processing.add(retry.operation());
+            }
+            processing.addAll(moneyOperations.drain(bulkSize - processing.size(), bulkBytes));
+            if (processing.isEmpty()) break;
+            //  Storage unavailable: stop there, remaining operations are kept in the write-ahead log
+            if (!flush(processing)) break;
+        }
+        waiting = moneyOperations.size() + retries.size();
+        if (waiting > 0) {
+            Main.getMileLogger().warning("'" + waiting + "' money operation(s) not saved before shutdown, " +
+                    (wal != null ? "they will be saved at next start." : "they are lost (write-ahead log disabled)."));
+        }
+        if (checkpoints) checkpoint();
+        return true;
     }
 
     /*
@@ -111,31 +361,444 @@ public class ESStorage implements StorageImplementation {
 
     @Override
     public int getMoneyFromTag(@NotNull String tagName, @NotNull Object tagValue) throws StorageExecuteException {
-        Main.getMileLogger().debug("[ES-Sync] getMoneyFromTag - search money with tag '" + tagName + "=" + tagValue + "'.");
-        BoolQuery.Builder boolQuery = Builders.getBuilder(tagName, tagValue);
-        SearchRequest request = new SearchRequest.Builder()
-                        .index(BANK_INDEX_ACCOUNTS)
-                        .query(q -> q.bool(boolQuery.build()))
-                        .size(1)
-                        .build();
-        int balance = fetchMoney(request);
-        CacheManager.addCacheAccount(Main.BANK_ACCOUNTS_CACHE, new BankAccount(tagName, tagValue, balance));
-        return balance;
-    }
-
-    private int fetchMoney(@NotNull SearchRequest request) throws StorageExecuteException {
-        try (StorageConnection connection = getConnection()) {
-            try {
-                SearchResponse<ObjectNode> response = connection.getEsClient().search(request, ObjectNode.class);
-                Optional<Hit<ObjectNode>> money = response.hits().hits().stream().findFirst();
+        if (Main.DEBUG) Main.getMileLogger().debug("[ES-Sync] getMoneyFromTag - search money with tag '" +
+                tagName + "=" + tagValue + "'.");
+        AccountKey key = new AccountKey(tagName, tagValue);
+        return searchAccounts(List.of(key), false).get(key);
+    }
+
+    /**
+     * Wait for the result of a search already running in another thread
+     */
+    private @NotNull StoredSearch awaitSearch(@NotNull CompletableFuture<StoredSearch> search)
+            throws StorageExecuteException {
+        try {
+            return search.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new StorageExecuteException(exception, "Interrupted while waiting search request");
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof StorageExecuteException storageException) throw storageException;
+            throw new StorageExecuteException(exception.getCause(), "Error while executing search request");
+        }
+    }
+
+    @Override
+    public int getCacheBalance(@NotNull String tagName, @NotNull Object tagValue) throws StorageExecuteException {
+        if (projection == null) return getMoneyFromTags(Map.of(tagName, tagValue)).get(tagName);
+        AccountKey key = new AccountKey(tagName, tagValue);
+        Integer balance = projection.get(key);
+        if (balance != null) return balance;
+        return seedAccounts(List.of(key)).get(key);
+    }
+
+    @Override
+    public Map<String, Integer> getMoneyFromTags(@NotNull Map<String, Object> tags) throws StorageExecuteException {
+        Map<String, Integer> balances = new HashMap<>();
+        List<AccountKey> missing = new ArrayList<>();
+        if (projection != null) {
+            for (Map.Entry<String, Object> tag : tags.entrySet()) {
+                AccountKey key = new AccountKey(tag.getKey(), tag.getValue());
+                Integer balance = projection.get(key);
+                if (balance != null) {
+                    balances.put(tag.getKey(), balance);
+                } else {
+                    missing.add(key);
+                }
+            }
+            if (!missing.isEmpty()) {
+                seedAccounts(missing).forEach((key, balance) -> balances.put(key.tagName(), balance));
+            }
+            return balances;
+        }
+        //  Cached balances are invalidated while operations included in them are dropped
+        overlay.read(() -> {
+            for (Map.Entry<String, Object> tag : tags.entrySet()) {
+                Integer balance = Main.BANK_ACCOUNTS_CACHE.getBalance(tag.getKey(), tag.getValue());
+                if (balance != null) {
+                    balances.put(tag.getKey(), balance + overlay.getDelta(tag.getKey(), tag.getValue()));
+                } else {
+                    missing.add(new AccountKey(tag.getKey(), tag.getValue()));
+                }
+            }
+        });
+        if (!missing.isEmpty()) {
+            if (Main.DEBUG) Main.getMileLogger().debug("[ES-Sync] getMoneyFromTags - search " + missing.size() +
+                    " account(s).");
+            searchAccounts(missing, true).forEach((key, balance) -> balances.put(key.tagName(), balance));
+        }
+        return balances;
+    }
+
+    @Override
+    public void warmCache(@NotNull Map<String, Object> tags) throws StorageExecuteException {
+        if (projection != null) {
+            List<AccountKey> keys = tags.entrySet().stream()
+                    .map(tag -> new AccountKey(tag.getKey(), tag.getValue()))
+                    .filter(key -> projection.get(key) == null)
+                    .toList();
+            if (!keys.isEmpty()) seedAccounts(keys);
+            return;
+        }
+        if (!Main.BANK_ACCOUNTS_CACHE.isEnabled()) return;
+        List<AccountKey> keys = tags.entrySet().stream()
+                .map(tag -> new AccountKey(tag.getKey(), tag.getValue()))
+                .filter(key -> !Main.BANK_ACCOUNTS_CACHE.contains(key))
+                .toList();
+        if (keys.isEmpty()) return;
+        if (Main.DEBUG) Main.getMileLogger().debug("[ES-Sync] warmCache - search " + keys.size() + " account(s).");
+        searchAccounts(keys, false);
+    }
+
+    /**
+     * Search balances of multiple accounts in a single multi-search request, and cache them.
+     * Accounts already searched by another thread are not searched again, their running search is awaited.
+     * Accounts are searched again if operations were dropped from the overlay since they were searched.
+     * @param pending apply pending operations over stored balances
+     * @return balances of accounts (0 if the account doesn't exist)
+     */
+    private @NotNull Map<AccountKey, Integer> searchAccounts(@NotNull Collection<AccountKey> keys, boolean pending)
+            throws StorageExecuteException {
+        Map<AccountKey, Integer> balances = new HashMap<>();
+        Collection<AccountKey> remaining = keys;
+        for (int attempt = 1; !remaining.isEmpty(); attempt++) {
+            Map<AccountKey, CompletableFuture<StoredSearch>> owned = new LinkedHashMap<>();
+            Map<AccountKey, CompletableFuture<StoredSearch>> joined = new HashMap<>();
+            for (AccountKey key : remaining) {
+                CompletableFuture<StoredSearch> search = new CompletableFuture<>();
+                CompletableFuture<StoredSearch> inFlight = searches.putIfAbsent(key, search);
+                if (inFlight == null) {
+                    owned.put(key, search);
+                } else {
+                    joined.put(key, inFlight);
+                }
+            }
+            Map<AccountKey, StoredSearch> searched = new HashMap<>();
+            try {
+                if (!owned.isEmpty()) {
+                    searched.putAll(searchIncluded(owned.keySet()));
+                    owned.forEach((key, search) -> search.complete(searched.get(key)));
+                }
+            } catch (StorageExecuteException | RuntimeException exception) {
+                owned.values().forEach(search -> search.completeExceptionally(exception));
+                throw exception;
+            } finally {
+                owned.forEach(searches::remove);
+            }
+            for (Map.Entry<AccountKey, CompletableFuture<StoredSearch>> search : joined.entrySet()) {
+                searched.put(search.getKey(), awaitSearch(search.getValue()));
+            }
+            List<AccountKey> stale = new ArrayList<>();
+            for (Map.Entry<AccountKey, StoredSearch> search : searched.entrySet()) {
+                AccountKey key = search.getKey();
+                Runnable apply = () -> balances.put(key, search.getValue().balance() +
+                        (pending ? overlay.getDelta(key.tagName(), key.tagValue()) : 0));
+                if (attempt >= SEARCH_ATTEMPTS) {
+                    overlay.read(apply);
+                } else if (!overlay.runIfUnchanged(search.getValue().version(), apply)) {
+                    stale.add(key);
+                }
+            }
+            remaining = stale;
+        }
+        return balances;
+    }
+
+    /**
+     * Search stored balances of accounts and cache them, consistent with operations of the overlay.
+     * If some operations of these accounts can be included by a transform checkpoint, checkpoints are read after
+     * the search: accounts are searched again if operations were dropped meanwhile, or if a checkpoint is running.
+     * @return stored balances of accounts (0 if the account doesn't exist), with the overlay version
+     */
+    private @NotNull Map<AccountKey, StoredSearch> searchIncluded(@NotNull Collection<AccountKey> keys)
+            throws StorageExecuteException {
+        for (int attempt = 1; ; attempt++) {
+            long version = overlay.version();
+            long start = System.nanoTime();
+            Map<AccountKey, Integer> found = multiSearch(keys);
+            boolean stable = true;
+            if (transformCheckpoints != null && overlay.hasAcknowledged(keys)) {
+                stable = refreshCheckpoints(start) &&
+                        keys.stream().noneMatch(key -> transformCheckpoints.isRunning(key.tagName()));
+            }
+            Map<AccountKey, StoredSearch> searched = new HashMap<>();
+            Runnable cache = () -> {
+                for (AccountKey key : keys) {
+                    Integer balance = found.get(key);
+                    if (balance == null) {
+                        Main.BANK_ACCOUNTS_CACHE.putMissing(key);
+                        balance = 0;
+                    } else {
+                        CacheManager.addCacheAccount(new BankAccount(key.tagName(), key.tagValue(), balance));
+                    }
+                    searched.put(key, new StoredSearch(balance, overlay.version()));
+                }
+            };
+            if (stable && overlay.runIfUnchanged(version, cache)) return searched;
+            if (attempt >= SEARCH_ATTEMPTS) {
+                Main.getMileLogger().debug("[ES-Sync] Accounts are updated by transforms, searched balances may " +
+                        "include operations still pending.");
+                overlay.read(cache);
+                return searched;
+            }
+            if (!stable) awaitCheckpoint();
+        }
+    }
+
+    /**
+     * Wait before searching again accounts updated by a running transform checkpoint
+     */
+    private static void awaitCheckpoint() throws StorageExecuteException {
+        try {
+            Thread.sleep(RUNNING_CHECKPOINT_WAIT);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new StorageExecuteException(exception, "Interrupted while waiting accounts transforms");
+        }
+    }
+
+    /**
+     * Stored balance of an account
+     * @param version overlay version the balance is consistent with
+     */
+    private record StoredSearch(int balance, long version) {}
+
+    /**
+     * Read the transforms checkpoints (unless they were read since this time), and drop operations included by
+     * checkpoints completed since the last read
+     * @param since time of the oldest accepted read (System.nanoTime)
+     * @return false if the checkpoints can't be read
+     */
+    private boolean refreshCheckpoints(long since) {
+        Objects.requireNonNull(transformCheckpoints);
+        synchronized (checkpointsLock) {
+            if (checkpointsPolledAt - since >= 0) return checkpointsPolled;
+            checkpointsPolledAt = System.nanoTime();
+            try {
+                transformCheckpoints.poll().forEach(overlay::include);
+                checkpointsPolled = true;
+            } catch (ElasticsearchException | IOException exception) {
+                checkpointsPolled = false;
+                Main.getMileLogger().debug("Error while trying to read accounts transforms stats: " +
+                        exception.getMessage());
+            }
+            return checkpointsPolled;
+        }
+    }
+
+    /**
+     * Execute one search per account on accounts index, in a single multi-search request
+     * @return balances of found accounts
+     */
+    private @NotNull Map<AccountKey, Integer> multiSearch(@NotNull Collection<AccountKey> keys)
+            throws StorageExecuteException {
+        List<AccountKey> ordered = new ArrayList<>(keys);
+        MsearchRequest.Builder request = new MsearchRequest.Builder();
+        for (AccountKey key : ordered) {
+            BoolQuery boolQuery = Builders.getBuilder(key.tagName(), key.tagValue()).build();
+            request.searches(search -> search
+                    .header(header -> header.index(BANK_INDEX_ACCOUNTS))
+                    .body(body -> body.query(q -> q.bool(boolQuery)).size(1)));
+        }
+        try {
+            MsearchResponse<ObjectNode> response = client.getEsClient().msearch(request.build(),
+                    ObjectNode.class);
+            Map<AccountKey, Integer> balances = new HashMap<>();
+            for (int i = 0; i < ordered.size(); i++) {
+                MultiSearchResponseItem<ObjectNode> item = response.responses().get(i);
+                if (item.isFailure()) {
+                    throw new StorageExecuteException(new Throwable(item.failure().error().reason()),
+                            "Error while executing multi-search request");
+                }
+                Optional<Hit<ObjectNode>> money = item.result().hits().hits().stream().findFirst();
                 if (money.isPresent() && money.get().source() != null && money.get().source().has("amount")) {
-                    return money.get().source().get("amount").asInt();
+                    balances.put(ordered.get(i), money.get().source().get("amount").asInt());
+                }
+            }
+            return balances;
+        } catch (ElasticsearchException | IOException exception) {
+            throw new StorageExecuteException(exception, "Error while executing multi-search request");
+        }
+    }
+
+    /**
+     * Load balances of accounts in the projection, if not already loaded
+     * @return balances of accounts
+     */
+    private @NotNull Map<AccountKey, Integer> seedAccounts(@NotNull Collection<AccountKey> keys)
+            throws StorageExecuteException {
+        Objects.requireNonNull(projection);
+        Map<AccountKey, Integer> balances = new HashMap<>();
+        if (keys.isEmpty()) return balances;
+        if (Main.DEBUG) Main.getMileLogger().debug("[ES-Sync] seedAccounts - load " + keys.size() + " account(s).");
+        if (checkpoints) {
+            Map<AccountKey, StoredBalance> stored = getCheckpoints(keys);
+            for (AccountKey key : keys) {
+                StoredBalance balance = stored.getOrDefault(key, new StoredBalance(0, null));
+                if (balance.watermark() != null) TransactionIds.advance(balance.watermark());
+                balances.put(key, projection.seed(key, () -> balance.amount() +
+                        overlay.getDelta(key.tagName(), key.tagValue(), balance.watermark())));
+            }
+        } else {
+            Collection<AccountKey> remaining = keys;
+            for (int attempt = 1; !remaining.isEmpty(); attempt++) {
+                Map<AccountKey, StoredSearch> stored = searchIncluded(remaining);
+                List<AccountKey> stale = new ArrayList<>();
+                boolean last = attempt >= SEARCH_ATTEMPTS;
+                for (AccountKey key : remaining) {
+                    StoredSearch search = stored.get(key);
+                    //  Seeded while no operation is accepted, so pending operations can't change meanwhile
+                    overlay.read(() -> {
+                        if (last || overlay.version() == search.version()) {
+                            balances.put(key, projection.seed(key, () -> search.balance() +
+                                    overlay.getDelta(key.tagName(), key.tagValue())));
+                        } else {
+                            stale.add(key);
+                        }
+                    });
+                }
+                remaining = stale;
+            }
+        }
+        return balances;
+    }
+
+    /**
+     * Get balances written by checkpoints (realtime multi-get), accounts without checkpoint are searched
+     * in the accounts index (Balances written by transforms before they were disabled)
+     * @return balances of found accounts
+     */
+    private @NotNull Map<AccountKey, StoredBalance> getCheckpoints(@NotNull Collection<AccountKey> keys)
+            throws StorageExecuteException {
+        List<AccountKey> ordered = new ArrayList<>(keys);
+        List<String> ids = ordered.stream().map(this::getAccountId).toList();
+        Map<AccountKey, StoredBalance> balances = new HashMap<>();
+        List<AccountKey> legacy = new ArrayList<>();
+        try {
+            MgetResponse<ObjectNode> response = client.getEsClient().mget(request -> request
+                    .index(BANK_INDEX_ACCOUNTS)
+                    .ids(ids), ObjectNode.class);
+            for (int i = 0; i < ordered.size(); i++) {
+                MultiGetResponseItem<ObjectNode> item = response.docs().get(i);
+                if (item.isFailure()) {
+                    throw new StorageExecuteException(new Throwable(item.failure().error().reason()),
+                            "Error while executing multi-get request");
+                }
+                GetResult<ObjectNode> result = item.result();
+                ObjectNode source = result.source();
+                if (result.found() && source != null && source.has("amount")) {
+                    UUID watermark = source.hasNonNull("watermark") ?
+                            UUID.fromString(source.get("watermark").asText()) : null;
+                    balances.put(ordered.get(i), new StoredBalance(source.get("amount").asInt(), watermark));
+                } else {
+                    legacy.add(ordered.get(i));
+                }
+            }
+        } catch (ElasticsearchException exception) {
+            //  Accounts index not created yet
+            if (exception.status() == 404) return balances;
+            throw new StorageExecuteException(exception, "Error while executing multi-get request");
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while executing multi-get request");
+        }
+        if (!legacy.isEmpty()) {
+            multiSearch(legacy).forEach((key, amount) -> balances.put(key, new StoredBalance(amount, null)));
+        }
+        return balances;
+    }
+
+    /**
+     * Id of the account document written by checkpoints
+     */
+    private @NotNull String getAccountId(@NotNull AccountKey key) {
+        return key.tagName() + ":" + key.tagValue();
+    }
+
+    /**
+     * Balance written in the accounts index
+     * @param watermark all operations with a lower transaction id are included (null if unknown)
+     */
+    private record StoredBalance(int amount, @Nullable UUID watermark) {}
+
+    /**
+     * Read all accounts of this tag name from a point in time, and apply pending operations
+     * (Read again if operations were dropped from the overlay meanwhile, like searched accounts)
+     */
+    @Override
+    public @NotNull Map<String, Integer> getTagBalances(@NotNull String tagName) throws StorageExecuteException {
+        for (int attempt = 1; ; attempt++) {
+            long version = overlay.version();
+            long start = System.nanoTime();
+            Map<String, StoredBalance> stored = readTagAccounts(tagName);
+            boolean stable = transformCheckpoints == null ||
+                    (refreshCheckpoints(start) && !transformCheckpoints.isRunning(tagName));
+            Map<String, Integer> balances = new HashMap<>();
+            Runnable apply = () -> stored.forEach((tagValue, balance) -> {
+                Integer projected = projection != null ? projection.get(new AccountKey(tagName, tagValue)) : null;
+                balances.put(tagValue, projected != null ? projected :
+                        balance.amount() + overlay.getDelta(tagName, tagValue, balance.watermark()));
+            });
+            if (stable && overlay.runIfUnchanged(version, apply)) return balances;
+            if (attempt >= SEARCH_ATTEMPTS) {
+                overlay.read(apply);
+                return balances;
+            }
+            if (!stable) awaitCheckpoint();
+        }
+    }
+
+    /**
+     * Read stored balances of all accounts of this tag name from a point in time
+     */
+    private @NotNull Map<String, StoredBalance> readTagAccounts(@NotNull String tagName)
+            throws StorageExecuteException {
+        Map<String, StoredBalance> stored = new HashMap<>();
+        String pitId;
+        try {
+            pitId = client.getEsClient().openPointInTime(pit -> pit
+                    .index(BANK_INDEX_ACCOUNTS)
+                    .keepAlive(time -> time.time(HISTORY_KEEP_ALIVE))).id();
+        } catch (ElasticsearchException | IOException exception) {
+            throw new StorageExecuteException(exception, "Error while opening accounts point in time");
+        }
+        try {
+            List<FieldValue> after = null;
+            List<Hit<ObjectNode>> hits;
+            do {
+                SearchRequest.Builder request = new SearchRequest.Builder()
+                        .pit(pit -> pit.id(pitId).keepAlive(time -> time.time(HISTORY_KEEP_ALIVE)))
+                        .query(q -> q.exists(exists -> exists.field(tagName)))
+                        .source(source -> source.filter(filter -> filter.includes(tagName, "amount", "watermark")))
+                        .sort(sort -> sort.field(field -> field.field("_shard_doc")))
+                        .size(HISTORY_PAGE_SIZE);
+                if (after != null) request.searchAfter(after);
+                hits = client.getEsClient().search(request.build(), ObjectNode.class).hits().hits();
+                for (Hit<ObjectNode> hit : hits) {
+                    ObjectNode source = hit.source();
+                    if (source == null || !source.has("amount")) continue;
+                    UUID watermark = source.hasNonNull("watermark") ?
+                            UUID.fromString(source.get("watermark").asText()) : null;
+                    //  Checkpoint documents replace accounts documents created by transforms
+                    stored.merge(source.get(tagName).asText(), new StoredBalance(source.get("amount").asInt(),
+                            watermark), (previous, balance) -> previous.watermark() != null ? previous : balance);
                 }
-                return 0;
+                if (!hits.isEmpty()) after = hits.get(hits.size() - 1).sort();
+            } while (hits.size() == HISTORY_PAGE_SIZE);
+        } catch (ElasticsearchException | IOException exception) {
+            throw new StorageExecuteException(exception, "Error while executing accounts search request");
+        } finally {
+            try {
+                client.getEsClient().closePointInTime(pit -> pit.id(pitId));
             } catch (ElasticsearchException | IOException exception) {
-                throw new StorageExecuteException(exception, "Error while executing search request");
+                Main.getMileLogger().debug("Can't close accounts point in time: " + exception.getMessage());
             }
         }
+        return stored;
+    }
+
+    @Override
+    public int getPendingBalance(@NotNull String tagName, @NotNull Object tagValue) {
+        return overlay.getDelta(tagName, tagValue);
     }
 
     @Override
@@ -147,61 +810,738 @@ public class ESStorage implements StorageImplementation {
         return addOperation(tags, amount, reason);
     }
 
+    /**
+     * Set is resolved while accepting the operation: its amount is the difference with the latest known balance
+     * (stored balance + pending operations), computed while no other operation can be accepted.
+     * The prepare event is called before, with an amount of 0 (like other storages).
+     */
     @Override
     public @NotNull UUID setMoneyToTag(@NotNull String tagName, @NotNull Object tagValue,
                                         int amount, @Nullable String reason) throws StorageExecuteException {
-        int calculatedAmount = amount - getMoneyFromTag(tagName, tagValue);
-        return addOperation(Map.of(tagName, tagValue), calculatedAmount, reason);
+        AccountKey key = new AccountKey(tagName, tagValue);
+        Map<String, Object> tags = Map.of(tagName, tagValue);
+        reason = getReason(reason);
+        long timestamp = System.currentTimeMillis();
+        UUID transactionId = reserve();
+        prepare(new MoneyOperation(transactionId, tags, amount, reason, timestamp), true);
+        int difference;
+        if (projection != null) {
+            //  Seed the account if needed, seeded accounts are only updated in memory
+            try {
+                getCacheBalance(tagName, tagValue);
+            } catch (StorageExecuteException | RuntimeException exception) {
+                projection.cancel(transactionId);
+                throw exception;
+            }
+            difference = projection.acceptSet(transactionId, key, amount,
+                    calculatedAmount -> register(transactionId, tags, calculatedAmount));
+        } else {
+            difference = acceptSet(transactionId, key, amount);
+        }
+        return submit(new MoneyOperation(transactionId, tags, difference, reason, timestamp));
+    }
+
+    /**
+     * Accept a set without projection: the stored balance (cached, or searched with the overlay version it's
+     * consistent with) and pending operations are read while no operation can be accepted or dropped, the account
+     * is searched again if operations were dropped since its search.
+     * Operations of tags without followed transform are dropped after the transform delay, the set is exact if the
+     * transform includes them within this delay.
+     * @return amount of the operation
+     */
+    private int acceptSet(@NotNull UUID transactionId, @NotNull AccountKey key, int target)
+            throws StorageExecuteException {
+        Map<String, Object> tags = Map.of(key.tagName(), key.tagValue());
+        int[] difference = new int[1];
+        StoredSearch searched = null;
+        for (int attempt = 0; ; attempt++) {
+            StoredSearch stored = searched;
+            boolean last = attempt >= SEARCH_ATTEMPTS;
+            boolean[] accepted = new boolean[1];
+            acceptLock.writeLock().lock();
+            try {
+                //  Cached balances are invalidated while operations included in them are dropped
+                overlay.read(() -> {
+                    Integer balance = Main.BANK_ACCOUNTS_CACHE.getBalance(key.tagName(), key.tagValue());
+                    if (balance == null && stored != null && (last || stored.version() == overlay.version())) {
+                        balance = stored.balance();
+                    }
+                    if (balance == null) return;
+                    difference[0] = target - (balance + overlay.getDelta(key.tagName(), key.tagValue()));
+                    register(transactionId, tags, difference[0]);
+                    accepted[0] = true;
+                });
+            } finally {
+                acceptLock.writeLock().unlock();
+            }
+            if (accepted[0]) return difference[0];
+            if (Main.DEBUG) Main.getMileLogger().debug("[ES-Sync] setMoneyToTag - search account '" +
+                    getAccountId(key) + "'.");
+            searched = searchIncluded(List.of(key)).get(key);
+        }
     }
 
     private @NotNull UUID addOperation(@NotNull Map<String, Object> tags, int amount,
                                @Nullable String reason) throws StorageExecuteException {
-        UUID transactionId = UUID.randomUUID();
+        MoneyOperation operation = new MoneyOperation(reserve(), tags, amount, getReason(reason),
+                System.currentTimeMillis());
+        prepare(operation, false);
+        if (projection != null) {
+            projection.accept(operation.transactionId(), tags, amount,
+                    () -> register(operation.transactionId(), tags, amount));
+        } else {
+            acceptLock.readLock().lock();
+            try {
+                register(operation.transactionId(), tags, amount);
+            } finally {
+                acceptLock.readLock().unlock();
+            }
+        }
+        return submit(operation);
+    }
+
+    /**
+     * Transaction id of a new operation, reserved in the projection to be ordered with its checkpoints
+     */
+    private @NotNull UUID reserve() {
+        return projection != null ? projection.reserve() : TransactionIds.next();
+    }
+
+    /**
+     * Call the prepare event of a new operation (before it's accepted), its reserved id is released if it's cancelled
+     * @param set true if the amount of the operation is the balance to set
+     */
+    private void prepare(@NotNull MoneyOperation operation, boolean set) throws StorageExecuteException {
+        try {
+            if (set) {
+                Main.EVENTS.prepareSet(operation);
+            } else {
+                Main.EVENTS.prepare(operation);
+            }
+        } catch (StorageExecuteException | RuntimeException exception) {
+            if (projection != null) projection.cancel(operation.transactionId());
+            throw exception;
+        }
+    }
+
+    private static @NotNull String getReason(@Nullable String reason) {
         reason = Objects.requireNonNullElse(reason, "No reason provided");
-        if (reason.isBlank()) reason = "No reason provided";
-        Map<String, Object> log = new HashMap<>();
-        log.put("transactionId", transactionId);
-        log.put("tags", tags);
-        log.put("operation", amount);
-        log.put("reason", reason);
-        log.put("@timestamp", DateMileKat.getDateEs());
-        MoneyPrepareOperation event = new MoneyPrepareOperation(transactionId, tags, amount, reason);
-        if (event.isCancelled()) {
-            throw new StorageExecuteException(new Throwable(), "Money operation cancelled by plugin.");
-        }
-        moneyOperations.put(transactionId,
-                new BulkOperation.Builder().create(
-                        new CreateOperation.Builder<>()
-                                .index(BANK_INDEX_TRANSACTIONS)
-                                .document(log)
-                                .build()
-                ).build()
-        );
-        Main.getInstance().getServer().getPluginManager().callEvent(
-                new MoneySavedSuccessfully(transactionId, tags, amount, reason));
-        return transactionId;
+        return reason.isBlank() ? "No reason provided" : reason;
     }
 
+    /**
+     * The batch event is called before accepting operations, then they are logged in a single write-ahead log record
+     * and queued together, so all or none of them are saved after a crash
+     */
+    @Override
+    public @NotNull List<UUID> applyBatch(@NotNull UUID correlationId, @NotNull List<Operation> batch)
+            throws StorageExecuteException {
+        long timestamp = System.currentTimeMillis();
+        List<MoneyOperation> operations = new ArrayList<>(batch.size());
+        for (Operation operation : batch) {
+            operations.add(new MoneyOperation(reserve(), operation.tags(), operation.amount(),
+                    getReason(operation.reason()), timestamp, correlationId));
+        }
+        try {
+            Main.EVENTS.prepareBatch(correlationId, operations);
+        } catch (StorageExecuteException | RuntimeException exception) {
+            if (projection != null) operations.forEach(operation -> projection.cancel(operation.transactionId()));
+            throw exception;
+        }
+        if (projection != null) {
+            for (MoneyOperation operation : operations) {
+                projection.accept(operation.transactionId(), operation.tags(), operation.amount(),
+                        () -> register(operation));
+            }
+        } else {
+            acceptLock.readLock().lock();
+            try {
+                operations.forEach(this::register);
+            } finally {
+                acceptLock.readLock().unlock();
+            }
+        }
+        submit(operations, true);
+        return operations.stream().map(MoneyOperation::transactionId).toList();
+    }
+
+    /**
+     * Imported operations are accepted like replayed dead letters (new ids with checkpoints), without events
+     */
+    @Override
+    public @NotNull List<UUID> importOperations(@NotNull List<MoneyOperation> imported)
+            throws StorageExecuteException {
+        imported.forEach(operation -> TransactionIds.advance(operation.transactionId()));
+        List<MoneyOperation> operations = acceptExisting(imported);
+        submit(operations, false);
+        return operations.stream().map(MoneyOperation::transactionId).toList();
+    }
+
+    /**
+     * Accept (register) operations created before (imported or replayed), with the same locks as new operations.
+     * With checkpoints, they are new operations for the projection (their id can be under a watermark).
+     * @return accepted operations, with their new transaction id when checkpoints are enabled
+     */
+    private @NotNull List<MoneyOperation> acceptExisting(@NotNull List<MoneyOperation> existing) {
+        List<MoneyOperation> operations = new ArrayList<>(existing.size());
+        for (MoneyOperation operation : existing) {
+            if (checkpoints) {
+                UUID transactionId = projection.accept(operation.tags(), operation.amount(),
+                        id -> register(id, operation.tags(), operation.amount()));
+                operations.add(operation.with(transactionId, operation.amount()));
+            } else if (projection != null) {
+                projection.fold(operation.tags(), operation.amount(), () -> register(operation));
+                operations.add(operation);
+            } else {
+                acceptLock.readLock().lock();
+                try {
+                    register(operation);
+                } finally {
+                    acceptLock.readLock().unlock();
+                }
+                operations.add(operation);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Log and queue an accepted (registered) operation, it's reverted if it can't be queued
+     */
+    private @NotNull UUID submit(@NotNull MoneyOperation operation) throws StorageExecuteException {
+        submit(List.of(operation), true);
+        return operation.transactionId();
+    }
+
+    /**
+     * Log and queue accepted (registered) operations together, they are all reverted if they can't be queued
+     * @param notify call saved events once operations are acknowledged by the bulk
+     */
+    private void submit(@NotNull List<MoneyOperation> operations, boolean notify) throws StorageExecuteException {
+        if (notify) {
+            //  Registered before queueing, the bulk thread can acknowledge operations as soon as they are queued
+            operations.forEach(operation -> notifications.add(operation.transactionId()));
+        }
+        if (wal != null) {
+            try {
+                wal.append(operations);
+            } catch (IOException exception) {
+                operations.forEach(operation -> revert(operation, exception));
+                throw new StorageExecuteException(exception, "Error while trying to log money operation.");
+            }
+        }
+        try {
+            moneyOperations.offer(operations);
+        } catch (StorageExecuteException exception) {
+            operations.forEach(operation -> revert(operation, exception));
+            try {
+                complete(operations.stream().map(MoneyOperation::transactionId).toList(), true);
+            } catch (IOException walException) {
+                Main.getMileLogger().warning("Error while trying to cancel logged money operation.");
+                Main.getMileLogger().stack(walException.getStackTrace());
+            }
+            throw exception;
+        }
+        operations.forEach(Main.STATISTICS::apply);
+    }
+
+    /**
+     * Register an accepted operation, until it's saved
+     */
+    private void register(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount) {
+        overlay.add(transactionId, tags, amount);
+        Main.LEADERBOARDS.apply(tags, amount);
+        commits.accepted(transactionId);
+    }
+
+    private void register(@NotNull MoneyOperation operation) {
+        register(operation.transactionId(), operation.tags(), operation.amount());
+    }
+
+    /**
+     * Remove an accepted operation which will not be saved, it's not applied to balances anymore
+     */
+    private void revert(@NotNull MoneyOperation operation, @NotNull Throwable cause) {
+        if (projection != null) {
+            projection.fold(operation.tags(), -operation.amount(), () -> overlay.remove(operation.transactionId()));
+        } else {
+            overlay.remove(operation.transactionId());
+        }
+        Main.LEADERBOARDS.apply(operation.tags(), -operation.amount());
+        commits.failed(operation.transactionId(), cause);
+        notifications.remove(operation.transactionId());
+    }
+
+    /**
+     * Remove completed operations (saved, rejected or cancelled) from the write-ahead log.
+     * With checkpoints, they are removed once a checkpoint including them is written.
+     * @param durable wait for the acknowledgement to be written on disk
+     */
+    private void complete(@NotNull List<UUID> transactionIds, boolean durable) throws IOException {
+        if (checkpoints) {
+            uncheckpointed.addAll(transactionIds);
+        } else if (wal != null) {
+            wal.acknowledge(transactionIds, durable);
+        }
+    }
+
+    /**
+     * Start the thread saving queued operations, with bulk requests
+     */
     private void saveOperation() {
-        Bukkit.getScheduler().runTaskTimerAsynchronously(Main.getInstance(), ()-> {
-            Map<UUID, BulkOperation> processing = new HashMap<>(moneyOperations);
-            moneyOperations.clear();
-            if (!processing.isEmpty()) {
-                try (StorageConnection connection = getConnection()) {
-                    try {
-                        connection.getEsClient().bulk(
-                                new BulkRequest.Builder()
-                                        .operations(processing.values().stream().toList())
-                                        .build()
-                        );
-                        Main.getMileLogger().debug("'" + processing.size() + "' money operation(s) saved.");
-                    } catch (ElasticsearchException | IOException exception) {
-                        moneyOperations.putAll(processing);
-                        Main.getMileLogger().warning("Error while trying to save money operation(s).");
-                        Main.getMileLogger().stack(exception.getStackTrace());
+        flushing = true;
+        flusher = new Thread(() -> {
+            while (flushing) {
+                try {
+                    long maxWait = overlay.isEmpty() ? IDLE_WAIT : PRUNE_INTERVAL;
+                    RetryOperation nextRetry = retries.peek();
+                    if (nextRetry != null) maxWait = Math.min(maxWait, nextRetry.getDelay(TimeUnit.NANOSECONDS));
+                    moneyOperations.awaitBatch(bulkLatencyNanos, maxWait);
+                    while (flushing && isFlushRequired()) {
+                        List<MoneyOperation> processing = new ArrayList<>();
+                        RetryOperation retry;
+                        while (processing.size() < bulkSize && (retry = retries.poll()) != null) {
+                            processing.add(retry.operation());
+                        }
+                        processing.addAll(moneyOperations.drain(bulkSize - processing.size(), bulkBytes));
+                        if (processing.isEmpty()) break;
+                        flush(processing);
+                    }
+                    if (transformCheckpoints != null && !overlay.isEmpty()) {
+                        refreshCheckpoints(System.nanoTime());
+                        overlay.prune(transformCheckpoints::isTracked);
+                    }
+                    if (checkpoints && System.nanoTime() - nextCheckpoint >= 0 &&
+                            (!uncheckpointed.isEmpty() || projection.isDirty())) {
+                        checkpoint();
                     }
+                } catch (RuntimeException exception) {
+                    //  The flusher must keep running, or queued operations would never be saved
+                    Main.getMileLogger().warning("Unexpected error in money operations flusher: " + exception);
+                    Main.getMileLogger().stack(exception.getStackTrace());
+                }
+            }
+        }, "MileBanks-Bulk");
+        flusher.setDaemon(true);
+        moneyOperations.setConsumer(flusher);
+        flusher.start();
+    }
+
+    /**
+     * Check if operations must be saved now (batch threshold or max latency reached, or retry due)
+     */
+    private boolean isFlushRequired() {
+        if (moneyOperations.isBatchReady()) return true;
+        RetryOperation nextRetry = retries.peek();
+        if (nextRetry != null && nextRetry.getDelay(TimeUnit.NANOSECONDS) <= 0) return true;
+        Long oldest = moneyOperations.getOldestEnqueueTime();
+        if (oldest == null) return !moneyOperations.isEmpty();
+        return System.nanoTime() - oldest >= bulkLatencyNanos;
+    }
+
+    /**
+     * Save operations with a single bulk request.
+     * On an unexpected error, operations which can't be written in a bulk request are moved to dead letters,
+     * others are retried later.
+     * @return false if some operations must be retried
+     */
+    private boolean flush(@NotNull List<MoneyOperation> processing) {
+        try {
+            return bulk(processing);
+        } catch (RuntimeException exception) {
+            Main.getMileLogger().warning("Unexpected error while trying to save '" + processing.size() +
+                    "' money operation(s): " + exception);
+            Main.getMileLogger().stack(exception.getStackTrace());
+            for (MoneyOperation operation : processing) {
+                if (isWritable(operation)) {
+                    retry(operation, 0, exception.toString());
+                } else {
+                    deadLetter(operation, 0, exception.toString());
+                }
+            }
+            return false;
+        }
+    }
+
+    private boolean isWritable(@NotNull MoneyOperation operation) {
+        try {
+            bulkWriter.writeBody(List.of(operation));
+            return true;
+        } catch (IOException | RuntimeException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Save operations with a single bulk request, and handle the result of each operation:
+     * saved operations are acknowledged, failed operations are retried later, or moved to dead letters if they
+     * are rejected by the storage.
+     * @return false if the request failed, or if some operations must be retried
+     */
+    private boolean bulk(@NotNull List<MoneyOperation> processing) {
+        long start = System.nanoTime();
+        BulkWriter.Result result;
+        try {
+            result = bulkWriter.write(processing);
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to save '" + processing.size() +
+                    "' money operation(s), retrying later.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+            processing.forEach(operation -> retry(operation, 0, exception.getMessage()));
+            return false;
+        }
+        List<MoneyOperation> saved = new ArrayList<>(processing.size());
+        Set<UUID> existing = new HashSet<>();
+        int failed = 0;
+        boolean retried = false;
+        for (int i = 0; i < processing.size(); i++) {
+            MoneyOperation operation = processing.get(i);
+            int status = result.statuses()[i];
+            String error = result.errors()[i];
+            if (error == null || status == 409) {
+                //  409: the transaction document already exists (saved by a previous attempt)
+                saved.add(operation);
+                if (status == 409) existing.add(operation.transactionId());
+            } else {
+                failed++;
+                if (status == 429 || status >= 500) {
+                    retry(operation, status, error);
+                    retried = true;
+                } else {
+                    deadLetter(operation, status, error);
                 }
             }
-        }, 50, 20);
+        }
+        acknowledge(saved, existing);
+        Main.getMileLogger().debug("Bulk of '" + processing.size() + "' money operation(s) executed in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms (took " + result.took() +
+                "ms in ES, " + result.bytes() + " bytes written in " +
+                TimeUnit.NANOSECONDS.toMicros(result.serialization()) + "us): '" + saved.size() + "' saved, '" +
+                failed + "' failed.");
+        return !retried;
+    }
+
+    /**
+     * Mark operations as saved, and queue their saved events
+     * @param existing operations already saved by a previous attempt
+     */
+    private void acknowledge(@NotNull List<MoneyOperation> saved, @NotNull Set<UUID> existing) {
+        if (saved.isEmpty()) return;
+        List<MoneyOperation> notified = new ArrayList<>(saved.size());
+        for (MoneyOperation operation : saved) {
+            overlay.acknowledged(operation, existing.contains(operation.transactionId()));
+            commits.committed(operation.transactionId());
+            attempts.remove(operation.transactionId());
+            if (notifications.remove(operation.transactionId())) notified.add(operation);
+        }
+        Main.EVENTS.saved(notified);
+        try {
+            complete(saved.stream().map(MoneyOperation::transactionId).toList(), false);
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to checkpoint the write-ahead log.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+    }
+
+    /**
+     * Write updated balances of the projection in the accounts index (Used when transforms are disabled),
+     * then remove operations included in these balances from the write-ahead log.
+     * Each account document keeps the checkpoint watermark, so operations recovered from the write-ahead log are
+     * only applied over balances which don't include them yet.
+     */
+    private void checkpoint() {
+        Objects.requireNonNull(projection);
+        nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
+        try {
+            seedAccounts(projection.getUnseeded());
+        } catch (StorageExecuteException exception) {
+            Main.getMileLogger().warning("Error while trying to load accounts to checkpoint, retrying later.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+            return;
+        }
+        List<UUID> covered = new ArrayList<>();
+        UUID transactionId;
+        while ((transactionId = uncheckpointed.poll()) != null) covered.add(transactionId);
+        BalancesProjection.Snapshot snapshot = projection.snapshot((key, watermark) ->
+                overlay.getDelta(key.tagName(), key.tagValue(), watermark));
+        //  Operations after the watermark (accepted while an operation was preparing) are not in this checkpoint
+        List<UUID> after = covered.stream().filter(id -> id.compareTo(snapshot.watermark()) >= 0).toList();
+        if (!after.isEmpty()) {
+            covered.removeAll(after);
+            uncheckpointed.addAll(after);
+        }
+        boolean complete = snapshot.complete();
+        if (!snapshot.accounts().isEmpty()) {
+            List<BulkOperation> operations = new ArrayList<>(snapshot.accounts().size());
+            for (BalancesProjection.AccountBalance account : snapshot.accounts()) {
+                Map<String, Object> document = new HashMap<>();
+                document.put(account.key().tagName(), account.key().tagValue());
+                document.put("amount", account.balance());
+                document.put("watermark", snapshot.watermark().toString());
+                operations.add(new BulkOperation.Builder().index(
+                        new IndexOperation.Builder<>()
+                                .index(BANK_INDEX_ACCOUNTS)
+                                .id(getAccountId(account.key()))
+                                .document(document)
+                                .build()
+                ).build());
+            }
+            try {
+                BulkResponse response = client.getEsClient().bulk(
+                        new BulkRequest.Builder().operations(operations).build());
+                for (int i = 0; i < snapshot.accounts().size(); i++) {
+                    BalancesProjection.AccountBalance account = snapshot.accounts().get(i);
+                    BulkResponseItem item = response.items().get(i);
+                    if (item.error() == null) {
+                        projection.checkpointed(account.key(), account.version());
+                    } else {
+                        complete = false;
+                        Main.getMileLogger().warning("Error while trying to checkpoint account '" +
+                                getAccountId(account.key()) + "': " + item.error().reason());
+                    }
+                }
+                Main.getMileLogger().debug("Checkpoint of '" + snapshot.accounts().size() +
+                        "' account(s) executed (took " + response.took() + "ms in ES).");
+            } catch (ElasticsearchException | IOException exception) {
+                complete = false;
+                Main.getMileLogger().warning("Error while trying to checkpoint balances, retrying later.");
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        }
+        if (!complete) {
+            uncheckpointed.addAll(covered);
+            return;
+        }
+        if (covered.isEmpty()) return;
+        covered.forEach(overlay::remove);
+        if (wal != null) {
+            try {
+                wal.acknowledge(covered, false);
+            } catch (IOException exception) {
+                Main.getMileLogger().warning("Error while trying to checkpoint the write-ahead log.");
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+        }
+    }
+
+    /**
+     * Schedule a new attempt of a failed operation, with exponential backoff and jitter,
+     * or move it to dead letters if max retries is reached.
+     * During shutdown, the attempt is not counted: the operation is kept in the write-ahead log for the next start.
+     */
+    private void retry(@NotNull MoneyOperation operation, int status, @Nullable String error) {
+        if (draining) {
+            retries.add(new RetryOperation(operation, System.nanoTime()));
+            return;
+        }
+        int attempt = attempts.merge(operation.transactionId(), 1, Integer::sum);
+        if (attempt > maxRetries) {
+            deadLetter(operation, status, "Max retries reached, last error: " + error);
+            return;
+        }
+        long backoff = Math.min(maxBackoffNanos, baseBackoffNanos << Math.min(attempt - 1, 30));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        retries.add(new RetryOperation(operation, System.nanoTime() + delay));
+    }
+
+    /**
+     * Move a rejected operation to dead letters, it's not applied anymore
+     */
+    private void deadLetter(@NotNull MoneyOperation operation, int status, @Nullable String error) {
+        Main.getMileLogger().warning("Money operation '" + operation.transactionId() + "' rejected (" + status +
+                "): " + error);
+        attempts.remove(operation.transactionId());
+        revert(operation, new StorageExecuteException(new Throwable(error),
+                "Money operation rejected by the storage (" + status + ")."));
+        Main.STATISTICS.revert(operation);
+        try {
+            deadLetters.append(operation, status, error);
+            complete(List.of(operation.transactionId()), true);
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to save money operation in dead letters.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+    }
+
+    /*
+        History
+     */
+
+    /**
+     * Search a page of transactions, sorted by timestamp then transaction id (search_after cursor), most recent first
+     */
+    @Override
+    public @NotNull HistoryPage getHistory(@NotNull HistoryQuery query, int size, @Nullable String cursor)
+            throws StorageExecuteException {
+        List<FieldValue> after = null;
+        if (cursor != null) {
+            String[] values = cursor.split(":", 2);
+            try {
+                after = List.of(FieldValue.of(Long.parseLong(values[0])), FieldValue.of(values[1]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException exception) {
+                throw new StorageExecuteException(exception, "Invalid history cursor.");
+            }
+        }
+        SearchRequest.Builder request = new SearchRequest.Builder()
+                .index(BANK_INDEX_TRANSACTIONS)
+                .query(getHistoryQuery(query))
+                .source(HISTORY_SOURCE)
+                .sort(sort -> sort.field(field -> field.field("@timestamp").order(SortOrder.Desc)))
+                .sort(sort -> sort.field(field -> field.field("transactionId").order(SortOrder.Desc)))
+                .size(size + 1);
+        if (after != null) request.searchAfter(after);
+        List<Hit<ObjectNode>> hits;
+        try {
+            hits = client.getEsClient().search(request.build(), ObjectNode.class).hits().hits();
+        } catch (ElasticsearchException | IOException exception) {
+            throw new StorageExecuteException(exception, "Error while executing history request");
+        }
+        List<Transaction> page = new ArrayList<>();
+        for (Hit<ObjectNode> hit : hits.subList(0, Math.min(size, hits.size()))) {
+            page.add(toTransaction(hit));
+        }
+        if (hits.size() <= size) return new HistoryPage(page, null);
+        List<FieldValue> last = hits.get(size - 1).sort();
+        return new HistoryPage(page, last.get(0).longValue() + ":" + last.get(1).stringValue());
+    }
+
+    /**
+     * Read transactions from a point in time (consistent view of the index while reading pages), oldest first
+     */
+    @Override
+    public void streamHistory(@NotNull HistoryQuery query, @NotNull Consumer<Transaction> consumer)
+            throws StorageExecuteException {
+        String pitId;
+        try {
+            pitId = client.getEsClient().openPointInTime(pit -> pit
+                    .index(BANK_INDEX_TRANSACTIONS)
+                    .keepAlive(time -> time.time(HISTORY_KEEP_ALIVE))).id();
+        } catch (ElasticsearchException | IOException exception) {
+            throw new StorageExecuteException(exception, "Error while opening history point in time");
+        }
+        try {
+            Query filter = getHistoryQuery(query);
+            List<FieldValue> after = null;
+            List<Hit<ObjectNode>> hits;
+            do {
+                SearchRequest.Builder request = new SearchRequest.Builder()
+                        .pit(pit -> pit.id(pitId).keepAlive(time -> time.time(HISTORY_KEEP_ALIVE)))
+                        .query(filter)
+                        .source(HISTORY_SOURCE)
+                        //  Point in time searches are implicitly sorted by shard document (unique tiebreaker)
+                        .sort(sort -> sort.field(field -> field.field("@timestamp").order(SortOrder.Asc)))
+                        .size(HISTORY_PAGE_SIZE);
+                if (after != null) request.searchAfter(after);
+                hits = client.getEsClient().search(request.build(), ObjectNode.class).hits().hits();
+                for (Hit<ObjectNode> hit : hits) {
+                    consumer.accept(toTransaction(hit));
+                }
+                if (!hits.isEmpty()) after = hits.get(hits.size() - 1).sort();
+            } while (hits.size() == HISTORY_PAGE_SIZE);
+        } catch (ElasticsearchException | IOException exception) {
+            throw new StorageExecuteException(exception, "Error while executing history request");
+        } finally {
+            try {
+                client.getEsClient().closePointInTime(pit -> pit.id(pitId));
+            } catch (ElasticsearchException | IOException exception) {
+                Main.getMileLogger().debug("Can't close history point in time: " + exception.getMessage());
+            }
+        }
+    }
+
+    private @NotNull Query getHistoryQuery(@NotNull HistoryQuery query) {
+        BoolQuery.Builder boolQuery = query.tagName() != null ?
+                Builders.getBuilder(query.tagName(), Objects.requireNonNull(query.tagValue())) :
+                new BoolQuery.Builder();
+        if (query.from() != null || query.to() != null) {
+            boolQuery.filter(filter -> filter.range(range -> {
+                range.field("@timestamp").format("epoch_millis");
+                if (query.from() != null) range.gte(JsonData.of(query.from().toEpochMilli()));
+                if (query.to() != null) range.lt(JsonData.of(query.to().toEpochMilli()));
+                return range;
+            }));
+        }
+        if (query.reason() != null) {
+            boolQuery.must(must -> must.match(match -> match.field("reason").query(query.reason())));
+        }
+        return Query.of(q -> q.bool(boolQuery.build()));
+    }
+
+    private @NotNull Transaction toTransaction(@NotNull Hit<ObjectNode> hit) {
+        ObjectNode source = Objects.requireNonNull(hit.source());
+        JsonNode correlationId = source.get("correlationId");
+        return new Transaction(UUID.fromString(source.get("transactionId").asText()),
+                MAPPER.convertValue(source.get("tags"), TAGS_TYPE), source.get("operation").asInt(),
+                source.path("reason").asText(""), Instant.ofEpochMilli(hit.sort().get(0).longValue()),
+                correlationId == null || correlationId.isNull() ? null : UUID.fromString(correlationId.asText()));
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Void> awaitCommit(@NotNull UUID transactionId) {
+        return commits.await(transactionId);
+    }
+
+    @Override
+    public int getDeadLettersCount() throws StorageExecuteException {
+        try {
+            return deadLetters.size();
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to read dead letters.");
+        }
+    }
+
+    /**
+     * Replay rejected operations: they are logged in the write-ahead log, then removed from dead letters (A crash
+     * between both steps keeps them in dead letters while they are recovered, they must not be replayed again).
+     */
+    @Override
+    public int replayDeadLetters() throws StorageExecuteException {
+        synchronized (replayLock) {
+            List<MoneyOperation> rejected;
+            try {
+                rejected = deadLetters.readAll();
+            } catch (IOException exception) {
+                throw new StorageExecuteException(exception, "Error while trying to read dead letters.");
+            }
+            if (rejected.isEmpty()) return 0;
+            List<MoneyOperation> operations = acceptExisting(rejected);
+            //  Logged at once, so all or none of the replayed operations are saved after a crash
+            if (wal != null) {
+                try {
+                    wal.append(operations);
+                } catch (IOException exception) {
+                    operations.forEach(operation -> revert(operation, exception));
+                    throw new StorageExecuteException(exception,
+                            "Error while trying to log replayed money operations.");
+                }
+            }
+            try {
+                deadLetters.remove(rejected.stream().map(MoneyOperation::transactionId).toList());
+            } catch (IOException exception) {
+                Main.getMileLogger().warning("Error while trying to remove '" + rejected.size() + "' replayed " +
+                        "dead letter(s), remove them from the dead letters file before replaying it again: " +
+                        rejected.stream().map(MoneyOperation::transactionId).toList());
+                Main.getMileLogger().stack(exception.getStackTrace());
+            }
+            operations.forEach(Main.STATISTICS::apply);
+            moneyOperations.requeue(operations);
+            moneyOperations.wakeConsumer();
+            return operations.size();
+        }
+    }
+
+    /**
+     * A failed operation waiting for its next attempt
+     */
+    private record RetryOperation(@NotNull MoneyOperation operation, long dueAt) implements Delayed {
+        @Override
+        public long getDelay(@NotNull TimeUnit unit) {
+            return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(@NotNull Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
     }
 }
@@ -0,0 +1,290 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer / single-consumer queue of operations waiting to be saved.
+ * Producers never lock, the consumer (flusher thread) is woken up when the queue was empty or
+ * when a batch threshold is reached.
+ */
+public class OperationsQueue {
+    private final ConcurrentLinkedQueue<Queued> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final int capacity;
+    private final int batchSize;
+    private final long batchBytes;
+    private final Backpressure backpressure;
+    private final long blockTimeoutNanos;
+    private final @Nullable SpillFile spill;
+    private volatile Thread consumer;
+    private volatile boolean consumerIdle = false;
+
+    /**
+     * @param capacity max number of operations in memory
+     * @param batchSize number of operations which triggers a flush
+     * @param batchBytes estimated size in bytes of operations which triggers a flush
+     * @param backpressure behavior when the queue is full
+     * @param blockTimeoutNanos max time to wait for free space with {@link Backpressure#BLOCK}
+     * @param spill overflow file, required with {@link Backpressure#SPILL}
+     */
+    public OperationsQueue(int capacity, int batchSize, long batchBytes, @NotNull Backpressure backpressure,
+                           long blockTimeoutNanos, @Nullable SpillFile spill) {
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.batchBytes = batchBytes;
+        this.backpressure = backpressure;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+        this.spill = spill;
+    }
+
+    /**
+     * Set the thread to wake up when operations are ready to be flushed
+     */
+    public void setConsumer(@NotNull Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Add an operation to the queue, applying the backpressure policy if the queue is full
+     * @throws StorageExecuteException if the operation can't be queued
+     */
+    public void offer(@NotNull MoneyOperation operation) throws StorageExecuteException {
+        offer(List.of(operation));
+    }
+
+    /**
+     * Add operations to the queue, all or none of them (applying the backpressure policy if the queue is full)
+     * @throws StorageExecuteException if the operations can't be queued
+     */
+    public void offer(@NotNull List<MoneyOperation> operations) throws StorageExecuteException {
+        int count = operations.size();
+        int position = reserve(count);
+        if (position < 0) {
+            switch (backpressure) {
+                case REJECT -> throw new StorageExecuteException(new Throwable(),
+                        "Money operations queue is full, operation rejected.");
+                case SPILL -> {
+                    spill(operations);
+                    return;
+                }
+                case BLOCK -> {
+                    long deadline = System.nanoTime() + blockTimeoutNanos;
+                    do {
+                        wakeConsumer();
+                        LockSupport.parkNanos(this, 1_000_000L);
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new StorageExecuteException(new InterruptedException(),
+                                    "Interrupted while waiting for money operations queue.");
+                        }
+                        if (System.nanoTime() - deadline >= 0 || count > capacity) {
+                            throw new StorageExecuteException(new Throwable(),
+                                    "Money operations queue is full, operation rejected after timeout.");
+                        }
+                    } while ((position = reserve(count)) < 0);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            push(operations.get(i), position - count + 1 + i);
+        }
+    }
+
+    /**
+     * Re-add already accepted operations (failed save), ignoring the capacity (Consumer only)
+     */
+    public void requeue(@NotNull List<MoneyOperation> operations) {
+        for (MoneyOperation operation : operations) {
+            push(operation, size.incrementAndGet());
+        }
+    }
+
+    /**
+     * Reserve places in the queue
+     * @return the number of operations in memory including these ones, or -1 if the queue is full
+     */
+    private int reserve(int count) {
+        int current;
+        do {
+            current = size.get();
+            if (current + count > capacity) return -1;
+        } while (!size.compareAndSet(current, current + count));
+        return current + count;
+    }
+
+    private void push(@NotNull MoneyOperation operation, int position) {
+        Queued queued = new Queued(operation, estimateBytes(operation), System.nanoTime());
+        queue.add(queued);
+        long totalBytes = bytes.addAndGet(queued.bytes());
+        if (consumerIdle || position == batchSize ||
+                (totalBytes >= batchBytes && totalBytes - queued.bytes() < batchBytes)) {
+            wakeConsumer();
+        }
+    }
+
+    private void spill(@NotNull List<MoneyOperation> operations) throws StorageExecuteException {
+        if (spill == null) throw new StorageExecuteException(new Throwable(), "Money operations spill file missing.");
+        try {
+            spill.append(operations);
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to spill money operation.");
+        }
+    }
+
+    /**
+     * Take the next batch of operations (Consumer only)
+     * @param maxOperations max number of operations
+     * @param maxBytes max estimated size of operations (at least one operation is returned)
+     * @return operations, in queue order
+     */
+    public @NotNull List<MoneyOperation> drain(int maxOperations, long maxBytes) {
+        refill();
+        List<MoneyOperation> operations = new ArrayList<>(Math.min(maxOperations, Math.max(size.get(), 1)));
+        long drainedBytes = 0L;
+        Queued queued;
+        while (operations.size() < maxOperations && (queued = queue.peek()) != null) {
+            if (!operations.isEmpty() && drainedBytes + queued.bytes() > maxBytes) break;
+            queue.poll();
+            size.decrementAndGet();
+            bytes.addAndGet(-queued.bytes());
+            drainedBytes += queued.bytes();
+            operations.add(queued.operation());
+        }
+        return operations;
+    }
+
+    /**
+     * Move spilled operations back in memory, when there is enough free space
+     */
+    private void refill() {
+        if (!canRefill()) return;
+        int free = getRefillSpace();
+        try {
+            requeue(spill.read(free));
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to read spilled money operations.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+    }
+
+    /**
+     * Check if spilled operations are waiting and there is enough free space in memory to move them back
+     */
+    private boolean canRefill() {
+        return spill != null && spill.size() > 0 && getRefillSpace() > 0;
+    }
+
+    /**
+     * Free space for spilled operations (Up to half of the capacity, so producers still have room)
+     */
+    private int getRefillSpace() {
+        return Math.max(1, capacity / 2) - size.get();
+    }
+
+    /**
+     * Wait until a batch is ready to be flushed (Consumer only): a batch threshold is reached, the oldest
+     * operation waited for the max latency, or spilled operations can be moved back in memory.
+     * @param maxLatencyNanos max time an operation can wait in the queue
+     * @param maxWaitNanos max time to wait, even if there is no batch ready
+     */
+    public void awaitBatch(long maxLatencyNanos, long maxWaitNanos) {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (isBatchReady() || canRefill()) return;
+            long now = System.nanoTime();
+            long remaining = deadline - now;
+            if (remaining <= 0) return;
+            Long oldest = getOldestEnqueueTime();
+            if (oldest == null) {
+                consumerIdle = true;
+                if (queue.isEmpty()) LockSupport.parkNanos(this, remaining);
+                consumerIdle = false;
+            } else {
+                long latency = oldest + maxLatencyNanos - now;
+                if (latency <= 0) return;
+                LockSupport.parkNanos(this, Math.min(latency, remaining));
+            }
+        }
+    }
+
+    /**
+     * Wake up the consumer thread, even if no batch is ready
+     */
+    public void wakeConsumer() {
+        Thread thread = consumer;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Check if a batch threshold (number of operations or bytes) is reached
+     */
+    public boolean isBatchReady() {
+        return size.get() >= batchSize || bytes.get() >= batchBytes;
+    }
+
+    /**
+     * Get the enqueue time ({@link System#nanoTime()}) of the oldest operation in memory
+     * @return the enqueue time, or null if there is no operation in memory
+     */
+    public @Nullable Long getOldestEnqueueTime() {
+        Queued queued = queue.peek();
+        return queued == null ? null : queued.enqueuedAt();
+    }
+
+    /**
+     * Check if there is no operation waiting (in memory or spilled)
+     */
+    public boolean isEmpty() {
+        return queue.isEmpty() && (spill == null || spill.size() == 0);
+    }
+
+    /**
+     * Get the number of operations waiting (in memory or spilled)
+     */
+    public int size() {
+        return size.get() + (spill == null ? 0 : spill.size());
+    }
+
+    /**
+     * Estimated size of the bulk document of this operation
+     */
+    private static int estimateBytes(@NotNull MoneyOperation operation) {
+        int bytes = 192 + operation.reason().length();
+        for (var tag : operation.tags().entrySet()) {
+            bytes += 8 + tag.getKey().length() + String.valueOf(tag.getValue()).length();
+        }
+        return bytes;
+    }
+
+    private record Queued(MoneyOperation operation, int bytes, long enqueuedAt) {}
+
+    /**
+     * Behavior when the queue is full
+     */
+    public enum Backpressure {
+        /**
+         * Wait for free space, until the block timeout
+         */
+        BLOCK,
+        /**
+         * Reject the operation
+         */
+        REJECT,
+        /**
+         * Write the operation in the overflow file
+         */
+        SPILL
+    }
+}
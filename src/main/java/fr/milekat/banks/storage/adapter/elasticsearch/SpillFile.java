@@ -0,0 +1,164 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.milekat.banks.utils.MoneyOperation;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Overflow file of the operations queue, operations are appended as JSON lines and read back in order.
+ * The read offset is kept in a side file, so operations already read are not read again after a restart.
+ */
+public class SpillFile {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int BUFFER_SIZE = 65536;
+    private final File file;
+    private final File offsetFile;
+    private long readOffset = 0L;
+    private int count = 0;
+
+    /**
+     * Open the spill file, operations not read before the last stop are kept.
+     * A torn last line (crash while appending) is removed.
+     */
+    public SpillFile(@NotNull File file) throws IOException {
+        this.file = file;
+        this.offsetFile = new File(file.getPath() + ".offset");
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Can't create folder " + folder.getPath());
+        }
+        if (!file.exists()) {
+            clear();
+            return;
+        }
+        if (offsetFile.exists()) {
+            try (DataInputStream input = new DataInputStream(new FileInputStream(offsetFile))) {
+                readOffset = input.readLong();
+            } catch (EOFException exception) {
+                readOffset = 0L;
+            }
+        }
+        if (readOffset < 0L || readOffset > file.length()) readOffset = 0L;
+        long complete = readOffset;
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE)) {
+            input.skipNBytes(readOffset);
+            long offset = readOffset;
+            int read;
+            while ((read = input.read()) != -1) {
+                offset++;
+                if (read != '\n') continue;
+                if (offset - complete > 1) count++;
+                complete = offset;
+            }
+        }
+        if (complete < file.length()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(complete);
+            }
+        }
+        if (count == 0) clear();
+    }
+
+    /**
+     * Append an operation at the end of the file
+     */
+    public synchronized void append(@NotNull MoneyOperation operation) throws IOException {
+        append(List.of(operation));
+    }
+
+    /**
+     * Append operations with a single write, a failed write is removed from the file
+     */
+    public synchronized void append(@NotNull List<MoneyOperation> operations) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (MoneyOperation operation : operations) {
+            lines.append(MAPPER.writeValueAsString(operation)).append('\n');
+        }
+        long length = file.length();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(lines.toString());
+        } catch (IOException exception) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            } catch (IOException truncateException) {
+                exception.addSuppressed(truncateException);
+            }
+            throw exception;
+        }
+        count += operations.size();
+    }
+
+    /**
+     * Read the next operations (buffered, from the read offset), the file is truncated once all operations are read
+     * @param max max number of operations to read
+     * @return read operations (in append order)
+     */
+    public synchronized @NotNull List<MoneyOperation> read(int max) throws IOException {
+        List<MoneyOperation> operations = new ArrayList<>();
+        if (count == 0) return operations;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             InputStream input = new BufferedInputStream(Channels.newInputStream(channel.position(readOffset)),
+                     BUFFER_SIZE)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long offset = readOffset;
+            int read;
+            while (operations.size() < max && (read = input.read()) != -1) {
+                offset++;
+                if (read != '\n') {
+                    line.write(read);
+                    continue;
+                }
+                if (line.size() > 0) operations.add(MAPPER.readValue(line.toByteArray(), MoneyOperation.class));
+                line.reset();
+            }
+            //  A line without its line break is not complete yet, it's read again next time
+            readOffset = offset - line.size();
+        }
+        count -= operations.size();
+        if (count <= 0) {
+            clear();
+        } else {
+            writeOffset();
+        }
+        return operations;
+    }
+
+    /**
+     * Remove all operations (read or not)
+     */
+    public synchronized void clear() throws IOException {
+        count = 0;
+        readOffset = 0L;
+        new FileOutputStream(file).close();
+        Files.deleteIfExists(offsetFile.toPath());
+    }
+
+    /**
+     * Save the read offset, replaced atomically
+     */
+    private void writeOffset() throws IOException {
+        File temporary = new File(offsetFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temporary))) {
+            output.writeLong(readOffset);
+        }
+        Files.move(temporary.toPath(), offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get the number of operations not yet read
+     */
+    public synchronized int size() {
+        return count;
+    }
+}
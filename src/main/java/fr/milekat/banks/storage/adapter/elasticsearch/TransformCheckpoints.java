@@ -0,0 +1,135 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch.transform.get_transform.TransformSummary;
+import co.elastic.clients.elasticsearch.transform.get_transform_stats.CheckpointStats;
+import co.elastic.clients.elasticsearch.transform.get_transform_stats.TransformStats;
+import fr.milekat.banks.Main;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Follow checkpoints of the accounts transforms (one transform per tag), read from the transforms stats.
+ * A checkpoint searches operations with a timestamp in its time range (from the upper bound of the previous
+ * checkpoint to its own upper bound), then computes again the accounts of these operations with all their operations
+ * under its upper bound, which were searchable when it started.
+ */
+class TransformCheckpoints {
+    private final ElasticsearchClient client;
+    private final String source;
+    private final String destination;
+    //  Transforms by tag name
+    private final Map<String, Transform> transforms = new ConcurrentHashMap<>();
+
+    TransformCheckpoints(@NotNull ElasticsearchClient client, @NotNull String source, @NotNull String destination) {
+        this.client = client;
+        this.source = source;
+        this.destination = destination;
+    }
+
+    /**
+     * Find the transforms writing the accounts of these tags (transforms from the transactions index to the
+     * accounts index, grouped by the tag)
+     * @return tags without transform
+     */
+    @NotNull Set<String> discover(@NotNull Collection<String> tagNames) throws ElasticsearchException, IOException {
+        Set<String> missing = new HashSet<>(tagNames);
+        for (TransformSummary summary : client.transform().getTransform(request -> request
+                .transformId("_all")
+                .size(1000)).transforms()) {
+            if (summary.pivot() == null || summary.dest() == null || !destination.equals(summary.dest().index()) ||
+                    summary.source() == null || !summary.source().index().contains(source)) continue;
+            for (String tagName : summary.pivot().groupBy().keySet()) {
+                if (missing.remove(tagName)) transforms.put(tagName, new Transform(summary.id()));
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Check if the accounts of this tag are written by a followed transform
+     */
+    boolean isTracked(@NotNull String tagName) {
+        return transforms.containsKey(tagName);
+    }
+
+    /**
+     * Check if a checkpoint of the transform of this tag was running at the last poll
+     * (Accounts may be partially updated)
+     */
+    boolean isRunning(@NotNull String tagName) {
+        Transform transform = transforms.get(tagName);
+        return transform != null && transform.running;
+    }
+
+    /**
+     * Read the stats of all followed transforms
+     * @return checkpoints completed since the last poll
+     */
+    synchronized @NotNull List<Checkpoint> poll() throws ElasticsearchException, IOException {
+        List<Checkpoint> completed = new ArrayList<>();
+        if (transforms.isEmpty()) return completed;
+        Map<String, String> tags = new HashMap<>();
+        transforms.forEach((tagName, transform) -> tags.put(transform.id, tagName));
+        long sentAt = System.currentTimeMillis();
+        for (TransformStats stats : client.transform().getTransformStats(request -> request
+                .transformId(new ArrayList<>(tags.keySet()))).transforms()) {
+            String tagName = tags.get(stats.id());
+            if (tagName == null) continue;
+            Transform transform = transforms.get(tagName);
+            if (!Objects.equals(transform.state, stats.state())) {
+                if (transform.state != null && !isActive(stats.state())) {
+                    Main.getMileLogger().warning("Accounts transform '" + stats.id() + "' is " + stats.state() +
+                            ", saved operations of tag '" + tagName + "' are kept in memory until it's restarted.");
+                }
+                transform.state = stats.state();
+            }
+            CheckpointStats last = stats.checkpointing().last();
+            CheckpointStats next = stats.checkpointing().next();
+            transform.running = next != null;
+            if (last.checkpoint() > 0 && last.timestampMillis() != null && last.timeUpperBoundMillis() != null) {
+                if (transform.checkpoint > 0 && last.checkpoint() > transform.checkpoint) {
+                    //  Checkpoints completed between two polls: the first one started after the previous poll
+                    long startedAt = last.checkpoint() == transform.checkpoint + 1 ?
+                            last.timestampMillis() : transform.nextStart;
+                    completed.add(new Checkpoint(tagName, startedAt, transform.upperBound,
+                            last.timeUpperBoundMillis()));
+                }
+                transform.checkpoint = last.checkpoint();
+                transform.upperBound = last.timeUpperBoundMillis();
+            }
+            transform.nextStart = next != null && next.timestampMillis() != null ? next.timestampMillis() : sentAt;
+        }
+        return completed;
+    }
+
+    private static boolean isActive(@Nullable String state) {
+        return "started".equals(state) || "indexing".equals(state);
+    }
+
+    /**
+     * Checkpoint completed by the transform of a tag
+     * @param startedAt time the checkpoint started, or earlier (epoch millis)
+     * @param from upper bound of the previous checkpoint (operations timestamp, epoch millis)
+     * @param to upper bound of this checkpoint (operations timestamp, epoch millis)
+     */
+    record Checkpoint(@NotNull String tagName, long startedAt, long from, long to) {}
+
+    private static final class Transform {
+        private final String id;
+        private String state = null;
+        private volatile boolean running = false;
+        private long checkpoint = 0L;
+        private long upperBound = 0L;
+        private long nextStart = 0L;
+
+        private Transform(String id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package fr.milekat.banks.storage.adapter.jdbc;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import fr.milekat.banks.Main;
+import fr.milekat.utils.Configs;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Long-lived and thread-safe pool of JDBC connections, shared by all storage operations.
+ * Prepared statements are cached by the driver (when supported), so they are reused between connections usages.
+ */
+public class JdbcClient implements Closeable {
+    private final HikariDataSource dataSource;
+
+    public JdbcClient(@NotNull Configs config) {
+        String url = config.getString("storage.jdbc.url", "jdbc:sqlite:plugins/MileBanks/banks.db");
+        int maxConnections = config.getInt("storage.jdbc.pool.max_connections", 10);
+        HikariConfig hikari = new HikariConfig();
+        hikari.setPoolName("MileBanks-JDBC");
+        hikari.setJdbcUrl(url);
+        hikari.setUsername(config.getString("storage.jdbc.username", ""));
+        hikari.setPassword(config.getString("storage.jdbc.password", ""));
+        hikari.setMaximumPoolSize(maxConnections);
+        hikari.setMinimumIdle(Math.min(2, maxConnections));
+        hikari.setConnectionTimeout(config.getLong("storage.jdbc.pool.connect_timeout", 5000L));
+        //  Prepared statements cache (MySQL / MariaDB drivers, ignored by others)
+        hikari.addDataSourceProperty("cachePrepStmts", "true");
+        hikari.addDataSourceProperty("prepStmtCacheSize", "250");
+        hikari.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        hikari.addDataSourceProperty("useServerPrepStmts", "true");
+        this.dataSource = new HikariDataSource(hikari);
+        Main.getMileLogger().debug("JDBC pool created (" + url.split("\\?")[0] + ", max connections: " +
+                maxConnections + ").");
+    }
+
+    /**
+     * Get a connection from the pool (Must be closed to be released)
+     */
+    public @NotNull Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public void close() {
+        dataSource.close();
+    }
+}
@@ -0,0 +1,676 @@
+package fr.milekat.banks.storage.adapter.jdbc;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.milekat.banks.Main;
+import fr.milekat.banks.api.batch.Operation;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.storage.CacheManager;
+import fr.milekat.banks.storage.StorageImplementation;
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.banks.utils.BankAccount;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import fr.milekat.utils.Configs;
+import fr.milekat.utils.DateMileKat;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import fr.milekat.utils.storage.exceptions.StorageLoadException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Relational storage: transactions are inserted in the transactions table, and the balances table is updated in
+ * the same database transaction, so balances are always consistent with saved transactions.
+ * Operations are written by a single thread, with one database transaction per batch of waiting operations.
+ * Operations of an API batch (transfers) are always written in the same database transaction.
+ */
+public class JdbcStorage implements StorageImplementation {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> TAGS_TYPE = new TypeReference<>() {};
+    private static final int REASON_LENGTH = 1024;
+    private static final int HISTORY_PAGE_SIZE = 1000;
+    private final JdbcClient client;
+    private final String TABLE_TRANSACTIONS;
+    private final String TABLE_TRANSACTION_TAGS;
+    private final String TABLE_BALANCES;
+    private final int batchSize;
+    private final long shutdownTimeoutMillis;
+    //  Operations to save, each element is saved in a single database transaction
+    private final BlockingQueue<List<PendingWrite>> writes = new LinkedBlockingQueue<>();
+    private volatile boolean writing = false;
+    private Thread writer;
+    //  Balances upsert of the database vendor (null if not supported: update, then insert missing accounts)
+    private volatile @Nullable String upsertBalance;
+
+    public JdbcStorage(@NotNull Configs config) throws StorageLoadException {
+        String prefix = config.getString("storage.jdbc.table_prefix", "banks_");
+        if (!prefix.matches("[a-z0-9_]{0,20}")) {
+            throw new StorageLoadException("JDBC table prefix wrong, please only lower cases (a-z), " +
+                    "digits (0-9) and underscores '_'.");
+        }
+        this.TABLE_TRANSACTIONS = prefix + "transactions";
+        this.TABLE_TRANSACTION_TAGS = prefix + "transaction_tags";
+        this.TABLE_BALANCES = prefix + "balances";
+        this.batchSize = Math.max(1, config.getInt("storage.jdbc.batch_size", 500));
+        this.shutdownTimeoutMillis = TimeUnit.MILLISECONDS.convert(
+                config.getLong("storage.shutdown_timeout", 10L), TimeUnit.SECONDS);
+        try {
+            this.client = new JdbcClient(config);
+        } catch (RuntimeException exception) {
+            Main.getMileLogger().warning("JDBC pool error: " + exception.getMessage());
+            Main.getMileLogger().stack(exception.getStackTrace());
+            throw new StorageLoadException("Error while trying to connect to the database: " +
+                    exception.getMessage());
+        }
+        startWriter();
+    }
+
+    @Override
+    public boolean checkStorages() {
+        Main.getMileLogger().debug("Check if storage is ready...");
+        try (Connection connection = client.getConnection(); Statement statement = connection.createStatement()) {
+            Main.getMileLogger().debug("Check tables...");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_TRANSACTIONS + " (" +
+                    "transaction_id CHAR(36) NOT NULL PRIMARY KEY, " +
+                    "amount INT NOT NULL, " +
+                    "reason VARCHAR(" + REASON_LENGTH + ") NOT NULL, " +
+                    "created_at VARCHAR(40) NOT NULL, " +
+                    "tags VARCHAR(2048) NOT NULL, " +
+                    "correlation_id CHAR(36) NULL)");
+            addCorrelationColumn(connection);
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_TRANSACTION_TAGS + " (" +
+                    "transaction_id CHAR(36) NOT NULL, " +
+                    "tag_name VARCHAR(64) NOT NULL, " +
+                    "tag_value VARCHAR(255) NOT NULL, " +
+                    "PRIMARY KEY (tag_name, tag_value, transaction_id))");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_BALANCES + " (" +
+                    "tag_name VARCHAR(64) NOT NULL, " +
+                    "tag_value VARCHAR(255) NOT NULL, " +
+                    "amount INT NOT NULL, " +
+                    "PRIMARY KEY (tag_name, tag_value))");
+            upsertBalance = getUpsertBalance(connection.getMetaData().getDatabaseProductName());
+            Main.getMileLogger().debug("Storage is ready.");
+            return true;
+        } catch (SQLException exception) {
+            Main.getMileLogger().warning("JDBC load storage error.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+        return false;
+    }
+
+    /**
+     * Get the statement adding an amount to a balance, inserted if missing, in a single statement
+     * @param product database product name
+     * @return upsert statement, or null if the database is not known
+     */
+    private @Nullable String getUpsertBalance(@NotNull String product) {
+        String insert = "INSERT INTO " + TABLE_BALANCES + " (tag_name, tag_value, amount) VALUES (?, ?, ?)";
+        return switch (product.toLowerCase(Locale.ROOT)) {
+            case "mysql", "mariadb" -> insert + " ON DUPLICATE KEY UPDATE amount = amount + VALUES(amount)";
+            case "postgresql", "sqlite" -> insert + " ON CONFLICT (tag_name, tag_value) DO UPDATE SET " +
+                    "amount = " + TABLE_BALANCES + ".amount + excluded.amount";
+            case "h2" -> "MERGE INTO " + TABLE_BALANCES + " b USING (VALUES (CAST(? AS VARCHAR(64)), " +
+                    "CAST(? AS VARCHAR(255)), CAST(? AS INT))) s (tag_name, tag_value, amount) " +
+                    "ON b.tag_name = s.tag_name AND b.tag_value = s.tag_value " +
+                    "WHEN MATCHED THEN UPDATE SET amount = b.amount + s.amount " +
+                    "WHEN NOT MATCHED THEN INSERT (tag_name, tag_value, amount) " +
+                    "VALUES (s.tag_name, s.tag_value, s.amount)";
+            default -> null;
+        };
+    }
+
+    /**
+     * Add the correlation id column to transactions tables created by previous versions
+     */
+    private void addCorrelationColumn(@NotNull Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeQuery("SELECT correlation_id FROM " + TABLE_TRANSACTIONS + " WHERE 1 = 0").close();
+            return;
+        } catch (SQLException ignored) {
+            Main.getMileLogger().debug("Add correlation id column...");
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("ALTER TABLE " + TABLE_TRANSACTIONS + " ADD correlation_id CHAR(36) NULL");
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        writing = false;
+        try {
+            if (writer != null) writer.join(shutdownTimeoutMillis);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        List<List<PendingWrite>> remaining = new ArrayList<>();
+        writes.drainTo(remaining);
+        StorageExecuteException exception = new StorageExecuteException(new Throwable(),
+                "Storage disconnected before the operation was saved.");
+        remaining.forEach(unit -> unit.forEach(write -> write.result.completeExceptionally(exception)));
+        client.close();
+        Main.getMileLogger().debug("JDBC pool closed.");
+    }
+
+    /*
+        SQL Queries execution
+     */
+
+    @Override
+    public int getMoneyFromTag(@NotNull String tagName, @NotNull Object tagValue) throws StorageExecuteException {
+        if (Main.DEBUG) Main.getMileLogger().debug("[JDBC] getMoneyFromTag - search money with tag '" +
+                tagName + "=" + tagValue + "'.");
+        try (Connection connection = client.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT amount FROM " + TABLE_BALANCES + " WHERE tag_name = ? AND tag_value = ?")) {
+            Integer balance = selectBalance(statement, new AccountKey(tagName, tagValue));
+            if (balance == null) {
+                Main.BANK_ACCOUNTS_CACHE.putMissing(new AccountKey(tagName, tagValue));
+                return 0;
+            }
+            CacheManager.addCacheAccount(new BankAccount(tagName, tagValue, balance));
+            return balance;
+        } catch (SQLException exception) {
+            throw new StorageExecuteException(exception, "Error while executing select request");
+        }
+    }
+
+    private @Nullable Integer selectBalance(@NotNull PreparedStatement statement, @NotNull AccountKey key)
+            throws SQLException {
+        statement.setString(1, key.tagName());
+        statement.setString(2, String.valueOf(key.tagValue()));
+        try (ResultSet result = statement.executeQuery()) {
+            return result.next() ? result.getInt(1) : null;
+        }
+    }
+
+    @Override
+    public @NotNull Map<String, Integer> getTagBalances(@NotNull String tagName) throws StorageExecuteException {
+        try (Connection connection = client.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT tag_value, amount FROM " + TABLE_BALANCES + " WHERE tag_name = ?")) {
+            statement.setString(1, tagName);
+            statement.setFetchSize(1000);
+            Map<String, Integer> balances = new HashMap<>();
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    balances.put(result.getString(1), result.getInt(2));
+                }
+            }
+            return balances;
+        } catch (SQLException exception) {
+            throw new StorageExecuteException(exception, "Error while executing select request");
+        }
+    }
+
+    @Override
+    public @NotNull UUID addMoneyToTags(@NotNull Map<String, Object> tags,
+                                        int amount, @Nullable String reason) throws StorageExecuteException {
+        if (amount==0) {
+            throw new StorageExecuteException(new Throwable(), "Amount can't be 0.");
+        }
+        return addOperation(tags, amount, null, reason);
+    }
+
+    @Override
+    public @NotNull UUID setMoneyToTag(@NotNull String tagName, @NotNull Object tagValue,
+                                       int amount, @Nullable String reason) throws StorageExecuteException {
+        //  The difference with the current balance is computed in the database transaction
+        return addOperation(Map.of(tagName, tagValue), 0, amount, reason);
+    }
+
+    /**
+     * Queue an operation, and wait for its database transaction to be committed.
+     * The prepare event of a set is called with the target balance, the difference is computed by the writer.
+     * @param target balance to set (null to add the amount)
+     */
+    private @NotNull UUID addOperation(@NotNull Map<String, Object> tags, int amount, @Nullable Integer target,
+                                       @Nullable String reason) throws StorageExecuteException {
+        PendingWrite write = new PendingWrite(TransactionIds.next(), tags, amount, target, getReason(reason),
+                System.currentTimeMillis(), null);
+        if (target != null) {
+            Main.EVENTS.prepareSet(new MoneyOperation(write.transactionId(), tags, target, write.reason(),
+                    write.timestamp()));
+        } else {
+            Main.EVENTS.prepare(new MoneyOperation(write.transactionId(), tags, amount, write.reason(),
+                    write.timestamp()));
+        }
+        Main.EVENTS.saved(save(List.of(write)));
+        return write.transactionId();
+    }
+
+    @Override
+    public @NotNull List<UUID> applyBatch(@NotNull UUID correlationId, @NotNull List<Operation> batch)
+            throws StorageExecuteException {
+        long timestamp = System.currentTimeMillis();
+        List<PendingWrite> unit = new ArrayList<>(batch.size());
+        List<MoneyOperation> operations = new ArrayList<>(batch.size());
+        for (Operation operation : batch) {
+            PendingWrite write = new PendingWrite(TransactionIds.next(), operation.tags(), operation.amount(), null,
+                    getReason(operation.reason()), timestamp, correlationId);
+            unit.add(write);
+            operations.add(new MoneyOperation(write.transactionId(), write.tags(), write.amount(), write.reason(),
+                    timestamp, correlationId));
+        }
+        Main.EVENTS.prepareBatch(correlationId, operations);
+        Main.EVENTS.saved(save(unit));
+        return operations.stream().map(MoneyOperation::transactionId).toList();
+    }
+
+    @Override
+    public @NotNull List<UUID> importOperations(@NotNull List<MoneyOperation> operations)
+            throws StorageExecuteException {
+        Set<UUID> existing = selectExistingTransactions(operations);
+        List<PendingWrite> unit = new ArrayList<>(operations.size());
+        for (MoneyOperation operation : operations) {
+            TransactionIds.advance(operation.transactionId());
+            //  Already saved (or twice in the chunk): not imported again
+            if (!existing.add(operation.transactionId())) continue;
+            unit.add(new PendingWrite(operation.transactionId(), operation.tags(), operation.amount(), null,
+                    getReason(operation.reason()), operation.timestamp(), operation.correlationId()));
+        }
+        if (unit.isEmpty()) return List.of();
+        try {
+            save(unit);
+        } catch (StorageExecuteException exception) {
+            if (!writing) throw exception;
+            //  The chunk is saved in a single database transaction: none of its operations is applied
+            Main.getMileLogger().warning("Error while trying to import '" + unit.size() +
+                    "' money operation(s), not imported: " + exception.getMessage());
+            return List.of();
+        }
+        return unit.stream().map(PendingWrite::transactionId).toList();
+    }
+
+    /**
+     * Get transaction ids of these operations already saved in the transactions table
+     */
+    private @NotNull Set<UUID> selectExistingTransactions(@NotNull List<MoneyOperation> operations)
+            throws StorageExecuteException {
+        Set<UUID> existing = new HashSet<>();
+        try (Connection connection = client.getConnection()) {
+            for (int from = 0; from < operations.size(); from += 500) {
+                List<MoneyOperation> slice = operations.subList(from, Math.min(operations.size(), from + 500));
+                try (PreparedStatement statement = connection.prepareStatement("SELECT transaction_id FROM " +
+                        TABLE_TRANSACTIONS + " WHERE transaction_id IN (" +
+                        String.join(", ", Collections.nCopies(slice.size(), "?")) + ")")) {
+                    for (int i = 0; i < slice.size(); i++) {
+                        statement.setString(i + 1, slice.get(i).transactionId().toString());
+                    }
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()) existing.add(UUID.fromString(result.getString(1)));
+                    }
+                }
+            }
+        } catch (SQLException exception) {
+            throw new StorageExecuteException(exception, "Error while executing select request");
+        }
+        return existing;
+    }
+
+    /**
+     * Queue operations to save in the same database transaction, and wait for it to be committed
+     * @return saved operations
+     */
+    private @NotNull List<MoneyOperation> save(@NotNull List<PendingWrite> unit) throws StorageExecuteException {
+        if (!writing) throw new StorageExecuteException(new Throwable(), "Storage is disconnected.");
+        writes.add(unit);
+        if (!writing && writes.remove(unit)) {
+            throw new StorageExecuteException(new Throwable(), "Storage is disconnected.");
+        }
+        List<MoneyOperation> operations = new ArrayList<>(unit.size());
+        try {
+            for (PendingWrite write : unit) {
+                operations.add(write.result.get());
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new StorageExecuteException(exception, "Interrupted while waiting money operation save");
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof StorageExecuteException storageException) throw storageException;
+            throw new StorageExecuteException(exception.getCause(), "Error while trying to save money operation.");
+        }
+        return operations;
+    }
+
+    private static @NotNull String getReason(@Nullable String reason) {
+        reason = Objects.requireNonNullElse(reason, "No reason provided");
+        if (reason.isBlank()) reason = "No reason provided";
+        return reason.length() > REASON_LENGTH ? reason.substring(0, REASON_LENGTH) : reason;
+    }
+
+    /**
+     * Start the thread writing queued operations, by batches
+     */
+    private void startWriter() {
+        writing = true;
+        writer = new Thread(() -> {
+            while (writing || !writes.isEmpty()) {
+                List<PendingWrite> first;
+                try {
+                    first = writes.poll(1L, TimeUnit.SECONDS);
+                } catch (InterruptedException exception) {
+                    return;
+                }
+                if (first == null) continue;
+                List<List<PendingWrite>> units = new ArrayList<>();
+                units.add(first);
+                int size = first.size();
+                List<PendingWrite> next;
+                while (size < batchSize && (next = writes.poll()) != null) {
+                    units.add(next);
+                    size += next.size();
+                }
+                try {
+                    write(units, false);
+                } catch (RuntimeException exception) {
+                    //  The writer must keep running, or callers would wait forever for their operations
+                    Main.getMileLogger().warning("Unexpected error in money operations writer: " + exception);
+                    Main.getMileLogger().stack(exception.getStackTrace());
+                    StorageExecuteException storageException = new StorageExecuteException(exception,
+                            "Error while trying to save money operation.");
+                    units.forEach(unit -> unit.forEach(write -> write.result.completeExceptionally(storageException)));
+                }
+            }
+        }, "MileBanks-JDBC");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Save operations in a single database transaction, if it fails each unit of operations is retried alone.
+     * A unit failing on a constraint violation (account inserted by another server) is retried once.
+     * @param retried the unit was already retried
+     */
+    private void write(@NotNull List<List<PendingWrite>> units, boolean retried) {
+        long start = System.nanoTime();
+        List<PendingWrite> batch = units.size() == 1 ? units.get(0) :
+                units.stream().flatMap(List::stream).toList();
+        try (Connection connection = client.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                List<MoneyOperation> operations = execute(connection, batch);
+                connection.commit();
+                for (PendingWrite write : batch) {
+                    for (Map.Entry<String, Object> tag : write.tags().entrySet()) {
+                        Main.BANK_ACCOUNTS_CACHE.invalidate(new AccountKey(tag.getKey(), tag.getValue()));
+                    }
+                }
+                try {
+                    for (MoneyOperation operation : operations) {
+                        Main.LEADERBOARDS.apply(operation.tags(), operation.amount());
+                        Main.STATISTICS.apply(operation);
+                    }
+                } catch (RuntimeException exception) {
+                    //  Committed, operations must be completed
+                    Main.getMileLogger().warning("Error while trying to apply saved money operations: " + exception);
+                    Main.getMileLogger().stack(exception.getStackTrace());
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).result.complete(operations.get(i));
+                }
+                Main.getMileLogger().debug("Batch of '" + batch.size() + "' money operation(s) saved in " +
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
+                return;
+            } catch (SQLException | JsonProcessingException exception) {
+                connection.rollback();
+                if (units.size() > 1) {
+                    Main.getMileLogger().debug("Batch of '" + batch.size() + "' money operation(s) failed (" +
+                            exception.getMessage() + "), saving them one by one.");
+                } else if (!retried && exception instanceof SQLException sqlException &&
+                        sqlException.getSQLState() != null && sqlException.getSQLState().startsWith("23")) {
+                    Main.getMileLogger().debug("Money operation(s) failed on a constraint (" +
+                            exception.getMessage() + "), retrying.");
+                } else {
+                    StorageExecuteException storageException = new StorageExecuteException(exception,
+                            "Error while trying to save money operation.");
+                    batch.forEach(write -> write.result.completeExceptionally(storageException));
+                    return;
+                }
+            }
+        } catch (SQLException exception) {
+            Main.getMileLogger().warning("Error while trying to save '" + batch.size() + "' money operation(s).");
+            Main.getMileLogger().stack(exception.getStackTrace());
+            StorageExecuteException storageException = new StorageExecuteException(exception,
+                    "Error while trying to save money operation.");
+            batch.forEach(write -> write.result.completeExceptionally(storageException));
+            return;
+        }
+        if (units.size() == 1) {
+            write(units, true);
+            return;
+        }
+        for (List<PendingWrite> unit : units) {
+            write(List.of(unit), false);
+        }
+    }
+
+    /**
+     * Insert transactions (batch inserts), then apply the sum of operations of each account to balances
+     * @return saved operations
+     */
+    private @NotNull List<MoneyOperation> execute(@NotNull Connection connection, @NotNull List<PendingWrite> batch)
+            throws SQLException, JsonProcessingException {
+        List<MoneyOperation> operations = new ArrayList<>(batch.size());
+        Map<AccountKey, Integer> deltas = new LinkedHashMap<>();
+        try (PreparedStatement insertTransaction = connection.prepareStatement("INSERT INTO " + TABLE_TRANSACTIONS +
+                     " (transaction_id, amount, reason, created_at, tags, correlation_id) VALUES (?, ?, ?, ?, ?, ?)");
+             PreparedStatement insertTag = connection.prepareStatement("INSERT INTO " + TABLE_TRANSACTION_TAGS +
+                     " (transaction_id, tag_name, tag_value) VALUES (?, ?, ?)");
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT amount FROM " + TABLE_BALANCES + " WHERE tag_name = ? AND tag_value = ?")) {
+            for (PendingWrite write : batch) {
+                int amount = write.amount();
+                if (write.target() != null) {
+                    AccountKey key = write.tags().entrySet().stream().findFirst()
+                            .map(tag -> new AccountKey(tag.getKey(), tag.getValue())).orElseThrow();
+                    Integer current = selectBalance(select, key);
+                    amount = write.target() - (Objects.requireNonNullElse(current, 0) + deltas.getOrDefault(key, 0));
+                }
+                MoneyOperation operation = new MoneyOperation(write.transactionId(), write.tags(), amount,
+                        write.reason(), write.timestamp(), write.correlationId());
+                operations.add(operation);
+                String transactionId = operation.transactionId().toString();
+                insertTransaction.setString(1, transactionId);
+                insertTransaction.setInt(2, operation.amount());
+                insertTransaction.setString(3, operation.reason());
+                insertTransaction.setString(4, DateMileKat.getDateEs(
+                        new java.util.Date(operation.timestamp())));
+                insertTransaction.setString(5, MAPPER.writeValueAsString(operation.tags()));
+                insertTransaction.setString(6, operation.correlationId() == null ? null :
+                        operation.correlationId().toString());
+                insertTransaction.addBatch();
+                for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+                    insertTag.setString(1, transactionId);
+                    insertTag.setString(2, tag.getKey());
+                    insertTag.setString(3, String.valueOf(tag.getValue()));
+                    insertTag.addBatch();
+                    deltas.merge(new AccountKey(tag.getKey(), tag.getValue()), operation.amount(), Integer::sum);
+                }
+            }
+            insertTransaction.executeBatch();
+            insertTag.executeBatch();
+        }
+        String upsert = upsertBalance;
+        if (upsert != null) {
+            try (PreparedStatement statement = connection.prepareStatement(upsert)) {
+                for (Map.Entry<AccountKey, Integer> delta : deltas.entrySet()) {
+                    statement.setString(1, delta.getKey().tagName());
+                    statement.setString(2, String.valueOf(delta.getKey().tagValue()));
+                    statement.setInt(3, delta.getValue());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            return operations;
+        }
+        List<AccountKey> accounts = new ArrayList<>(deltas.keySet());
+        List<AccountKey> missing = new ArrayList<>();
+        try (PreparedStatement update = connection.prepareStatement("UPDATE " + TABLE_BALANCES +
+                " SET amount = amount + ? WHERE tag_name = ? AND tag_value = ?");
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT amount FROM " + TABLE_BALANCES + " WHERE tag_name = ? AND tag_value = ?")) {
+            for (AccountKey key : accounts) {
+                update.setInt(1, deltas.get(key));
+                update.setString(2, key.tagName());
+                update.setString(3, String.valueOf(key.tagValue()));
+                update.addBatch();
+            }
+            int[] updated = update.executeBatch();
+            for (int i = 0; i < accounts.size(); i++) {
+                //  Unknown count (Statement.SUCCESS_NO_INFO): the account is updated only if it exists
+                if (updated[i] == 0 || (updated[i] < 0 && selectBalance(select, accounts.get(i)) == null)) {
+                    missing.add(accounts.get(i));
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            //  New accounts (a concurrent insert from another server fails the transaction, which is retried once)
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE_BALANCES +
+                    " (tag_name, tag_value, amount) VALUES (?, ?, ?)")) {
+                for (AccountKey key : missing) {
+                    insert.setString(1, key.tagName());
+                    insert.setString(2, String.valueOf(key.tagValue()));
+                    insert.setInt(3, deltas.get(key));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+        return operations;
+    }
+
+    /*
+        History
+     */
+
+    @Override
+    public @NotNull HistoryPage getHistory(@NotNull HistoryQuery query, int size, @Nullable String cursor)
+            throws StorageExecuteException {
+        UUID before = StorageImplementation.parseCursor(cursor);
+        List<Transaction> page = selectHistory(query, before, false, size + 1);
+        if (page.size() <= size) return new HistoryPage(page, null);
+        page = page.subList(0, size);
+        return new HistoryPage(page, page.get(size - 1).transactionId().toString());
+    }
+
+    @Override
+    public void streamHistory(@NotNull HistoryQuery query, @NotNull Consumer<Transaction> consumer)
+            throws StorageExecuteException {
+        UUID after = null;
+        List<Transaction> page;
+        do {
+            page = selectHistory(query, after, true, HISTORY_PAGE_SIZE);
+            page.forEach(consumer);
+            if (!page.isEmpty()) after = page.get(page.size() - 1).transactionId();
+        } while (page.size() == HISTORY_PAGE_SIZE);
+    }
+
+    /**
+     * Select operations by transaction id order (keyset pagination, transaction ids are time-ordered).
+     * The time range is filtered on the accepted time (created_at), ids of legacy or imported operations are not
+     * time-ordered: operations are selected by pages until the limit is reached.
+     * @param cursor select operations after (ascending) or before (descending) this id, null to start from the
+     *               oldest (ascending) or the most recent (descending)
+     * @param limit max number of operations
+     */
+    private @NotNull List<Transaction> selectHistory(@NotNull HistoryQuery query, @Nullable UUID cursor,
+                                                     boolean ascending, int limit)
+            throws StorageExecuteException {
+        if (query.from() == null && query.to() == null) return selectTransactions(query, cursor, ascending, limit);
+        List<Transaction> transactions = new ArrayList<>();
+        List<Transaction> page;
+        do {
+            page = selectTransactions(query, cursor, ascending, limit);
+            for (Transaction transaction : page) {
+                if (transactions.size() < limit && query.matchesTime(transaction.timestamp())) {
+                    transactions.add(transaction);
+                }
+            }
+            if (!page.isEmpty()) cursor = page.get(page.size() - 1).transactionId();
+        } while (page.size() == limit && transactions.size() < limit);
+        return transactions;
+    }
+
+    /**
+     * Select operations by transaction id order, filtered by tag and reason
+     */
+    private @NotNull List<Transaction> selectTransactions(@NotNull HistoryQuery query, @Nullable UUID cursor,
+                                                          boolean ascending, int limit)
+            throws StorageExecuteException {
+        StringBuilder sql = new StringBuilder("SELECT t.transaction_id, t.amount, t.reason, t.tags, " +
+                "t.correlation_id, t.created_at FROM ")
+                .append(TABLE_TRANSACTIONS).append(" t");
+        List<String> parameters = new ArrayList<>();
+        //  Ordered by the tags table when filtered by tag, its primary key starts with the tag
+        String order = "t.transaction_id";
+        if (query.tagName() != null) {
+            sql.append(" JOIN ").append(TABLE_TRANSACTION_TAGS)
+                    .append(" g ON g.transaction_id = t.transaction_id WHERE g.tag_name = ? AND g.tag_value = ?");
+            parameters.add(query.tagName());
+            parameters.add(String.valueOf(query.tagValue()));
+            order = "g.transaction_id";
+        } else {
+            sql.append(" WHERE 1 = 1");
+        }
+        if (cursor != null) {
+            sql.append(" AND ").append(order).append(ascending ? " > ?" : " < ?");
+            parameters.add(cursor.toString());
+        }
+        if (query.reason() != null) {
+            sql.append(" AND LOWER(t.reason) LIKE ? ESCAPE '!'");
+            parameters.add("%" + query.reason().toLowerCase(Locale.ROOT)
+                    .replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%");
+        }
+        sql.append(" ORDER BY ").append(order).append(ascending ? " ASC" : " DESC");
+        try (Connection connection = client.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setString(i + 1, parameters.get(i));
+            }
+            statement.setMaxRows(limit);
+            List<Transaction> transactions = new ArrayList<>();
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    UUID transactionId = UUID.fromString(result.getString(1));
+                    String correlationId = result.getString(5);
+                    transactions.add(new Transaction(transactionId,
+                            MAPPER.readValue(result.getString(4), TAGS_TYPE), result.getInt(2),
+                            result.getString(3), Instant.ofEpochMilli(
+                                    MoneyOperation.parseTimestamp(transactionId, result.getString(6))),
+                            correlationId == null ? null : UUID.fromString(correlationId.trim())));
+                }
+            }
+            return transactions;
+        } catch (SQLException | JsonProcessingException exception) {
+            throw new StorageExecuteException(exception, "Error while executing history request");
+        }
+    }
+
+    /**
+     * An operation waiting to be saved
+     * @param target balance to set (null to add the amount)
+     * @param correlationId id of the API batch (null for single operations)
+     */
+    private record PendingWrite(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount,
+                                @Nullable Integer target, @NotNull String reason, long timestamp,
+                                @Nullable UUID correlationId, @NotNull CompletableFuture<MoneyOperation> result) {
+        private PendingWrite(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount,
+                             @Nullable Integer target, @NotNull String reason, long timestamp,
+                             @Nullable UUID correlationId) {
+            this(transactionId, tags, amount, target, reason, timestamp, correlationId, new CompletableFuture<>());
+        }
+    }
+}
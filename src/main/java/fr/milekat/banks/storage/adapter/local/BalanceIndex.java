@@ -0,0 +1,150 @@
+package fr.milekat.banks.storage.adapter.local;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.AccountKey;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk index of accounts balances, to load balances without reading the whole ledger.
+ * Each checkpoint appends a record with updated balances and the ledger position they include:
+ * [int length][int crc32][long segment][int offset][int count]([key][int balance])*.
+ * When the file grows too much, it's compacted: rewritten with a single record of all balances.
+ */
+public class BalanceIndex implements Closeable {
+    private static final int HEADER_SIZE = 8;
+
+    private final File file;
+    private final BinaryCodec.Buffer scratch = new BinaryCodec.Buffer(4096);
+    private final DataOutputStream output = new DataOutputStream(scratch);
+    private FileChannel channel;
+    private long compactedSize = 0L;
+
+    public BalanceIndex(@NotNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read all checkpoints, and open the index for new checkpoints
+     * @param balances filled with the balances of the last checkpoint of each account
+     * @return ledger position included in the balances (null if no checkpoint)
+     */
+    public synchronized @Nullable Ledger.Position load(@NotNull Map<AccountKey, Integer> balances)
+            throws IOException {
+        Ledger.Position position = null;
+        long end = 0L;
+        if (file.exists()) {
+            try (FileChannel reader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+                CRC32 crc = new CRC32();
+                while (end + HEADER_SIZE <= buffer.limit()) {
+                    int offset = (int) end;
+                    int length = buffer.getInt(offset);
+                    if (length <= 0 || offset + HEADER_SIZE + length > buffer.limit()) break;
+                    ByteBuffer payload = buffer.slice(offset + HEADER_SIZE, length);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != buffer.getInt(offset + 4)) break;
+                    position = new Ledger.Position(payload.getLong(), payload.getInt());
+                    int count = payload.getInt();
+                    for (int i = 0; i < count; i++) {
+                        balances.put(BinaryCodec.readKey(payload), payload.getInt());
+                    }
+                    end += HEADER_SIZE + length;
+                }
+                if (end < reader.size()) {
+                    Main.getMileLogger().warning("Truncated balance index record, ignoring the end of the index.");
+                }
+            }
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(end);
+        channel.position(end);
+        compactedSize = end;
+        return position;
+    }
+
+    /**
+     * Append a checkpoint, and wait for it to be synced on disk
+     * @param position ledger position included in these balances
+     * @param balances updated balances
+     */
+    public synchronized void checkpoint(@NotNull Ledger.Position position,
+                                        @NotNull Map<AccountKey, Integer> balances) throws IOException {
+        ByteBuffer record = encode(position, balances);
+        while (record.hasRemaining()) channel.write(record);
+        channel.force(false);
+    }
+
+    /**
+     * Check if the index should be compacted (file size more than twice the size after the last compaction)
+     */
+    public synchronized boolean isCompactionRequired() throws IOException {
+        return channel.size() > Math.max(1048576L, compactedSize * 2);
+    }
+
+    /**
+     * Replace all checkpoints by a single one
+     * @param position ledger position included in these balances
+     * @param balances all balances
+     */
+    public synchronized void compact(@NotNull Ledger.Position position,
+                                     @NotNull Map<AccountKey, Integer> balances) throws IOException {
+        File compacted = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel writer = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer record = encode(position, balances);
+            while (record.hasRemaining()) writer.write(record);
+            writer.force(false);
+        }
+        channel.close();
+        try {
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+        compactedSize = channel.size();
+        Main.getMileLogger().debug("Balance index compacted: " + balances.size() + " account(s), " +
+                compactedSize + " bytes.");
+    }
+
+    private @NotNull ByteBuffer encode(@NotNull Ledger.Position position,
+                                       @NotNull Map<AccountKey, Integer> balances) throws IOException {
+        scratch.reset();
+        output.writeInt(0);
+        output.writeInt(0);
+        output.writeLong(position.segment());
+        output.writeInt(position.offset());
+        output.writeInt(balances.size());
+        for (Map.Entry<AccountKey, Integer> balance : balances.entrySet()) {
+            BinaryCodec.writeKey(output, balance.getKey());
+            output.writeInt(balance.getValue());
+        }
+        int length = scratch.size() - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(scratch.array(), HEADER_SIZE, length);
+        ByteBuffer record = ByteBuffer.wrap(scratch.array(), 0, scratch.size());
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
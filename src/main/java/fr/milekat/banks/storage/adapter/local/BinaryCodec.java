@@ -0,0 +1,153 @@
+package fr.milekat.banks.storage.adapter.local;
+
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.banks.utils.MoneyOperation;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary encoding of money operations and accounts keys, used by the local ledger files.
+ * Strings are written as [int length][utf-8 bytes], tag values are prefixed by their type.
+ * Timestamps are written as [int -1][long epoch millis] (Previous versions wrote them as strings).
+ * The correlation id of batch operations is written after the tags as ['C'][uuid], records without it (single
+ * operations, or written by previous versions) end after the tags.
+ */
+final class BinaryCodec {
+    private static final byte STRING = 'S';
+    private static final byte INTEGER = 'I';
+    private static final byte LONG = 'J';
+    private static final byte FLOAT = 'F';
+    private static final byte DOUBLE = 'D';
+    private static final byte BOOLEAN = 'Z';
+    private static final int EPOCH_MILLIS = -1;
+    private static final byte CORRELATION_ID = 'C';
+
+    private BinaryCodec() {}
+
+    static void writeOperation(@NotNull DataOutputStream output, @NotNull MoneyOperation operation)
+            throws IOException {
+        output.writeLong(operation.transactionId().getMostSignificantBits());
+        output.writeLong(operation.transactionId().getLeastSignificantBits());
+        output.writeInt(operation.amount());
+        output.writeInt(EPOCH_MILLIS);
+        output.writeLong(operation.timestamp());
+        writeString(output, operation.reason());
+        output.writeShort(operation.tags().size());
+        for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+            writeString(output, tag.getKey());
+            writeValue(output, tag.getValue());
+        }
+        if (operation.correlationId() != null) {
+            output.writeByte(CORRELATION_ID);
+            output.writeLong(operation.correlationId().getMostSignificantBits());
+            output.writeLong(operation.correlationId().getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * Read an operation, the buffer must end with the record
+     */
+    static @NotNull MoneyOperation readOperation(@NotNull ByteBuffer input) {
+        UUID transactionId = new UUID(input.getLong(), input.getLong());
+        int amount = input.getInt();
+        long timestamp = readTimestamp(input, transactionId);
+        String reason = readString(input);
+        int count = input.getShort();
+        Map<String, Object> tags = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            tags.put(readString(input), readValue(input));
+        }
+        UUID correlationId = null;
+        if (input.hasRemaining() && input.get(input.position()) == CORRELATION_ID) {
+            input.get();
+            correlationId = new UUID(input.getLong(), input.getLong());
+        }
+        return new MoneyOperation(transactionId, tags, amount, reason, timestamp, correlationId);
+    }
+
+    private static long readTimestamp(@NotNull ByteBuffer input, @NotNull UUID transactionId) {
+        int length = input.getInt(input.position());
+        if (length == EPOCH_MILLIS) {
+            input.getInt();
+            return input.getLong();
+        }
+        return MoneyOperation.parseTimestamp(transactionId, readString(input));
+    }
+
+    static void writeKey(@NotNull DataOutputStream output, @NotNull AccountKey key) throws IOException {
+        writeString(output, key.tagName());
+        writeValue(output, key.tagValue());
+    }
+
+    static @NotNull AccountKey readKey(@NotNull ByteBuffer input) {
+        return new AccountKey(readString(input), readValue(input));
+    }
+
+    static void writeString(@NotNull DataOutputStream output, @NotNull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    static @NotNull String readString(@NotNull ByteBuffer input) {
+        byte[] bytes = new byte[input.getInt()];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeValue(@NotNull DataOutputStream output, @NotNull Object value) throws IOException {
+        if (value instanceof Integer integer) {
+            output.writeByte(INTEGER);
+            output.writeInt(integer);
+        } else if (value instanceof Long number) {
+            output.writeByte(LONG);
+            output.writeLong(number);
+        } else if (value instanceof Float number) {
+            output.writeByte(FLOAT);
+            output.writeFloat(number);
+        } else if (value instanceof Double number) {
+            output.writeByte(DOUBLE);
+            output.writeDouble(number);
+        } else if (value instanceof Boolean bool) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean(bool);
+        } else {
+            output.writeByte(STRING);
+            writeString(output, value.toString());
+        }
+    }
+
+    private static @NotNull Object readValue(@NotNull ByteBuffer input) {
+        byte type = input.get();
+        return switch (type) {
+            case INTEGER -> input.getInt();
+            case LONG -> input.getLong();
+            case FLOAT -> input.getFloat();
+            case DOUBLE -> input.getDouble();
+            case BOOLEAN -> input.get() != 0;
+            case STRING -> readString(input);
+            default -> throw new IllegalStateException("Unknown tag value type: " + type);
+        };
+    }
+
+    /**
+     * Reusable output buffer, giving access to its content without copy
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
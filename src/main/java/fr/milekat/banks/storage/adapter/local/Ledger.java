@@ -0,0 +1,300 @@
+package fr.milekat.banks.storage.adapter.local;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.MoneyOperation;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only ledger of all money operations, in memory-mapped segment files.
+ * Record format: [int length][int crc32][payload], payload is the binary operation (See {@link BinaryCodec}),
+ * a zero length marks the end of a segment.
+ * Writes are synced with a group commit: the first waiting writer syncs the segment for all pending writers.
+ * Segments are never deleted, they are the history of all operations.
+ */
+public class Ledger implements Closeable {
+    private static final int HEADER_SIZE = 8;
+
+    private final File folder;
+    private final int segmentSize;
+    private final boolean sync;
+    private final List<Long> segments = new ArrayList<>();
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private final BinaryCodec.Buffer scratch = new BinaryCodec.Buffer(256);
+    private final DataOutputStream output = new DataOutputStream(scratch);
+    private long currentId;
+    private MappedByteBuffer current;
+    private long writtenSequence = 0L;
+    private long syncedSequence = 0L;
+    private boolean syncing = false;
+
+    /**
+     * @param folder ledger folder
+     * @param segmentSize size in bytes of a segment file
+     * @param sync if true, appends wait for the data to be synced on disk
+     */
+    public Ledger(@NotNull File folder, int segmentSize, boolean sync) throws IOException {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        if (!folder.exists() && !folder.mkdirs()) throw new IOException("Can't create folder " + folder.getPath());
+    }
+
+    /**
+     * Find existing segments (the last one is truncated after its last valid record) and open a new segment for
+     * appends
+     */
+    public void open() throws IOException {
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        long lastId = 0L;
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparing(File::getName));
+            for (File file : files) {
+                long id = Long.parseLong(file.getName().substring(8, file.getName().length() - 4));
+                segments.add(id);
+                lastId = Math.max(lastId, id);
+            }
+        }
+        if (lastId > 0) {
+            File last = getFile(lastId);
+            int end = scan(lastId, 0, null);
+            try (FileChannel channel = FileChannel.open(last.toPath(), StandardOpenOption.WRITE)) {
+                if (channel.size() > end) channel.truncate(end);
+            }
+        }
+        synchronized (writeLock) {
+            openSegment(lastId + 1);
+        }
+    }
+
+    /**
+     * Read all operations written after this position
+     * @param from position of the first operation to read (null to read all operations)
+     * @param consumer called for each operation, in write order
+     */
+    public void replay(@Nullable Position from, @NotNull Consumer<MoneyOperation> consumer) throws IOException {
+        List<Long> ids;
+        long liveId;
+        ByteBuffer live;
+        synchronized (writeLock) {
+            ids = new ArrayList<>(segments);
+            liveId = currentId;
+            live = current.duplicate().limit(current.position());
+        }
+        for (long id : ids) {
+            if (from != null && id < from.segment()) continue;
+            int offset = from != null && id == from.segment() ? from.offset() : 0;
+            if (id == liveId) {
+                read(live, offset, getFile(id), consumer);
+            } else {
+                scan(id, offset, consumer);
+            }
+        }
+    }
+
+    /**
+     * Read records of a sealed segment
+     * @return position after the last valid record
+     */
+    private int scan(long id, int offset, @Nullable Consumer<MoneyOperation> consumer) throws IOException {
+        File file = getFile(id);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() == 0) return 0;
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), offset, file, consumer);
+        }
+    }
+
+    /**
+     * Read records of a segment buffer, until the end of the buffer or an invalid record
+     * @return position after the last valid record
+     */
+    private int read(@NotNull ByteBuffer buffer, int offset, @NotNull File file,
+                     @Nullable Consumer<MoneyOperation> consumer) {
+        int position = offset;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.limit()) break;
+            ByteBuffer payload = buffer.slice(position + HEADER_SIZE, length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                Main.getMileLogger().warning("Invalid ledger record in " + file.getName() +
+                        ", ignoring the end of the segment.");
+                break;
+            }
+            if (consumer != null) consumer.accept(BinaryCodec.readOperation(payload));
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Append an operation (Call {@link #awaitSync(long)} to wait for it to be on disk)
+     * @return record sequence, to wait for sync
+     */
+    public long write(@NotNull MoneyOperation operation) throws IOException {
+        return write(List.of(operation));
+    }
+
+    /**
+     * Append operations in the same segment, all or none of them are read after a crash: lengths are written last,
+     * from the last record to the first one (Call {@link #awaitSync(long)} to wait for them to be on disk)
+     * @return sequence of the last record, to wait for sync
+     */
+    public long write(@NotNull List<MoneyOperation> operations) throws IOException {
+        synchronized (writeLock) {
+            scratch.reset();
+            int[] ends = new int[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                BinaryCodec.writeOperation(output, operations.get(i));
+                ends[i] = scratch.size();
+            }
+            int size = scratch.size() + HEADER_SIZE * operations.size();
+            if (size > segmentSize) throw new IOException("Money operations too large");
+            if (current.position() + size > segmentSize) roll();
+            CRC32 crc = new CRC32();
+            int[] positions = new int[operations.size()];
+            int position = current.position();
+            int start = 0;
+            for (int i = 0; i < operations.size(); i++) {
+                int length = ends[i] - start;
+                crc.reset();
+                crc.update(scratch.array(), start, length);
+                positions[i] = position;
+                current.putInt(position + 4, (int) crc.getValue());
+                current.put(position + HEADER_SIZE, scratch.array(), start, length);
+                position += HEADER_SIZE + length;
+                start = ends[i];
+            }
+            //  Length is written last, so a partially written record (or batch) is never read
+            for (int i = operations.size() - 1; i >= 0; i--) {
+                int end = i + 1 < positions.length ? positions[i + 1] : position;
+                current.putInt(positions[i], end - positions[i] - HEADER_SIZE);
+            }
+            current.position(position);
+            writtenSequence += operations.size();
+            return writtenSequence;
+        }
+    }
+
+    /**
+     * Get the position after the last written operation
+     */
+    public @NotNull Position getPosition() {
+        synchronized (writeLock) {
+            return new Position(currentId, current.position());
+        }
+    }
+
+    /**
+     * Get the sequence of the last written operation
+     */
+    public long getWrittenSequence() {
+        synchronized (writeLock) {
+            return writtenSequence;
+        }
+    }
+
+    /**
+     * Wait until the record is synced on disk, the first waiting thread syncs for all others (group commit)
+     */
+    public void awaitSync(long sequence) throws IOException {
+        if (!sync) return;
+        forceSync(sequence);
+    }
+
+    /**
+     * Wait until the record is synced on disk, even if sync is disabled
+     */
+    public void forceSync(long sequence) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && syncedSequence < sequence) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting ledger sync", exception);
+                    }
+                }
+                if (syncedSequence >= sequence) return;
+                syncing = true;
+            }
+            long target;
+            MappedByteBuffer buffer;
+            synchronized (writeLock) {
+                target = writtenSequence;
+                buffer = current;
+            }
+            boolean synced = false;
+            try {
+                buffer.force();
+                synced = true;
+            } finally {
+                synchronized (syncLock) {
+                    if (synced) syncedSequence = Math.max(syncedSequence, target);
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Seal the current segment and open a new one (Must hold the write lock)
+     */
+    private void roll() throws IOException {
+        current.force();
+        openSegment(currentId + 1);
+    }
+
+    private void openSegment(long id) throws IOException {
+        try (FileChannel channel = FileChannel.open(getFile(id).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            current = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        currentId = id;
+        segments.add(id);
+    }
+
+    private @NotNull File getFile(long id) {
+        return new File(folder, String.format("segment-%020d.log", id));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            current.force();
+            //  Remove the unused end of the segment (Unmapped when collected)
+            try (FileChannel channel = FileChannel.open(getFile(currentId).toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(current.position());
+            } catch (IOException exception) {
+                Main.getMileLogger().debug("Can't truncate ledger segment: " + exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Position in the ledger
+     * @param segment segment id
+     * @param offset offset in the segment
+     */
+    public record Position(long segment, int offset) {}
+}
@@ -0,0 +1,415 @@
+package fr.milekat.banks.storage.adapter.local;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.api.batch.Operation;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.storage.StorageImplementation;
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import fr.milekat.utils.Configs;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import fr.milekat.utils.storage.exceptions.StorageLoadException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Local storage for single-node servers, without any external service.
+ * All operations are appended to a local {@link Ledger}, balances are kept in memory and written periodically in a
+ * {@link BalanceIndex} (checkpoint), so only operations after the last checkpoint are replayed at startup.
+ * Operations are applied to balances once synced in the ledger, until then they are kept as pending deltas (used
+ * by sets and checkpoints, which follow the ledger).
+ */
+public class LocalStorage implements StorageImplementation {
+    private final Ledger ledger;
+    private final BalanceIndex index;
+    private final Map<AccountKey, Integer> balances = new ConcurrentHashMap<>();
+    //  Sum of operations written in the ledger, not yet synced (Guarded by the write lock)
+    private final Map<AccountKey, Integer> pending = new HashMap<>();
+    private final Set<AccountKey> updated = new HashSet<>();
+    private final Object writeLock = new Object();
+    private final Object checkpointLock = new Object();
+    private final long checkpointIntervalMillis;
+    private volatile boolean running = false;
+    private Thread checkpointer;
+
+    public LocalStorage(@NotNull Configs config) throws StorageLoadException {
+        File folder = new File(Main.getInstance().getDataFolder(), "ledger");
+        long segmentSize = config.getLong("storage.local.segment_size", 67108864L);
+        this.checkpointIntervalMillis = TimeUnit.MILLISECONDS.convert(
+                Math.max(1L, config.getLong("storage.local.checkpoint_interval", 5L)), TimeUnit.SECONDS);
+        try {
+            this.ledger = new Ledger(folder, (int) Math.min(Integer.MAX_VALUE, Math.max(65536L, segmentSize)),
+                    config.getBoolean("storage.local.sync", true));
+            this.index = new BalanceIndex(new File(folder, "balances.idx"));
+            Ledger.Position position = index.load(balances);
+            ledger.open();
+            int[] replayed = {0};
+            ledger.replay(position, operation -> {
+                apply(operation.tags(), operation.amount());
+                TransactionIds.advance(operation.transactionId());
+                replayed[0]++;
+            });
+            Main.getMileLogger().debug("Local ledger loaded: '" + balances.size() + "' account(s), '" +
+                    replayed[0] + "' operation(s) replayed.");
+        } catch (IOException | RuntimeException exception) {
+            throw new StorageLoadException("Error while trying to load the local ledger");
+        }
+        startCheckpoints();
+    }
+
+    @Override
+    public boolean checkStorages() {
+        Main.getMileLogger().debug("Local storage is ready.");
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        running = false;
+        synchronized (checkpointLock) {
+            checkpointLock.notifyAll();
+        }
+        try {
+            if (checkpointer != null) checkpointer.join(TimeUnit.SECONDS.toMillis(10L));
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        try {
+            ledger.close();
+            index.close();
+            Main.getMileLogger().debug("Local ledger closed.");
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to close the local ledger.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+        }
+    }
+
+    /*
+        Balances
+     */
+
+    @Override
+    public int getMoneyFromTag(@NotNull String tagName, @NotNull Object tagValue) {
+        return balances.getOrDefault(new AccountKey(tagName, tagValue), 0);
+    }
+
+    /**
+     * Balances are already in memory, the accounts cache is not used
+     */
+    @Override
+    public int getCacheBalance(@NotNull String tagName, @NotNull Object tagValue) {
+        return getMoneyFromTag(tagName, tagValue);
+    }
+
+    @Override
+    public void warmCache(@NotNull Map<String, Object> tags) {}
+
+    @Override
+    public @NotNull Map<String, Integer> getTagBalances(@NotNull String tagName) {
+        Map<String, Integer> tagBalances = new HashMap<>();
+        balances.forEach((key, balance) -> {
+            if (key.tagName().equals(tagName)) tagBalances.put(String.valueOf(key.tagValue()), balance);
+        });
+        return tagBalances;
+    }
+
+    @Override
+    public @NotNull UUID addMoneyToTags(@NotNull Map<String, Object> tags,
+                                        int amount, @Nullable String reason) throws StorageExecuteException {
+        if (amount==0) {
+            throw new StorageExecuteException(new Throwable(), "Amount can't be 0.");
+        }
+        return addOperation(tags, amount, null, reason);
+    }
+
+    @Override
+    public @NotNull UUID setMoneyToTag(@NotNull String tagName, @NotNull Object tagValue,
+                                       int amount, @Nullable String reason) throws StorageExecuteException {
+        //  The difference is computed while holding the write lock, so no other operation can happen in between
+        return addOperation(Map.of(tagName, tagValue), 0, amount, reason);
+    }
+
+    /**
+     * Write an operation in the ledger, and apply it to balances once synced.
+     * The prepare event is called before taking the write lock, like other storages (with the target balance
+     * for a set).
+     * @param target balance to set (null to add the amount), the difference with the balance including pending
+     *               operations is computed while holding the write lock
+     */
+    private @NotNull UUID addOperation(@NotNull Map<String, Object> tags, int amount, @Nullable Integer target,
+                                       @Nullable String reason) throws StorageExecuteException {
+        MoneyOperation operation = new MoneyOperation(TransactionIds.next(), tags, target != null ? target : amount,
+                getReason(reason), System.currentTimeMillis());
+        if (target != null) {
+            Main.EVENTS.prepareSet(operation);
+        } else {
+            Main.EVENTS.prepare(operation);
+        }
+        long sequence;
+        synchronized (writeLock) {
+            if (target != null) {
+                Map.Entry<String, Object> tag = tags.entrySet().iterator().next();
+                operation = operation.with(operation.transactionId(),
+                        target - getWrittenBalance(new AccountKey(tag.getKey(), tag.getValue())));
+            }
+            try {
+                sequence = ledger.write(operation);
+            } catch (IOException exception) {
+                throw new StorageExecuteException(exception, "Error while trying to save money operation.");
+            }
+            written(List.of(operation));
+        }
+        sync(List.of(operation), sequence);
+        Main.EVENTS.saved(List.of(operation));
+        return operation.transactionId();
+    }
+
+    /**
+     * Write all operations in the ledger at once (a single sync), then apply them to balances
+     */
+    @Override
+    public @NotNull List<UUID> applyBatch(@NotNull UUID correlationId, @NotNull List<Operation> batch)
+            throws StorageExecuteException {
+        List<MoneyOperation> operations = new ArrayList<>(batch.size());
+        long timestamp = System.currentTimeMillis();
+        for (Operation operation : batch) {
+            operations.add(new MoneyOperation(TransactionIds.next(), operation.tags(), operation.amount(),
+                    getReason(operation.reason()), timestamp, correlationId));
+        }
+        Main.EVENTS.prepareBatch(correlationId, operations);
+        long sequence;
+        synchronized (writeLock) {
+            try {
+                sequence = ledger.write(operations);
+            } catch (IOException exception) {
+                throw new StorageExecuteException(exception, "Error while trying to save money operations.");
+            }
+            written(operations);
+        }
+        sync(operations, sequence);
+        Main.EVENTS.saved(operations);
+        return operations.stream().map(MoneyOperation::transactionId).toList();
+    }
+
+    @Override
+    public @NotNull List<UUID> importOperations(@NotNull List<MoneyOperation> imported)
+            throws StorageExecuteException {
+        //  Operations already in the ledger (or twice in the chunk) are not imported again
+        Set<UUID> transactionIds = new HashSet<>();
+        imported.forEach(operation -> transactionIds.add(operation.transactionId()));
+        Set<UUID> existing = new HashSet<>();
+        try {
+            ledger.replay(null, operation -> {
+                if (transactionIds.contains(operation.transactionId())) existing.add(operation.transactionId());
+            });
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to read the local ledger.");
+        }
+        List<MoneyOperation> operations = new ArrayList<>(imported.size());
+        for (MoneyOperation operation : imported) {
+            if (existing.add(operation.transactionId())) operations.add(operation);
+        }
+        if (operations.isEmpty()) return List.of();
+        long sequence;
+        synchronized (writeLock) {
+            try {
+                sequence = ledger.write(operations);
+            } catch (IOException exception) {
+                throw new StorageExecuteException(exception, "Error while trying to save money operations.");
+            }
+            operations.forEach(operation -> TransactionIds.advance(operation.transactionId()));
+            written(operations);
+        }
+        sync(operations, sequence);
+        return operations.stream().map(MoneyOperation::transactionId).toList();
+    }
+
+    private static @NotNull String getReason(@Nullable String reason) {
+        reason = Objects.requireNonNullElse(reason, "No reason provided");
+        return reason.isBlank() ? "No reason provided" : reason;
+    }
+
+    /**
+     * Wait until written operations are synced, then apply them to balances, leaderboards and statistics.
+     * If the sync fails they are not applied, but they are in the ledger: they are applied at next start if they
+     * reached the disk and no checkpoint was written after them.
+     */
+    private void sync(@NotNull List<MoneyOperation> operations, long sequence) throws StorageExecuteException {
+        boolean synced = false;
+        try {
+            ledger.awaitSync(sequence);
+            synced = true;
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to sync money operations.");
+        } finally {
+            synchronized (writeLock) {
+                for (MoneyOperation operation : operations) {
+                    for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+                        AccountKey key = new AccountKey(tag.getKey(), tag.getValue());
+                        pending.merge(key, -operation.amount(), LocalStorage::sumPending);
+                        updated.add(key);
+                    }
+                    if (synced) apply(operation.tags(), operation.amount());
+                }
+            }
+        }
+        for (MoneyOperation operation : operations) {
+            Main.LEADERBOARDS.apply(operation.tags(), operation.amount());
+            Main.STATISTICS.apply(operation);
+        }
+    }
+
+    /**
+     * Keep operations written in the ledger as pending until they are synced (Must hold the write lock)
+     */
+    private void written(@NotNull List<MoneyOperation> operations) {
+        for (MoneyOperation operation : operations) {
+            for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+                AccountKey key = new AccountKey(tag.getKey(), tag.getValue());
+                pending.merge(key, operation.amount(), LocalStorage::sumPending);
+                //  Checkpoints follow the ledger position, so they include pending operations
+                updated.add(key);
+            }
+        }
+    }
+
+    private static @Nullable Integer sumPending(int amount, int added) {
+        return amount + added == 0 ? null : amount + added;
+    }
+
+    /**
+     * Balance of an account including pending operations, like the ledger (Must hold the write lock)
+     */
+    private int getWrittenBalance(@NotNull AccountKey key) {
+        return balances.getOrDefault(key, 0) + pending.getOrDefault(key, 0);
+    }
+
+    /**
+     * Apply an operation to balances (Must hold the write lock, or be loading)
+     */
+    private void apply(@NotNull Map<String, Object> tags, int amount) {
+        for (Map.Entry<String, Object> tag : tags.entrySet()) {
+            AccountKey key = new AccountKey(tag.getKey(), tag.getValue());
+            balances.merge(key, amount, Integer::sum);
+            updated.add(key);
+        }
+    }
+
+    /*
+        History (Read from the ledger, all segments are scanned)
+     */
+
+    @Override
+    public @NotNull HistoryPage getHistory(@NotNull HistoryQuery query, int size, @Nullable String cursor)
+            throws StorageExecuteException {
+        UUID before = StorageImplementation.parseCursor(cursor);
+        //  Most recent matching operations (by transaction id, ids are generated before writing in the ledger so
+        //  they can be slightly out of order), one more than the page size to know if there is a next page
+        PriorityQueue<MoneyOperation> operations = new PriorityQueue<>(size + 2,
+                Comparator.comparing(MoneyOperation::transactionId));
+        try {
+            ledger.replay(null, operation -> {
+                if (before != null && operation.transactionId().compareTo(before) >= 0) return;
+                if (!operation.matches(query)) return;
+                operations.add(operation);
+                if (operations.size() > size + 1) operations.poll();
+            });
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to read the local ledger.");
+        }
+        boolean next = operations.size() > size;
+        if (next) operations.poll();
+        List<Transaction> page = new ArrayList<>(operations.size());
+        while (!operations.isEmpty()) page.add(operations.poll().toTransaction());
+        Collections.reverse(page);
+        return new HistoryPage(page, next ? page.get(page.size() - 1).transactionId().toString() : null);
+    }
+
+    @Override
+    public void streamHistory(@NotNull HistoryQuery query, @NotNull Consumer<Transaction> consumer)
+            throws StorageExecuteException {
+        try {
+            ledger.replay(null, operation -> {
+                if (operation.matches(query)) consumer.accept(operation.toTransaction());
+            });
+        } catch (IOException exception) {
+            throw new StorageExecuteException(exception, "Error while trying to read the local ledger.");
+        }
+    }
+
+    /*
+        Checkpoints
+     */
+
+    /**
+     * Start the thread writing updated balances in the balance index
+     */
+    private void startCheckpoints() {
+        running = true;
+        checkpointer = new Thread(() -> {
+            while (running) {
+                synchronized (checkpointLock) {
+                    try {
+                        checkpointLock.wait(checkpointIntervalMillis);
+                    } catch (InterruptedException exception) {
+                        return;
+                    }
+                }
+                if (running) checkpoint();
+            }
+        }, "MileBanks-Ledger");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * Write balances updated since the last checkpoint in the balance index (compact it if needed)
+     */
+    private synchronized void checkpoint() {
+        Map<AccountKey, Integer> checkpoint = new HashMap<>();
+        Ledger.Position position;
+        long sequence;
+        synchronized (writeLock) {
+            if (updated.isEmpty()) return;
+            for (AccountKey key : updated) {
+                checkpoint.put(key, getWrittenBalance(key));
+            }
+            updated.clear();
+            position = ledger.getPosition();
+            sequence = ledger.getWrittenSequence();
+        }
+        try {
+            //  Balances must never include operations not yet on disk
+            ledger.forceSync(sequence);
+            index.checkpoint(position, checkpoint);
+            if (index.isCompactionRequired()) {
+                Map<AccountKey, Integer> all;
+                synchronized (writeLock) {
+                    all = new HashMap<>(balances);
+                    pending.forEach((key, amount) -> all.merge(key, amount, Integer::sum));
+                    position = ledger.getPosition();
+                    sequence = ledger.getWrittenSequence();
+                }
+                ledger.forceSync(sequence);
+                index.compact(position, all);
+            }
+        } catch (IOException exception) {
+            Main.getMileLogger().warning("Error while trying to checkpoint balances, retrying later.");
+            Main.getMileLogger().stack(exception.getStackTrace());
+            synchronized (writeLock) {
+                updated.addAll(checkpoint.keySet());
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package fr.milekat.banks.storage.adapter.memory;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.api.batch.Operation;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.storage.StorageImplementation;
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import fr.milekat.utils.Configs;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * In-memory storage, nothing is saved: all balances are lost when the plugin is disabled.
+ * Used for tests, benchmarks (no I/O) and ephemeral servers (minigames).
+ * Balances are mutable counters updated without locks, the last operations are kept in a {@link TransactionRing}.
+ */
+public class MemoryStorage implements StorageImplementation {
+    private final Map<AccountKey, AtomicInteger> balances = new ConcurrentHashMap<>();
+    private final TransactionRing transactions;
+    //  Transaction ids of imported operations, so importing a file again doesn't apply them twice
+    private final Set<UUID> imported = ConcurrentHashMap.newKeySet();
+
+    public MemoryStorage(@NotNull Configs config) {
+        this.transactions = new TransactionRing(config.getInt("storage.memory.history_size", 10000));
+    }
+
+    @Override
+    public boolean checkStorages() {
+        Main.getMileLogger().debug("Memory storage is ready.");
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        Main.getMileLogger().debug("Memory storage cleared: '" + balances.size() + "' account(s), '" +
+                transactions.getCount() + "' operation(s) lost.");
+        balances.clear();
+        imported.clear();
+    }
+
+    /*
+        Balances
+     */
+
+    @Override
+    public int getMoneyFromTag(@NotNull String tagName, @NotNull Object tagValue) {
+        AtomicInteger balance = balances.get(new AccountKey(tagName, tagValue));
+        return balance == null ? 0 : balance.get();
+    }
+
+    /**
+     * Balances are already in memory, the accounts cache is not used
+     */
+    @Override
+    public int getCacheBalance(@NotNull String tagName, @NotNull Object tagValue) {
+        return getMoneyFromTag(tagName, tagValue);
+    }
+
+    @Override
+    public void warmCache(@NotNull Map<String, Object> tags) {}
+
+    @Override
+    public @NotNull Map<String, Integer> getTagBalances(@NotNull String tagName) {
+        Map<String, Integer> tagBalances = new HashMap<>();
+        balances.forEach((key, balance) -> {
+            if (key.tagName().equals(tagName)) tagBalances.put(String.valueOf(key.tagValue()), balance.get());
+        });
+        return tagBalances;
+    }
+
+    @Override
+    public @NotNull UUID addMoneyToTags(@NotNull Map<String, Object> tags,
+                                        int amount, @Nullable String reason) throws StorageExecuteException {
+        if (amount==0) {
+            throw new StorageExecuteException(new Throwable(), "Amount can't be 0.");
+        }
+        MoneyOperation operation = prepare(tags, amount, reason);
+        for (Map.Entry<String, Object> tag : tags.entrySet()) {
+            getBalance(tag.getKey(), tag.getValue()).addAndGet(amount);
+        }
+        Main.LEADERBOARDS.apply(tags, amount);
+        return save(operation);
+    }
+
+    @Override
+    public @NotNull UUID setMoneyToTag(@NotNull String tagName, @NotNull Object tagValue,
+                                       int amount, @Nullable String reason) throws StorageExecuteException {
+        MoneyOperation operation = create(Map.of(tagName, tagValue), amount, reason, null);
+        Main.EVENTS.prepareSet(operation);
+        //  The difference is the replaced balance, so concurrent operations are never lost
+        int previous = getBalance(tagName, tagValue).getAndSet(amount);
+        Main.LEADERBOARDS.apply(operation.tags(), amount - previous);
+        return save(operation.with(operation.transactionId(), amount - previous));
+    }
+
+    @Override
+    public @NotNull List<UUID> applyBatch(@NotNull UUID correlationId, @NotNull List<Operation> batch)
+            throws StorageExecuteException {
+        List<MoneyOperation> operations = new ArrayList<>(batch.size());
+        for (Operation operation : batch) {
+            operations.add(create(operation.tags(), operation.amount(), operation.reason(), correlationId));
+        }
+        Main.EVENTS.prepareBatch(correlationId, operations);
+        List<UUID> transactionIds = new ArrayList<>(operations.size());
+        for (MoneyOperation operation : operations) {
+            for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+                getBalance(tag.getKey(), tag.getValue()).addAndGet(operation.amount());
+            }
+            Main.LEADERBOARDS.apply(operation.tags(), operation.amount());
+            transactionIds.add(save(operation));
+        }
+        return transactionIds;
+    }
+
+    /**
+     * Operations already imported, or still kept in the history, are not imported again
+     */
+    @Override
+    public @NotNull List<UUID> importOperations(@NotNull List<MoneyOperation> operations) {
+        Set<UUID> kept = new HashSet<>();
+        transactions.getOperations().forEach(operation -> kept.add(operation.transactionId()));
+        List<UUID> transactionIds = new ArrayList<>(operations.size());
+        for (MoneyOperation operation : operations) {
+            TransactionIds.advance(operation.transactionId());
+            if (kept.contains(operation.transactionId()) || !imported.add(operation.transactionId())) continue;
+            for (Map.Entry<String, Object> tag : operation.tags().entrySet()) {
+                getBalance(tag.getKey(), tag.getValue()).addAndGet(operation.amount());
+            }
+            Main.LEADERBOARDS.apply(operation.tags(), operation.amount());
+            transactions.add(operation);
+            Main.STATISTICS.apply(operation);
+            transactionIds.add(operation.transactionId());
+        }
+        return transactionIds;
+    }
+
+    /*
+        History (Only the last operations kept in memory)
+     */
+
+    @Override
+    public @NotNull HistoryPage getHistory(@NotNull HistoryQuery query, int size, @Nullable String cursor)
+            throws StorageExecuteException {
+        UUID before = StorageImplementation.parseCursor(cursor);
+        List<MoneyOperation> operations = transactions.getOperations();
+        List<Transaction> page = new ArrayList<>();
+        for (int i = operations.size() - 1; i >= 0 && page.size() <= size; i--) {
+            MoneyOperation operation = operations.get(i);
+            if (before != null && operation.transactionId().compareTo(before) >= 0) continue;
+            if (operation.matches(query)) page.add(operation.toTransaction());
+        }
+        if (page.size() <= size) return new HistoryPage(page, null);
+        page = page.subList(0, size);
+        return new HistoryPage(page, page.get(size - 1).transactionId().toString());
+    }
+
+    @Override
+    public void streamHistory(@NotNull HistoryQuery query, @NotNull Consumer<Transaction> consumer) {
+        for (MoneyOperation operation : transactions.getOperations()) {
+            if (operation.matches(query)) consumer.accept(operation.toTransaction());
+        }
+    }
+
+    private @NotNull AtomicInteger getBalance(@NotNull String tagName, @NotNull Object tagValue) {
+        return balances.computeIfAbsent(new AccountKey(tagName, tagValue), key -> new AtomicInteger());
+    }
+
+    private @NotNull MoneyOperation create(@NotNull Map<String, Object> tags, int amount, @Nullable String reason,
+                                           @Nullable UUID correlationId) {
+        reason = Objects.requireNonNullElse(reason, "No reason provided");
+        if (reason.isBlank()) reason = "No reason provided";
+        return new MoneyOperation(TransactionIds.next(), tags, amount, reason, System.currentTimeMillis(),
+                correlationId);
+    }
+
+    private @NotNull MoneyOperation prepare(@NotNull Map<String, Object> tags, int amount, @Nullable String reason)
+            throws StorageExecuteException {
+        MoneyOperation operation = create(tags, amount, reason, null);
+        Main.EVENTS.prepare(operation);
+        return operation;
+    }
+
+    private @NotNull UUID save(@NotNull MoneyOperation operation) {
+        transactions.add(operation);
+        Main.STATISTICS.apply(operation);
+        Main.EVENTS.saved(List.of(operation));
+        return operation.transactionId();
+    }
+}
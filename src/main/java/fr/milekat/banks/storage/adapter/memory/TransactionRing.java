@@ -0,0 +1,51 @@
+package fr.milekat.banks.storage.adapter.memory;
+
+import fr.milekat.banks.utils.MoneyOperation;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring buffer of the last money operations, the oldest operations are overwritten when it's full.
+ * Appends are lock-free, reads are best-effort while operations are appended concurrently.
+ */
+public class TransactionRing {
+    private final AtomicReferenceArray<MoneyOperation> slots;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity max number of kept operations
+     */
+    public TransactionRing(int capacity) {
+        this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    public void add(@NotNull MoneyOperation operation) {
+        long index = sequence.getAndIncrement();
+        slots.set((int) (index % slots.length()), operation);
+    }
+
+    /**
+     * Get the total number of added operations (Including overwritten ones)
+     */
+    public long getCount() {
+        return sequence.get();
+    }
+
+    /**
+     * Get kept operations, from the oldest to the most recent
+     */
+    public @NotNull List<MoneyOperation> getOperations() {
+        long end = sequence.get();
+        long start = Math.max(0L, end - slots.length());
+        List<MoneyOperation> operations = new ArrayList<>((int) (end - start));
+        for (long index = start; index < end; index++) {
+            MoneyOperation operation = slots.get((int) (index % slots.length()));
+            if (operation != null) operations.add(operation);
+        }
+        return operations;
+    }
+}
@@ -0,0 +1,8 @@
+package fr.milekat.banks.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Identify a bank account by its tag (name + value), used as key of the accounts cache
+ */
+public record AccountKey(@NotNull String tagName, @NotNull Object tagValue) {}
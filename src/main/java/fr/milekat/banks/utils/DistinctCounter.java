@@ -0,0 +1,89 @@
+package fr.milekat.banks.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed-size estimator of the number of distinct values (HyperLogLog, 1024 registers of 1 byte).
+ * The standard error is about 3%, small counts are estimated with linear counting. Counters are merged by keeping
+ * the max of each register, so the distinct values of several counters are estimated without keeping the values.
+ */
+public final class DistinctCounter {
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+    private final byte[] registers;
+
+    public DistinctCounter() {
+        this.registers = new byte[REGISTERS];
+    }
+
+    private DistinctCounter(byte @NotNull [] registers) {
+        this.registers = registers;
+    }
+
+    /**
+     * Restore a counter from its registers
+     * @param registers registers of {@link #toBytes()}, an empty counter is returned if the size doesn't match
+     */
+    public static @NotNull DistinctCounter fromBytes(byte @NotNull [] registers) {
+        return registers.length == REGISTERS ? new DistinctCounter(registers.clone()) : new DistinctCounter();
+    }
+
+    /**
+     * Count a value
+     */
+    public void add(@NotNull String value) {
+        long hash = hash(value);
+        int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        //  Position of the first set bit of the remaining bits (bounded by the marker bit)
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+        if (rank > registers[index]) registers[index] = rank;
+    }
+
+    /**
+     * Add the values of another counter
+     */
+    public void merge(@NotNull DistinctCounter other) {
+        for (int i = 0; i < REGISTERS; i++) {
+            if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+        }
+    }
+
+    /**
+     * Estimate the number of distinct values
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) zeros++;
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        return Math.round(estimate);
+    }
+
+    public byte @NotNull [] toBytes() {
+        return registers.clone();
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the UTF-8 bytes, mixed with the MurmurHash3 finalizer
+     */
+    private static long hash(@NotNull String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb34fe1a85ec3L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
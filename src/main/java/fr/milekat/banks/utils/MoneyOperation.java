@@ -0,0 +1,91 @@
+package fr.milekat.banks.utils;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * An accepted money operation, waiting to be saved in storage
+ * @param timestamp accepted time, in epoch milliseconds
+ * @param correlationId id shared by all operations of an API batch (null for single operations)
+ */
+public record MoneyOperation(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount,
+                             @NotNull String reason, long timestamp,
+                             @JsonInclude(JsonInclude.Include.NON_NULL) @Nullable UUID correlationId) {
+    private static final DateTimeFormatter LEGACY_DATE =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss[.SSS][XXX][XX][X]");
+
+    /**
+     * A single operation (without correlation id)
+     */
+    public MoneyOperation(@NotNull UUID transactionId, @NotNull Map<String, Object> tags, int amount,
+                          @NotNull String reason, long timestamp) {
+        this(transactionId, tags, amount, reason, timestamp, null);
+    }
+
+    /**
+     * Read an operation from JSON, timestamps of operations logged by previous versions are date strings
+     * (and they don't have a correlation id)
+     */
+    @JsonCreator
+    static @NotNull MoneyOperation fromJson(@JsonProperty("transactionId") @NotNull UUID transactionId,
+                                            @JsonProperty("tags") @NotNull Map<String, Object> tags,
+                                            @JsonProperty("amount") int amount,
+                                            @JsonProperty("reason") @NotNull String reason,
+                                            @JsonProperty("timestamp") @Nullable JsonNode timestamp,
+                                            @JsonProperty("correlationId") @Nullable UUID correlationId) {
+        long time = timestamp != null && timestamp.isNumber() ? timestamp.asLong() :
+                parseTimestamp(transactionId, timestamp == null ? null : timestamp.asText());
+        return new MoneyOperation(transactionId, tags, amount, reason, time, correlationId);
+    }
+
+    /**
+     * Copy of this operation with another transaction id and amount
+     */
+    public @NotNull MoneyOperation with(@NotNull UUID transactionId, int amount) {
+        return new MoneyOperation(transactionId, tags, amount, reason, timestamp, correlationId);
+    }
+
+    /**
+     * Parse a date string timestamp (Written by previous versions),
+     * the time of the transaction id is used if the date can't be parsed
+     */
+    public static long parseTimestamp(@NotNull UUID transactionId, @Nullable String timestamp) {
+        if (timestamp != null) {
+            try {
+                return LEGACY_DATE.parse(timestamp, Instant::from).toEpochMilli();
+            } catch (DateTimeException ignored) {}
+        }
+        return Objects.requireNonNullElse(TransactionIds.getTimestamp(transactionId), 0L);
+    }
+
+    /**
+     * Check if this operation matches the history filters
+     */
+    public boolean matches(@NotNull HistoryQuery query) {
+        if (query.tagName() != null && (!tags.containsKey(query.tagName()) ||
+                !String.valueOf(tags.get(query.tagName())).equals(String.valueOf(query.tagValue())))) {
+            return false;
+        }
+        return query.matchesTime(Instant.ofEpochMilli(timestamp)) && query.matchesReason(reason);
+    }
+
+    /**
+     * Get this operation as a history transaction
+     */
+    public @NotNull Transaction toTransaction() {
+        return new Transaction(transactionId, tags, amount, reason, Instant.ofEpochMilli(timestamp), correlationId);
+    }
+}
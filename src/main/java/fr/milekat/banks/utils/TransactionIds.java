@@ -0,0 +1,58 @@
+package fr.milekat.banks.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-ordered transaction ids generator (UUID version 7).
+ * Ids are made of a 48 bits unix timestamp in milliseconds, a 12 bits counter (monotonic within the same
+ * millisecond) and 62 random bits from {@link ThreadLocalRandom}, so no shared {@link java.security.SecureRandom}
+ * is involved.
+ */
+public final class TransactionIds {
+    private static final AtomicLong LAST = new AtomicLong();
+
+    private TransactionIds() {}
+
+    /**
+     * Generate a new transaction id, greater than all previously generated ids
+     * @return new UUID v7
+     */
+    public static @NotNull UUID next() {
+        long now = System.currentTimeMillis();
+        long last;
+        long next;
+        do {
+            last = LAST.get();
+            //  State is (timestamp << 12 | counter), the counter overflow moves to the next millisecond
+            next = (now > last >>> 12) ? now << 12 : last + 1;
+        } while (!LAST.compareAndSet(last, next));
+        long mostSigBits = ((next >>> 12) << 16) | 0x7000L | (next & 0xFFFL);
+        long leastSigBits = (ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Get the time a transaction id was generated
+     * @return unix timestamp in milliseconds, or null if this id is not time-ordered (not a UUID v7)
+     */
+    public static @Nullable Long getTimestamp(@NotNull UUID transactionId) {
+        if ((transactionId.getMostSignificantBits() & 0xF000L) != 0x7000L) return null;
+        return transactionId.getMostSignificantBits() >>> 16;
+    }
+
+    /**
+     * Make sure next generated ids are greater than this id (Clock changes between restarts)
+     * @param transactionId id generated by a previous run
+     */
+    public static void advance(@NotNull UUID transactionId) {
+        if ((transactionId.getMostSignificantBits() & 0xF000L) != 0x7000L) return;
+        long mostSigBits = transactionId.getMostSignificantBits();
+        long state = ((mostSigBits >>> 16) << 12) | (mostSigBits & 0xFFFL);
+        LAST.accumulateAndGet(state, Math::max);
+    }
+}
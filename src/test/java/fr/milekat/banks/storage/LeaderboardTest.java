@@ -0,0 +1,121 @@
+package fr.milekat.banks.storage;
+
+import fr.milekat.banks.api.leaderboard.RankedBalance;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Ranks, pages and reconciliation of a leaderboard, checked against a sorted list of accounts
+ */
+class LeaderboardTest {
+    private static final Comparator<Map.Entry<String, Integer>> ORDER =
+            Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey());
+
+    @Test
+    void operationsAreIgnoredUntilSeeded() {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.add("alice", 10);
+        assertFalse(leaderboard.isSeeded());
+        assertEquals(0, leaderboard.size());
+        leaderboard.update(Map.of("bob", 5));
+        assertTrue(leaderboard.isSeeded());
+        assertNull(leaderboard.getRank("alice"));
+        assertEquals(new RankedBalance(1, "bob", 5), leaderboard.getRank("bob"));
+    }
+
+    @Test
+    void accountsAreRankedByBalanceThenTagValue() {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.update(Map.of("carol", 20, "alice", 50, "bob", 20, "dave", -5));
+        assertEquals(List.of(
+                new RankedBalance(1, "alice", 50),
+                new RankedBalance(2, "bob", 20),
+                new RankedBalance(3, "carol", 20),
+                new RankedBalance(4, "dave", -5)), leaderboard.getTop(10, 0));
+        assertEquals(new RankedBalance(3, "carol", 20), leaderboard.getRank("carol"));
+        assertEquals(new RankedBalance(4, "dave", -5), leaderboard.getRank("dave"));
+    }
+
+    @Test
+    void updatesChangeTheOrder() {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.update(Map.of("alice", 50, "bob", 20, "carol", 10));
+        leaderboard.add("carol", 60);
+        leaderboard.add("alice", -45);
+        leaderboard.add("erin", 30);
+        assertEquals(List.of(
+                new RankedBalance(1, "carol", 70),
+                new RankedBalance(2, "erin", 30),
+                new RankedBalance(3, "bob", 20),
+                new RankedBalance(4, "alice", 5)), leaderboard.getTop(10, 0));
+        assertEquals(4, leaderboard.size());
+        //  Same balance: ordered by tag value
+        leaderboard.add("bob", 10);
+        assertEquals(new RankedBalance(2, "bob", 30), leaderboard.getRank("bob"));
+        assertEquals(new RankedBalance(3, "erin", 30), leaderboard.getRank("erin"));
+    }
+
+    @Test
+    void pagesMatchASortedList() {
+        Random random = new Random(42L);
+        Leaderboard leaderboard = new Leaderboard();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 500; i++) expected.put("player-" + i, random.nextInt(1000));
+        leaderboard.update(expected);
+        for (int i = 0; i < 5000; i++) {
+            String tagValue = "player-" + random.nextInt(600);
+            int amount = random.nextInt(201) - 100;
+            leaderboard.add(tagValue, amount);
+            expected.merge(tagValue, amount, Integer::sum);
+        }
+        List<Map.Entry<String, Integer>> sorted = expected.entrySet().stream().sorted(ORDER).toList();
+        assertEquals(sorted.size(), leaderboard.size());
+        for (int offset = 0; offset < sorted.size() + 20; offset += 37) {
+            List<RankedBalance> page = leaderboard.getTop(25, offset);
+            assertEquals(Math.max(0, Math.min(25, sorted.size() - offset)), page.size());
+            for (int i = 0; i < page.size(); i++) {
+                Map.Entry<String, Integer> account = sorted.get(offset + i);
+                assertEquals(new RankedBalance(offset + i + 1, account.getKey(), account.getValue()), page.get(i));
+            }
+        }
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(i + 1, Objects.requireNonNull(leaderboard.getRank(sorted.get(i).getKey())).rank());
+        }
+    }
+
+    @Test
+    void operationsDuringTheReadAreNotLost() {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.update(Map.of("alice", 10, "bob", 10));
+        leaderboard.add("alice", 5);
+        //  Stored balances read before "bob" and "carol" operations were saved
+        leaderboard.beginUpdate();
+        Map<String, Integer> stored = Map.of("alice", 15, "bob", 12);
+        leaderboard.add("bob", 3);
+        leaderboard.add("carol", 7);
+        leaderboard.update(stored);
+        assertEquals(List.of(
+                new RankedBalance(1, "alice", 15),
+                new RankedBalance(2, "bob", 13),
+                new RankedBalance(3, "carol", 7)), leaderboard.getTop(10, 0));
+        //  Unchanged accounts take the stored balance
+        leaderboard.beginUpdate();
+        leaderboard.update(Map.of("alice", 16, "bob", 13, "carol", 7));
+        assertEquals(new RankedBalance(1, "alice", 16), leaderboard.getRank("alice"));
+    }
+
+    @Test
+    void operationsDuringTheSeedAreReplayed() {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.beginUpdate();
+        leaderboard.add("alice", 5);
+        leaderboard.add("bob", 2);
+        leaderboard.update(Map.of("alice", 10));
+        assertEquals(List.of(
+                new RankedBalance(1, "alice", 15),
+                new RankedBalance(2, "bob", 2)), leaderboard.getTop(10, 0));
+    }
+}
@@ -0,0 +1,161 @@
+package fr.milekat.banks.storage;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import fr.milekat.utils.MileLogger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Appends, recovery after a restart, torn or corrupted records and segments deletion of the write-ahead log
+ */
+class WriteAheadLogTest {
+    private static final long SEGMENT_SIZE = 1048576L;
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void logger() throws Exception {
+        Field logger = Main.class.getDeclaredField("logger");
+        logger.setAccessible(true);
+        logger.set(null, new MileLogger(Logger.getLogger("MileBanks")));
+    }
+
+    @Test
+    void operationsAreRecoveredUntilAcknowledged() throws Exception {
+        WriteAheadLog wal = open(SEGMENT_SIZE);
+        assertEquals(List.of(), wal.recover());
+        MoneyOperation first = operation(10);
+        MoneyOperation second = operation(-5);
+        MoneyOperation third = operation(7);
+        wal.append(first);
+        wal.append(second);
+        wal.append(third);
+        wal.acknowledge(List.of(second.transactionId()), true);
+        assertEquals(2, wal.size());
+        wal.close();
+
+        WriteAheadLog recovered = open(SEGMENT_SIZE);
+        assertEquals(List.of(first, third), recovered.recover());
+        assertEquals(2, recovered.size());
+        recovered.acknowledge(List.of(first.transactionId(), third.transactionId()), true);
+        recovered.close();
+        assertEquals(List.of(), open(SEGMENT_SIZE).recover());
+    }
+
+    @Test
+    void tornRecordIsIgnored() throws Exception {
+        WriteAheadLog wal = open(SEGMENT_SIZE);
+        wal.recover();
+        List<MoneyOperation> batch = List.of(operation(-30), operation(30));
+        MoneyOperation torn = operation(1);
+        wal.append(batch);
+        wal.append(torn);
+        wal.close();
+        //  Crash while writing the last record
+        File segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        WriteAheadLog recovered = open(SEGMENT_SIZE);
+        assertEquals(batch, recovered.recover());
+        //  New records are appended in a new segment, after the torn one
+        MoneyOperation next = operation(2);
+        recovered.append(next);
+        recovered.close();
+        List<MoneyOperation> expected = new ArrayList<>(batch);
+        expected.add(next);
+        assertEquals(expected, open(SEGMENT_SIZE).recover());
+    }
+
+    @Test
+    void corruptedBatchIsNotRecovered() throws Exception {
+        WriteAheadLog wal = open(SEGMENT_SIZE);
+        wal.recover();
+        MoneyOperation single = operation(5);
+        wal.append(single);
+        wal.append(List.of(operation(-30), operation(30)));
+        wal.close();
+        //  A byte of the batch payload changed: the checksum doesn't match, none of its operations are recovered
+        File segment = segments().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.length() - 10);
+            int value = file.read();
+            file.seek(file.length() - 10);
+            file.write(value ^ 0xFF);
+        }
+        assertEquals(List.of(single), open(SEGMENT_SIZE).recover());
+    }
+
+    @Test
+    void acknowledgedSegmentsAreDeleted() throws Exception {
+        //  Small segments, rolled every few records
+        WriteAheadLog wal = open(512L);
+        wal.recover();
+        List<MoneyOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            MoneyOperation operation = operation(i + 1);
+            wal.append(operation);
+            operations.add(operation);
+        }
+        int count = segments().size();
+        assertTrue(count > 2);
+        wal.acknowledge(operations.subList(0, 10).stream().map(MoneyOperation::transactionId).toList(), true);
+        assertTrue(segments().size() < count);
+        wal.acknowledge(operations.subList(10, 20).stream().map(MoneyOperation::transactionId).toList(), true);
+        //  Only the current segment is kept
+        assertEquals(1, segments().size());
+        assertEquals(0, wal.size());
+        wal.close();
+        assertEquals(List.of(), segments());
+    }
+
+    @Test
+    void failedAppendIsNotRecovered() throws Exception {
+        WriteAheadLog wal = open(SEGMENT_SIZE);
+        wal.recover();
+        //  The channel is closed by the interrupted write, the next append opens a new segment
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IOException.class, () -> wal.append(operation(5)));
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(0, wal.size());
+        MoneyOperation next = operation(6);
+        wal.append(next);
+        wal.close();
+        assertEquals(List.of(next), open(SEGMENT_SIZE).recover());
+    }
+
+    private WriteAheadLog open(long segmentSize) throws IOException {
+        return new WriteAheadLog(folder.toFile(), segmentSize, true);
+    }
+
+    private List<File> segments() {
+        File[] files = folder.toFile().listFiles((dir, name) -> name.startsWith("segment-"));
+        List<File> segments = new ArrayList<>(Arrays.asList(Objects.requireNonNull(files)));
+        segments.sort(Comparator.comparing(File::getName));
+        return segments;
+    }
+
+    private static MoneyOperation operation(int amount) {
+        return new MoneyOperation(TransactionIds.next(), Map.of("player-name", "alice"), amount, "Test",
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,140 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.bulk.CreateOperation;
+import co.elastic.clients.json.JsonpMapper;
+import co.elastic.clients.json.NdJsonpSerializable;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import jakarta.json.stream.JsonGenerator;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Compare allocations and time of bulk request bodies written by {@link BulkWriter}, with bodies built like before
+ * (a HashMap document and builders per operation, serialized by the Elasticsearch client mapper).
+ * Run with: gradle benchmark (arguments: [operations per bulk] [measured rounds])
+ */
+public class BulkWriterBenchmark {
+    private static final String INDEX = "banks-transactions";
+    private static final int WARMUP_ROUNDS = 200;
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocated memory is not supported by this JVM.");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        List<MoneyOperation> operations = operations(size);
+        JsonpMapper mapper = new JacksonJsonpMapper();
+        ByteArrayOutputStream legacyBody = new ByteArrayOutputStream(65536);
+        try (RestClient client = RestClient.builder(new HttpHost("localhost", 9200)).build()) {
+            BulkWriter writer = new BulkWriter(client, INDEX);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                writer.writeBody(operations);
+                writeLegacy(operations, mapper, legacyBody);
+            }
+            long bytes = 0L;
+            long allocated = 0L;
+            long nanos = 0L;
+            long legacyBytes = 0L;
+            long legacyAllocated = 0L;
+            long legacyNanos = 0L;
+            for (int i = 0; i < rounds; i++) {
+                long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                bytes += writer.writeBody(operations);
+                nanos += System.nanoTime() - start;
+                allocated += threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+                allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+                start = System.nanoTime();
+                legacyBytes += writeLegacy(operations, mapper, legacyBody);
+                legacyNanos += System.nanoTime() - start;
+                legacyAllocated += threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }
+            long count = (long) size * rounds;
+            System.out.printf(Locale.ROOT, "%d rounds of %d operations%n", rounds, size);
+            print("BulkWriter", allocated, nanos, bytes, count);
+            print("Builders + client mapper", legacyAllocated, legacyNanos, legacyBytes, count);
+            System.out.printf(Locale.ROOT, "Allocations reduced by %.1fx%n", (double) legacyAllocated / allocated);
+        }
+    }
+
+    private static void print(@NotNull String name, long allocated, long nanos, long bytes, long count) {
+        System.out.printf(Locale.ROOT, "%-26s %8.1f bytes allocated/op %8.1f ns/op %6.1f body bytes/op%n", name,
+                (double) allocated / count, (double) nanos / count, (double) bytes / count);
+    }
+
+    /**
+     * Money operations with player tags, like operations of the builtin tags
+     */
+    private static @NotNull List<MoneyOperation> operations(int size) {
+        List<MoneyOperation> operations = new ArrayList<>(size);
+        Random random = new Random(42L);
+        for (int i = 0; i < size; i++) {
+            Map<String, Object> tags = new HashMap<>();
+            tags.put("player-uuid", new UUID(random.nextLong(), random.nextLong()).toString());
+            tags.put("player-name", "Player" + random.nextInt(10000));
+            operations.add(new MoneyOperation(TransactionIds.next(), tags, random.nextInt(2000) - 1000,
+                    "Shop purchase #" + i, System.currentTimeMillis()));
+        }
+        return operations;
+    }
+
+    /**
+     * Write the body like the previous version: a document and a create operation built for each money operation,
+     * then serialized as NDJSON by the Elasticsearch client mapper
+     */
+    private static int writeLegacy(@NotNull List<MoneyOperation> operations, @NotNull JsonpMapper mapper,
+                                   @NotNull ByteArrayOutputStream body) {
+        body.reset();
+        List<BulkOperation> bulkOperations = new ArrayList<>(operations.size());
+        for (MoneyOperation operation : operations) {
+            Map<String, Object> log = new HashMap<>();
+            log.put("transactionId", operation.transactionId());
+            log.put("tags", operation.tags());
+            log.put("operation", operation.amount());
+            log.put("reason", operation.reason());
+            log.put("@timestamp", Instant.ofEpochMilli(operation.timestamp()).toString());
+            bulkOperations.add(new BulkOperation.Builder().create(
+                    new CreateOperation.Builder<>()
+                            .index(INDEX)
+                            .id(operation.transactionId().toString())
+                            .document(log)
+                            .build()
+            ).build());
+        }
+        writeNdJson(new BulkRequest.Builder().operations(bulkOperations).build(), mapper, body);
+        return body.size();
+    }
+
+    private static void writeNdJson(@NotNull NdJsonpSerializable value, @NotNull JsonpMapper mapper,
+                                    @NotNull ByteArrayOutputStream body) {
+        Iterator<?> values = value._serializables();
+        while (values.hasNext()) {
+            Object item = values.next();
+            if (item instanceof NdJsonpSerializable nested && item != value) {
+                writeNdJson(nested, mapper, body);
+            } else {
+                JsonGenerator generator = mapper.jsonProvider().createGenerator(body);
+                mapper.serialize(item, generator);
+                generator.close();
+                body.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import fr.milekat.utils.storage.exceptions.StorageExecuteException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Backpressure policies of the operations queue, and the order of spilled operations
+ */
+class OperationsQueueTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    void fullQueueRejectsOperations() throws Exception {
+        OperationsQueue queue = new OperationsQueue(3, 100, Long.MAX_VALUE, OperationsQueue.Backpressure.REJECT,
+                0L, null);
+        queue.offer(operation(1));
+        queue.offer(List.of(operation(2), operation(3)));
+        assertThrows(StorageExecuteException.class, () -> queue.offer(operation(4)));
+        assertEquals(1, queue.drain(1, Long.MAX_VALUE).size());
+        //  All or none of the operations are queued
+        assertThrows(StorageExecuteException.class, () -> queue.offer(List.of(operation(5), operation(6))));
+        assertEquals(2, queue.size());
+        queue.offer(operation(7));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    void spilledOperationsAreDrainedInOrder() throws Exception {
+        SpillFile spill = new SpillFile(folder.resolve("spill.ndjson").toFile());
+        OperationsQueue queue = new OperationsQueue(4, 100, Long.MAX_VALUE, OperationsQueue.Backpressure.SPILL,
+                0L, spill);
+        List<MoneyOperation> offered = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            MoneyOperation operation = operation(i + 1);
+            queue.offer(operation);
+            offered.add(operation);
+        }
+        assertEquals(6, spill.size());
+        assertEquals(10, queue.size());
+        List<MoneyOperation> drained = new ArrayList<>();
+        while (!queue.isEmpty()) drained.addAll(queue.drain(100, Long.MAX_VALUE));
+        assertEquals(offered, drained);
+        assertEquals(0, queue.size());
+    }
+
+    private static MoneyOperation operation(int amount) {
+        return new MoneyOperation(TransactionIds.next(), Map.of("player-name", "alice"), amount, "Test",
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,77 @@
+package fr.milekat.banks.storage.adapter.elasticsearch;
+
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Appends and reads of the spill file, and its state after a restart
+ */
+class SpillFileTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    void readOperationsAreNotReadAgainAfterRestart() throws Exception {
+        File file = folder.resolve("spill.ndjson").toFile();
+        SpillFile spill = new SpillFile(file);
+        MoneyOperation first = operation(1);
+        MoneyOperation second = operation(2);
+        MoneyOperation third = operation(3);
+        spill.append(List.of(first, second));
+        spill.append(third);
+        assertEquals(3, spill.size());
+        assertEquals(List.of(first), spill.read(1));
+
+        SpillFile reopened = new SpillFile(file);
+        assertEquals(2, reopened.size());
+        assertEquals(List.of(second, third), reopened.read(10));
+        //  Emptied once all operations are read
+        assertEquals(0, reopened.size());
+        assertEquals(0L, file.length());
+        assertFalse(new File(file.getPath() + ".offset").exists());
+    }
+
+    @Test
+    void tornLineIsRemoved() throws Exception {
+        File file = folder.resolve("spill.ndjson").toFile();
+        SpillFile spill = new SpillFile(file);
+        MoneyOperation first = operation(1);
+        spill.append(first);
+        //  Crash while appending the next line
+        Files.writeString(file.toPath(), "{\"transactionId\":\"", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        SpillFile reopened = new SpillFile(file);
+        assertEquals(1, reopened.size());
+        MoneyOperation second = operation(2);
+        reopened.append(second);
+        assertEquals(List.of(first, second), reopened.read(10));
+    }
+
+    @Test
+    void clearRemovesAllOperations() throws Exception {
+        File file = folder.resolve("spill.ndjson").toFile();
+        SpillFile spill = new SpillFile(file);
+        spill.append(List.of(operation(1), operation(2), operation(3)));
+        spill.read(1);
+        spill.clear();
+        assertEquals(0, spill.size());
+        assertEquals(0, new SpillFile(file).size());
+    }
+
+    private static MoneyOperation operation(int amount) {
+        return new MoneyOperation(TransactionIds.next(), Map.of("player-name", "alice"), amount, "Test",
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,187 @@
+package fr.milekat.banks.storage.adapter.jdbc;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.api.batch.Operation;
+import fr.milekat.banks.api.history.HistoryPage;
+import fr.milekat.banks.api.history.HistoryQuery;
+import fr.milekat.banks.api.history.Transaction;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.utils.Configs;
+import fr.milekat.utils.MileLogger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Batched inserts and balances upserts of the JDBC storage, on an in-memory H2 database
+ */
+class JdbcStorageTest {
+    @TempDir
+    static Path folder;
+    private static JdbcStorage storage;
+
+    @BeforeAll
+    static void connect() throws Exception {
+        Field logger = Main.class.getDeclaredField("logger");
+        logger.setAccessible(true);
+        logger.set(null, new MileLogger(Logger.getLogger("MileBanks")));
+        File config = folder.resolve("config.yml").toFile();
+        Files.writeString(config.toPath(), """
+                storage:
+                  jdbc:
+                    url: "jdbc:h2:mem:banks;DB_CLOSE_DELAY=-1"
+                    table_prefix: "test_"
+                    batch_size: 50
+                """);
+        storage = new JdbcStorage(new Configs(config));
+        assertTrue(storage.checkStorages());
+    }
+
+    @AfterAll
+    static void disconnect() {
+        if (storage != null) storage.disconnect();
+    }
+
+    @Test
+    void concurrentOperationsAreBatched() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<UUID>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                results.add(executor.submit(() -> storage.addMoneyToTags(
+                        Map.of("player-name", "alice", "faction", "red"), 5, "Batched")));
+            }
+            for (Future<UUID> result : results) assertNotNull(result.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2000, storage.getMoneyFromTag("player-name", "alice"));
+        assertEquals(2000, storage.getMoneyFromTag("faction", "red"));
+        List<Transaction> history = new ArrayList<>();
+        storage.streamHistory(new HistoryQuery("player-name", "alice", null, null, null), history::add);
+        assertEquals(400, history.size());
+    }
+
+    @Test
+    void setComputesTheDifferenceWithTheStoredBalance() throws Exception {
+        storage.addMoneyToTags(Map.of("player-name", "bob"), 150, "Deposit");
+        UUID transactionId = storage.setMoneyToTag("player-name", "bob", 40, "Set");
+        assertEquals(40, storage.getMoneyFromTag("player-name", "bob"));
+        assertEquals(-110, getTransaction("bob", transactionId).amount());
+
+        //  New account, inserted by the set
+        transactionId = storage.setMoneyToTag("player-name", "carol", 25, "Set");
+        assertEquals(25, storage.getMoneyFromTag("player-name", "carol"));
+        assertEquals(25, getTransaction("carol", transactionId).amount());
+    }
+
+    @Test
+    void setIncludesOperationsOfTheSameDatabaseTransaction() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(() -> storage.addMoneyToTags(Map.of("player-name", "dave"), 1, "Add")));
+            }
+            Future<UUID> set = executor.submit(() -> storage.setMoneyToTag("player-name", "dave", 1000, "Set"));
+            for (Future<?> result : results) result.get();
+            set.get();
+        } finally {
+            executor.shutdown();
+        }
+        //  Adds saved after the set are applied over its target
+        int balance = storage.getMoneyFromTag("player-name", "dave");
+        List<Transaction> history = new ArrayList<>();
+        storage.streamHistory(new HistoryQuery("player-name", "dave", null, null, null), history::add);
+        assertEquals(101, history.size());
+        assertEquals(balance, history.stream().mapToInt(Transaction::amount).sum());
+        assertTrue(balance >= 1000 && balance <= 1100);
+    }
+
+    @Test
+    void batchIsSavedTogether() throws Exception {
+        UUID correlationId = UUID.randomUUID();
+        List<UUID> transactionIds = storage.applyBatch(correlationId, List.of(
+                new Operation(Map.of("player-name", "erin"), -30, "Transfer"),
+                new Operation(Map.of("player-name", "frank"), 30, "Transfer")));
+        assertEquals(2, transactionIds.size());
+        assertEquals(-30, storage.getMoneyFromTag("player-name", "erin"));
+        assertEquals(30, storage.getMoneyFromTag("player-name", "frank"));
+        assertEquals(correlationId, getTransaction("erin", transactionIds.get(0)).correlationId());
+        assertEquals(correlationId, getTransaction("frank", transactionIds.get(1)).correlationId());
+        //  Operations out of a batch have no correlation id
+        UUID transactionId = storage.addMoneyToTags(Map.of("player-name", "erin"), 10, "Deposit");
+        assertNull(getTransaction("erin", transactionId).correlationId());
+    }
+
+    @Test
+    void balancesAreInsertedWithoutUpsert() throws Exception {
+        //  Databases without a known upsert: update, then insert missing accounts
+        Field upsert = JdbcStorage.class.getDeclaredField("upsertBalance");
+        upsert.setAccessible(true);
+        Object statement = upsert.get(storage);
+        upsert.set(storage, null);
+        try {
+            storage.addMoneyToTags(Map.of("player-name", "gina", "faction", "blue"), 20, "Deposit");
+            storage.addMoneyToTags(Map.of("player-name", "gina", "faction", "green"), 5, "Deposit");
+            assertEquals(25, storage.getMoneyFromTag("player-name", "gina"));
+            assertEquals(20, storage.getMoneyFromTag("faction", "blue"));
+            assertEquals(5, storage.getMoneyFromTag("faction", "green"));
+        } finally {
+            upsert.set(storage, statement);
+        }
+    }
+
+    @Test
+    void importedOperationsAreSavedOnce() throws Exception {
+        List<MoneyOperation> operations = List.of(
+                new MoneyOperation(UUID.randomUUID(), Map.of("player-name", "hank"), 40, "Import",
+                        System.currentTimeMillis(), null),
+                new MoneyOperation(UUID.randomUUID(), Map.of("player-name", "hank"), -15, "Import",
+                        System.currentTimeMillis(), null));
+        assertEquals(2, storage.importOperations(operations).size());
+        assertEquals(25, storage.getMoneyFromTag("player-name", "hank"));
+        //  Same file imported again: known transaction ids are skipped
+        assertEquals(List.of(), storage.importOperations(operations));
+        assertEquals(25, storage.getMoneyFromTag("player-name", "hank"));
+    }
+
+    @Test
+    void historyUsesTheAcceptedTime() throws Exception {
+        //  Imported operation with a random (not time-ordered) transaction id
+        Instant accepted = Instant.parse("2024-03-01T10:15:30.250Z");
+        UUID transactionId = UUID.randomUUID();
+        storage.importOperations(List.of(new MoneyOperation(transactionId, Map.of("player-name", "ivy"), 12,
+                "Import", accepted.toEpochMilli(), null)));
+        storage.addMoneyToTags(Map.of("player-name", "ivy"), 3, "Deposit");
+        assertEquals(accepted, getTransaction("ivy", transactionId).timestamp());
+        HistoryPage page = storage.getHistory(new HistoryQuery("player-name", "ivy",
+                accepted, accepted.plusSeconds(60), null), 10, null);
+        assertEquals(List.of(transactionId), page.transactions().stream().map(Transaction::transactionId).toList());
+        page = storage.getHistory(new HistoryQuery("player-name", "ivy", accepted.plusSeconds(60), null, null),
+                10, null);
+        assertEquals(1, page.transactions().size());
+        assertEquals(3, page.transactions().get(0).amount());
+    }
+
+    private static Transaction getTransaction(String playerName, UUID transactionId) throws Exception {
+        List<Transaction> history = new ArrayList<>();
+        storage.streamHistory(new HistoryQuery("player-name", playerName, null, null, null), history::add);
+        return history.stream().filter(transaction -> transaction.transactionId().equals(transactionId))
+                .findFirst().orElseThrow();
+    }
+}
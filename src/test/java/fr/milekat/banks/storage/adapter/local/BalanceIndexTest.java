@@ -0,0 +1,104 @@
+package fr.milekat.banks.storage.adapter.local;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.AccountKey;
+import fr.milekat.utils.MileLogger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checkpoints, compaction and torn records of the balance index
+ */
+class BalanceIndexTest {
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void logger() throws Exception {
+        Field logger = Main.class.getDeclaredField("logger");
+        logger.setAccessible(true);
+        logger.set(null, new MileLogger(Logger.getLogger("MileBanks")));
+    }
+
+    @Test
+    void lastCheckpointOfEachAccountIsLoaded() throws Exception {
+        File file = folder.resolve("balances.idx").toFile();
+        BalanceIndex index = new BalanceIndex(file);
+        assertNull(index.load(new HashMap<>()));
+        index.checkpoint(new Ledger.Position(1, 100), Map.of(
+                new AccountKey("player-name", "alice"), 10, new AccountKey("level", 3), 5));
+        index.checkpoint(new Ledger.Position(2, 40), Map.of(new AccountKey("player-name", "alice"), 25));
+        index.close();
+
+        Map<AccountKey, Integer> balances = new HashMap<>();
+        BalanceIndex reopened = new BalanceIndex(file);
+        assertEquals(new Ledger.Position(2, 40), reopened.load(balances));
+        assertEquals(Map.of(new AccountKey("player-name", "alice"), 25, new AccountKey("level", 3), 5), balances);
+        reopened.close();
+    }
+
+    @Test
+    void tornCheckpointIsIgnored() throws Exception {
+        File file = folder.resolve("balances.idx").toFile();
+        BalanceIndex index = new BalanceIndex(file);
+        index.load(new HashMap<>());
+        index.checkpoint(new Ledger.Position(1, 100), Map.of(new AccountKey("player-name", "alice"), 10));
+        index.checkpoint(new Ledger.Position(1, 200), Map.of(new AccountKey("player-name", "alice"), 30));
+        index.close();
+        //  Crash while writing the last checkpoint: its operations are replayed from the previous position
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 4);
+        }
+
+        Map<AccountKey, Integer> balances = new HashMap<>();
+        BalanceIndex reopened = new BalanceIndex(file);
+        assertEquals(new Ledger.Position(1, 100), reopened.load(balances));
+        assertEquals(Map.of(new AccountKey("player-name", "alice"), 10), balances);
+        //  New checkpoints are appended after the last valid one
+        reopened.checkpoint(new Ledger.Position(1, 300), Map.of(new AccountKey("player-name", "bob"), 7));
+        reopened.close();
+        balances.clear();
+        BalanceIndex loaded = new BalanceIndex(file);
+        assertEquals(new Ledger.Position(1, 300), loaded.load(balances));
+        assertEquals(Map.of(new AccountKey("player-name", "alice"), 10, new AccountKey("player-name", "bob"), 7),
+                balances);
+        loaded.close();
+    }
+
+    @Test
+    void compactionKeepsAllBalances() throws Exception {
+        File file = folder.resolve("balances.idx").toFile();
+        BalanceIndex index = new BalanceIndex(file);
+        index.load(new HashMap<>());
+        Map<AccountKey, Integer> all = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            AccountKey key = new AccountKey("player-name", "player-" + (i % 10));
+            all.put(key, i);
+            index.checkpoint(new Ledger.Position(1, i), Map.of(key, i));
+        }
+        long size = file.length();
+        index.compact(new Ledger.Position(1, 99), all);
+        assertTrue(file.length() < size);
+        index.checkpoint(new Ledger.Position(2, 0), Map.of(new AccountKey("player-name", "player-0"), -1));
+        index.close();
+        all.put(new AccountKey("player-name", "player-0"), -1);
+
+        Map<AccountKey, Integer> balances = new HashMap<>();
+        BalanceIndex reopened = new BalanceIndex(file);
+        assertEquals(new Ledger.Position(2, 0), reopened.load(balances));
+        assertEquals(all, balances);
+        reopened.close();
+    }
+}
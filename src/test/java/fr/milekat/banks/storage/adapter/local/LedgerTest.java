@@ -0,0 +1,109 @@
+package fr.milekat.banks.storage.adapter.local;
+
+import fr.milekat.banks.Main;
+import fr.milekat.banks.utils.MoneyOperation;
+import fr.milekat.banks.utils.TransactionIds;
+import fr.milekat.utils.MileLogger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes, replays and torn records of the local ledger
+ */
+class LedgerTest {
+    @TempDir
+    Path folder;
+
+    @BeforeAll
+    static void logger() throws Exception {
+        Field logger = Main.class.getDeclaredField("logger");
+        logger.setAccessible(true);
+        logger.set(null, new MileLogger(Logger.getLogger("MileBanks")));
+    }
+
+    @Test
+    void operationsAreReplayedAfterRestart() throws Exception {
+        //  Small segments, rolled every few records
+        Ledger ledger = new Ledger(folder.toFile(), 1024, true);
+        ledger.open();
+        List<MoneyOperation> written = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            MoneyOperation operation = operation(i + 1, null);
+            ledger.awaitSync(ledger.write(operation));
+            written.add(operation);
+        }
+        UUID correlationId = UUID.randomUUID();
+        List<MoneyOperation> batch = List.of(operation(-20, correlationId), operation(20, correlationId));
+        ledger.awaitSync(ledger.write(batch));
+        written.addAll(batch);
+        assertEquals(written, replay(ledger, null));
+        ledger.close();
+
+        Ledger reopened = new Ledger(folder.toFile(), 1024, true);
+        reopened.open();
+        assertEquals(written, replay(reopened, null));
+        reopened.close();
+    }
+
+    @Test
+    void replayStartsFromAPosition() throws Exception {
+        Ledger ledger = new Ledger(folder.toFile(), 1024, true);
+        ledger.open();
+        for (int i = 0; i < 20; i++) ledger.write(operation(i + 1, null));
+        Ledger.Position position = ledger.getPosition();
+        List<MoneyOperation> after = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            MoneyOperation operation = operation(-i - 1, null);
+            ledger.write(operation);
+            after.add(operation);
+        }
+        assertEquals(after, replay(ledger, position));
+        ledger.close();
+    }
+
+    @Test
+    void tornRecordIsRemoved() throws Exception {
+        Ledger ledger = new Ledger(folder.toFile(), 65536, true);
+        ledger.open();
+        MoneyOperation first = operation(1, null);
+        ledger.write(first);
+        ledger.awaitSync(ledger.write(operation(2, null)));
+        ledger.close();
+        //  A byte of the last record changed (crash while writing it)
+        File segment = Objects.requireNonNull(folder.toFile().listFiles())[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.length() - 2);
+            int value = file.read();
+            file.seek(file.length() - 2);
+            file.write(value ^ 0xFF);
+        }
+
+        Ledger reopened = new Ledger(folder.toFile(), 65536, true);
+        reopened.open();
+        MoneyOperation next = operation(3, null);
+        reopened.awaitSync(reopened.write(next));
+        assertEquals(List.of(first, next), replay(reopened, null));
+        reopened.close();
+    }
+
+    private static List<MoneyOperation> replay(Ledger ledger, Ledger.Position from) throws Exception {
+        List<MoneyOperation> operations = new ArrayList<>();
+        ledger.replay(from, operations::add);
+        return operations;
+    }
+
+    private static MoneyOperation operation(int amount, UUID correlationId) {
+        return new MoneyOperation(TransactionIds.next(), Map.of("player-name", "alice", "level", 3), amount,
+                "Test", System.currentTimeMillis(), correlationId);
+    }
+}
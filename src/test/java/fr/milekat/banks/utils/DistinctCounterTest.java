@@ -0,0 +1,41 @@
+package fr.milekat.banks.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Estimations of the distinct values counter, within its standard error
+ */
+class DistinctCounterTest {
+    @Test
+    void smallCountsAreEstimated() {
+        DistinctCounter counter = new DistinctCounter();
+        assertEquals(0, counter.estimate());
+        for (int i = 0; i < 100; i++) {
+            counter.add("player-name:player-" + i);
+            //  Duplicates are not counted
+            counter.add("player-name:player-" + i);
+        }
+        assertEquals(100, counter.estimate(), 100 * 0.1);
+    }
+
+    @Test
+    void largeCountsAreEstimated() {
+        DistinctCounter counter = new DistinctCounter();
+        for (int i = 0; i < 200000; i++) counter.add("player-uuid:" + i);
+        assertEquals(200000, counter.estimate(), 200000 * 0.1);
+    }
+
+    @Test
+    void mergedCountersCountValuesOnce() {
+        DistinctCounter first = new DistinctCounter();
+        DistinctCounter second = new DistinctCounter();
+        for (int i = 0; i < 3000; i++) first.add("faction:" + i);
+        for (int i = 2000; i < 5000; i++) second.add("faction:" + i);
+        first.merge(second);
+        assertEquals(5000, first.estimate(), 5000 * 0.1);
+        DistinctCounter restored = DistinctCounter.fromBytes(first.toBytes());
+        assertEquals(first.estimate(), restored.estimate());
+    }
+}
@@ -0,0 +1,72 @@
+package fr.milekat.banks.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Order, timestamp and version of generated transaction ids
+ */
+class TransactionIdsTest {
+    @Test
+    void idsAreOrderedAndTimestamped() {
+        long start = System.currentTimeMillis();
+        UUID previous = TransactionIds.next();
+        for (int i = 0; i < 100000; i++) {
+            UUID next = TransactionIds.next();
+            assertTrue(next.compareTo(previous) > 0);
+            previous = next;
+        }
+        assertEquals(7, previous.version());
+        assertEquals(2, previous.variant());
+        long timestamp = Objects.requireNonNull(TransactionIds.getTimestamp(previous));
+        //  The counter overflow can move the timestamp slightly ahead of the clock
+        assertTrue(timestamp >= start && timestamp <= System.currentTimeMillis() + 100);
+        assertNull(TransactionIds.getTimestamp(UUID.randomUUID()));
+    }
+
+    @Test
+    void concurrentIdsAreUnique() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<UUID>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    List<UUID> ids = new ArrayList<>(20000);
+                    for (int j = 0; j < 20000; j++) ids.add(TransactionIds.next());
+                    return ids;
+                }));
+            }
+            Set<UUID> ids = new HashSet<>();
+            for (Future<List<UUID>> result : results) {
+                List<UUID> threadIds = result.get();
+                //  Ordered within each thread
+                for (int i = 1; i < threadIds.size(); i++) {
+                    assertTrue(threadIds.get(i).compareTo(threadIds.get(i - 1)) > 0);
+                }
+                ids.addAll(threadIds);
+            }
+            assertEquals(8 * 20000, ids.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void advanceKeepsIdsAfterAPreviousRun() {
+        //  Id generated by a previous run with a clock slightly ahead (ids are shared by all tests of the run)
+        UUID future = new UUID(((System.currentTimeMillis() + 20L) << 16) | 0x7000L | 0x123L,
+                0x8000000000000000L);
+        TransactionIds.advance(future);
+        assertTrue(TransactionIds.next().compareTo(future) > 0);
+        //  Random ids are not time-ordered, they are ignored
+        TransactionIds.advance(new UUID(Long.MAX_VALUE & ~0xF000L | 0x4000L, 0x8000000000000000L));
+        long timestamp = Objects.requireNonNull(TransactionIds.getTimestamp(TransactionIds.next()));
+        assertTrue(timestamp <= System.currentTimeMillis() + 100);
+    }
+}